@@ -113,6 +113,26 @@ describe('TodoService', () => {
       req.flush(testTodos);
     });
 
+    it('correctly calls api/todos with filter parameter \'owner\'', () => {
+
+      todoService.getTodos({ owner: 'bla' }).subscribe(
+        todos => expect(todos).toBe(testTodos)
+      );
+
+      // Specify that (exactly) one request will be made to the specified URL with the owner parameter.
+      const req = httpTestingController.expectOne(
+        (request) => request.url.startsWith(todoService.todoURL) && request.params.has('owner')
+      );
+
+      // Check that the request made to that URL was a GET request.
+      expect(req.request.method).toEqual('GET');
+
+      // Check that the owner parameter was 'bla'
+      expect(req.request.params.get('owner')).toEqual('bla');
+
+      req.flush(testTodos);
+    });
+
     it('correctly calls api/todos with multiple filter parameters', () => {
 
       todoService.getTodos({ status: true, category: 'Dog Stuff' }).subscribe(
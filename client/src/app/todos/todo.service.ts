@@ -14,9 +14,13 @@ export class TodoService {
   constructor(private httpClient: HttpClient) { }
 
   // Get the todos from the server, filtered by the information on the filters map
-  getTodos(filters?: { category?: string; status?: boolean }): Observable<Todo[]> {
+  getTodos(filters?: { owner?: string; category?: string; status?: boolean }): Observable<Todo[]> {
     let httpParams: HttpParams = new HttpParams();
     if (filters) {
+      // the server does a case-insensitive substring match on owner
+      if (filters.owner) {
+        httpParams = httpParams.set('owner', filters.owner);
+      }
       // working
       if (filters.category) {
         httpParams = httpParams.set('category', filters.category);
@@ -39,7 +39,7 @@ export class MockTodoService extends TodoService {
     super(null);
   }
 
-  getTodos(filters?: { category?: string; status?: boolean }): Observable<Todo[]> {
+  getTodos(filters?: { owner?: string; category?: string; status?: boolean }): Observable<Todo[]> {
     return of(MockTodoService.testTodos);
   }
 
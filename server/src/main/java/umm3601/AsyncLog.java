@@ -0,0 +1,441 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A log file (of requests or errors) that request threads can write
+ * to without ever waiting on the disk, or on each other.
+ *
+ * Logging an entry just claims a slot in a fixed-size ring buffer
+ * (with a single compare-and-set) and copies a few fields into it;
+ * nothing is formatted and nothing is allocated. A background thread
+ * empties the ring in batches, formats each entry as a line of JSON,
+ * and appends the batch to the file in one write. When the file gets
+ * bigger than `LOG_MAX_BYTES` (default 10 MB) it's rotated: `x.log`
+ * becomes `x.log.1`, `x.log.1` becomes `x.log.2`, and so on, keeping
+ * `LOG_KEEP` (default 5) old files.
+ *
+ * If entries come in faster than they can be written (say, every
+ * request is failing and logging a stack trace), the ring fills and
+ * new entries are dropped rather than making requests wait. How many
+ * were dropped is logged once the writer catches up, and reported in
+ * `stats`.
+ *
+ * The ring is the bounded multi-producer queue of Dmitry Vyukov: each
+ * slot has a sequence number saying whose turn it is, so producers
+ * and the consumer never touch the same slot at the same time.
+ */
+public class AsyncLog implements AutoCloseable {
+
+  private static final int DEFAULT_CAPACITY = 8192;
+  private static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+  private static final int DEFAULT_KEEP = 5;
+
+  private static final int BATCH_SIZE = 512;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  // Don't let one error with a deep stack fill the log
+  private static final int MAX_STACK_FRAMES = 40;
+  private static final int MAX_CAUSES = 5;
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory()
+    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    .setRootValueSeparator(null);
+
+  /**
+   * One entry's worth of space in the ring. Producers fill in the
+   * fields and then publish it by bumping `sequence`; the writer
+   * clears the references once it's written it, so nothing is kept
+   * alive by the ring.
+   */
+  private static final class Slot {
+    private volatile long sequence;
+
+    private boolean isError;
+    private long timeMillis;
+    private String method;
+    private String path;
+    private String query;
+    private String route;
+    private String remote;
+    private int status;
+    private long durationNanos;
+    private long dbNanos;
+    private Throwable error;
+
+    void clear() {
+      method = null;
+      path = null;
+      query = null;
+      route = null;
+      remote = null;
+      error = null;
+    }
+  }
+
+  private final Path file;
+  private final long maxBytes;
+  private final int keep;
+
+  private final Slot[] slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // Only the writer thread touches this
+  private long head;
+
+  private final Thread writer;
+  private volatile boolean closed;
+
+  private final LongAdder logged = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private final LongAdder rotations = new LongAdder();
+  private final LongAdder writeFailures = new LongAdder();
+
+  // Writer thread only
+  private long droppedReported;
+  private OutputStream out;
+  private long fileBytes;
+
+  /**
+   * Open a log, and start its writer thread.
+   *
+   * @param file the file to append to
+   * @param capacity how many entries the ring holds (rounded up to a
+   *   power of 2)
+   * @param maxBytes how big the file gets before it's rotated
+   * @param keep how many rotated files to keep
+   */
+  public AsyncLog(Path file, int capacity, long maxBytes, int keep) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.keep = keep;
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      slots[i].sequence = i;
+    }
+    mask = size - 1;
+    writer = new Thread(this::writeLoop, "log-" + file.getFileName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Open a log in the directory given by `LOG_DIR` (default "logs"),
+   * with the size limits described above.
+   *
+   * @param env where to look up the settings (usually `System.getenv()`)
+   * @param name the log's file name (e.g., "access.log")
+   * @return the log
+   */
+  public static AsyncLog fromEnvironment(Map<String, String> env, String name) {
+    Path directory = Paths.get(env.getOrDefault("LOG_DIR", "logs"));
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't create the log directory " + directory, e);
+    }
+    return new AsyncLog(
+      directory.resolve(name),
+      DEFAULT_CAPACITY,
+      Long.parseLong(env.getOrDefault("LOG_MAX_BYTES", Long.toString(DEFAULT_MAX_BYTES))),
+      Integer.parseInt(env.getOrDefault("LOG_KEEP", Integer.toString(DEFAULT_KEEP))));
+  }
+
+  /**
+   * Claim the next free slot, or return null if the ring is full.
+   */
+  private Slot claim() {
+    long position = tail.get();
+    while (true) {
+      Slot slot = slots[(int) (position & mask)];
+      long difference = slot.sequence - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          return slot;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The writer hasn't got to the entry from one lap ago yet
+        dropped.increment();
+        return null;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  private void publish(Slot slot) {
+    logged.increment();
+    // The slot's position was `sequence`; this hands it to the writer
+    slot.sequence = slot.sequence + 1;
+  }
+
+  /**
+   * Log a request that's been handled.
+   *
+   * @param method the HTTP method
+   * @param path the request path
+   * @param query the query string, or null
+   * @param route the route it matched (e.g., "/api/todos/{id}")
+   * @param status the response's HTTP status
+   * @param remote the client's address
+   * @param timing how long it took to handle, and how much of that
+   *   was spent on Mongo
+   * @return false if the entry was dropped because the log is behind
+   */
+  public boolean access(String method, String path, String query, String route, int status,
+      String remote, RequestTiming timing) {
+    Slot slot = claim();
+    if (slot == null) {
+      return false;
+    }
+    slot.isError = false;
+    slot.timeMillis = System.currentTimeMillis();
+    slot.method = method;
+    slot.path = path;
+    slot.query = query;
+    slot.route = route;
+    slot.status = status;
+    slot.remote = remote;
+    slot.durationNanos = timing.elapsedNanos();
+    slot.dbNanos = timing.busyNanos(RequestTiming.Phase.DB);
+    publish(slot);
+    return true;
+  }
+
+  /**
+   * Log an error. The stack trace is formatted by the writer thread,
+   * not this one.
+   *
+   * @param method the HTTP method of the request that failed
+   * @param path its path
+   * @param error what went wrong
+   * @return false if the entry was dropped because the log is behind
+   */
+  public boolean error(String method, String path, Throwable error) {
+    Slot slot = claim();
+    if (slot == null) {
+      return false;
+    }
+    slot.isError = true;
+    slot.timeMillis = System.currentTimeMillis();
+    slot.method = method;
+    slot.path = path;
+    slot.error = error;
+    publish(slot);
+    return true;
+  }
+
+  private void writeLoop() {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    while (true) {
+      // Read `closed` before draining, so nothing published before
+      // `close` is left behind.
+      boolean finishing = closed;
+      int count = drain(buffer);
+      if (buffer.size() > 0) {
+        flush(buffer, count);
+      } else if (finishing) {
+        break;
+      } else {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    closeFile();
+  }
+
+  /**
+   * Format up to a batch of entries into `buffer`, after a note of
+   * how many have been dropped since the last one, if any have.
+   *
+   * @return how many entries were formatted (not counting the note)
+   */
+  private int drain(ByteArrayOutputStream buffer) {
+    int count = 0;
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+      long droppedNow = dropped.sum();
+      if (droppedNow != droppedReported) {
+        generator.writeStartObject();
+        generator.writeStringField("time", Instant.now().toString());
+        generator.writeNumberField("dropped", droppedNow - droppedReported);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        droppedReported = droppedNow;
+      }
+      while (count < BATCH_SIZE) {
+        Slot slot = slots[(int) (head & mask)];
+        if (slot.sequence != head + 1) {
+          break;
+        }
+        write(slot, generator);
+        generator.writeRaw('\n');
+        slot.clear();
+        // Free for the producer one lap ahead
+        slot.sequence = head + slots.length;
+        head++;
+        count++;
+      }
+    } catch (IOException e) {
+      // Writing to a byte array doesn't fail
+      throw new IllegalStateException(e);
+    }
+    return count;
+  }
+
+  private static void write(Slot slot, JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("time", Instant.ofEpochMilli(slot.timeMillis).toString());
+    generator.writeStringField("method", slot.method);
+    generator.writeStringField("path", slot.path);
+    if (slot.isError) {
+      writeError(slot.error, generator);
+    } else {
+      if (slot.query != null) {
+        generator.writeStringField("query", slot.query);
+      }
+      generator.writeStringField("route", slot.route);
+      generator.writeNumberField("status", slot.status);
+      generator.writeNumberField("ms", slot.durationNanos / NANOS_PER_MILLI);
+      generator.writeNumberField("dbMs", slot.dbNanos / NANOS_PER_MILLI);
+      generator.writeStringField("remote", slot.remote);
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeError(Throwable error, JsonGenerator generator) throws IOException {
+    generator.writeStringField("error", error.getClass().getName());
+    generator.writeStringField("message", error.getMessage());
+    generator.writeArrayFieldStart("stack");
+    Throwable current = error;
+    for (int causes = 0; current != null && causes <= MAX_CAUSES; causes++) {
+      if (current != error) {
+        generator.writeString("Caused by: " + current);
+      }
+      StackTraceElement[] frames = current.getStackTrace();
+      for (int i = 0; i < Math.min(frames.length, MAX_STACK_FRAMES); i++) {
+        generator.writeString(frames[i].toString());
+      }
+      if (frames.length > MAX_STACK_FRAMES) {
+        generator.writeString("... " + (frames.length - MAX_STACK_FRAMES) + " more");
+      }
+      current = current.getCause() == current ? null : current.getCause();
+    }
+    generator.writeEndArray();
+  }
+
+  private void flush(ByteArrayOutputStream buffer, int count) {
+    boolean sent = false;
+    try {
+      if (out == null) {
+        openFile();
+      }
+      buffer.writeTo(out);
+      out.flush();
+      sent = true;
+      fileBytes += buffer.size();
+      written.add(count);
+      if (fileBytes >= maxBytes) {
+        rotate();
+      }
+    } catch (IOException e) {
+      // There's nowhere to log this; count it, and try again with
+      // the next batch. Unless it's rotating that failed, this batch
+      // is lost, which the next note of dropped entries will say.
+      writeFailures.increment();
+      if (!sent) {
+        dropped.add(count);
+      }
+      closeFile();
+    } finally {
+      buffer.reset();
+    }
+  }
+
+  private void openFile() throws IOException {
+    out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    fileBytes = Files.size(file);
+  }
+
+  private void closeFile() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        writeFailures.increment();
+      }
+      out = null;
+    }
+  }
+
+  private void rotate() throws IOException {
+    closeFile();
+    Files.deleteIfExists(rotated(keep));
+    for (int i = keep - 1; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (keep > 0) {
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    rotations.increment();
+  }
+
+  private Path rotated(int generation) {
+    return file.resolveSibling(file.getFileName() + "." + generation);
+  }
+
+  /**
+   * @return statistics on how many entries were logged, written, and
+   *   dropped
+   */
+  public Map<String, Object> stats() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("file", file.toString());
+    result.put("logged", logged.sum());
+    result.put("written", written.sum());
+    result.put("dropped", dropped.sum());
+    result.put("rotations", rotations.sum());
+    result.put("writeFailures", writeFailures.sum());
+    return result;
+  }
+
+  /**
+   * Stop the writer once it's written everything logged so far.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+/**
+ * Collects by-id lookups that arrive at (almost) the same time and
+ * answers them all with a single `$in` query, in the style of
+ * Facebook's DataLoader.
+ *
+ * There's no background thread. The first request to arrive while
+ * no batch is being collected becomes the "leader": it waits for
+ * the batching window, then takes every lookup that has queued up
+ * in the meantime (including its own), runs one query for all of
+ * them, and hands each waiting request its document.
+ *
+ * This trades a little latency (at most the window) on each lookup
+ * for far fewer Mongo operations when by-id traffic is heavy.
+ */
+public class ByIdBatcher {
+
+  // Batch sizes are reported in power-of-two buckets: 1, 2, 3-4, 5-8, ...
+  private static final int HISTOGRAM_BUCKETS = 9;
+
+  private final MongoCollection<RawBsonDocument> collection;
+  private final long windowNanos;
+  private final int maxBatchSize;
+
+  private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean collecting = new AtomicBoolean();
+
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder[] batchSizes = new LongAdder[HISTOGRAM_BUCKETS];
+
+  /**
+   * Construct a batcher.
+   *
+   * @param collection the collection to look documents up in
+   * @param windowNanos how long the leader waits for more lookups to arrive
+   * @param maxBatchSize the most ids to put in a single query
+   */
+  public ByIdBatcher(MongoCollection<RawBsonDocument> collection, long windowNanos, int maxBatchSize) {
+    this.collection = collection;
+    this.windowNanos = windowNanos;
+    this.maxBatchSize = maxBatchSize;
+    for (int i = 0; i < batchSizes.length; i++) {
+      batchSizes[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Look up a document by id, sharing the query with any other
+   * lookups that arrive within the batching window.
+   *
+   * @param id the id to look up
+   * @return the document, or null if there isn't one with that id
+   */
+  public RawBsonDocument load(ObjectId id) {
+    lookups.increment();
+    Pending pending = new Pending(id);
+    queue.add(pending);
+
+    if (collecting.compareAndSet(false, true)) {
+      LockSupport.parkNanos(windowNanos);
+      // Let the next arrival start a new batch *before* we drain, so
+      // nothing can be queued without someone coming to collect it.
+      collecting.set(false);
+      dispatch();
+    }
+
+    try {
+      return pending.result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void dispatch() {
+    List<Pending> batch = new ArrayList<>();
+    Pending next = queue.poll();
+    while (next != null) {
+      batch.add(next);
+      if (batch.size() == maxBatchSize) {
+        runBatch(batch);
+        batch = new ArrayList<>();
+      }
+      next = queue.poll();
+    }
+    if (!batch.isEmpty()) {
+      runBatch(batch);
+    }
+  }
+
+  private void runBatch(List<Pending> batch) {
+    batches.increment();
+    batchSizes[bucket(batch.size())].increment();
+
+    LinkedHashSet<ObjectId> ids = new LinkedHashSet<>();
+    for (Pending pending : batch) {
+      ids.add(pending.id);
+    }
+    try {
+      Map<ObjectId, RawBsonDocument> found = new HashMap<>();
+      for (RawBsonDocument document : collection.find(in("_id", ids))) {
+        found.put(document.getObjectId("_id").getValue(), document);
+      }
+      for (Pending pending : batch) {
+        pending.result.complete(found.get(pending.id));
+      }
+    } catch (Throwable e) {
+      // Every waiting lookup has to hear about the failure, whatever it
+      // is, or it would block forever on its result.
+      for (Pending pending : batch) {
+        pending.result.completeExceptionally(e);
+      }
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+    }
+  }
+
+  private static int bucket(int size) {
+    int bucket = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+  }
+
+  /**
+   * @return a snapshot of the batching statistics, for reporting
+   */
+  public Map<String, Object> stats() {
+    Map<String, Long> histogram = new LinkedHashMap<>();
+    for (int i = 0; i < batchSizes.length; i++) {
+      String label = i == batchSizes.length - 1 ? ">" + (1 << (i - 1)) : "<=" + (1 << i);
+      histogram.put(label, batchSizes[i].sum());
+    }
+    long batchCount = batches.sum();
+    long lookupCount = lookups.sum();
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("lookups", lookupCount);
+    result.put("batches", batchCount);
+    result.put("meanBatchSize", batchCount == 0 ? 0.0 : (double) lookupCount / batchCount);
+    result.put("batchSizes", histogram);
+    return result;
+  }
+
+  private static final class Pending {
+    private final ObjectId id;
+    private final CompletableFuture<RawBsonDocument> result = new CompletableFuture<>();
+
+    Pending(ObjectId id) {
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,413 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.sse.SseClient;
+
+/**
+ * Pushes inserts and deletes to any number of listening clients over
+ * Server-Sent Events, so browsers can stay up to date without polling.
+ *
+ * The controllers publish each change once, as it happens. It's
+ * turned into JSON once, then handed to every subscriber whose
+ * filters it matches. Subscribers don't tie up a thread while they
+ * wait; each has a small queue of events, and a shared pool of
+ * writer threads empties the queues onto the network. Writes never
+ * block: when a client's connection can't take any more, its writer
+ * moves on, and the client's queue is picked up again once the
+ * connection says it's ready (a servlet `WriteListener`). A
+ * subscriber that can't keep up, so that its queue fills, is
+ * disconnected (it can reconnect and catch up with
+ * `/api/todos/changes`), so slow clients, however many, can never
+ * hold up the others or use unbounded memory.
+ *
+ * A "ping" event is sent to everyone every so often, so connections
+ * that have died quietly are noticed and cleaned up.
+ */
+public class ChangeFeed implements AutoCloseable {
+
+  /**
+   * The query parameters a subscriber can filter on. An event matches
+   * if, for each of these that the subscriber gives, the event has
+   * that attribute with exactly that value.
+   */
+  public static final List<String> FILTER_KEYS = List.of("collection", "owner", "category");
+
+  private static final String PING_EVENT = "ping";
+  private static final long PING_INTERVAL_SECONDS = 15;
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  /**
+   * Somewhere to send events. This is an SSE connection in the server,
+   * but it can be anything (e.g., in tests).
+   */
+  interface Sink {
+    /**
+     * Check whether `send` can be called without blocking. If not,
+     * the sink runs `onReady` (once) when it can.
+     *
+     * @param onReady what to run when the sink is ready again
+     * @return true if the sink can take an event now
+     */
+    boolean ready(Runnable onReady);
+
+    /**
+     * Start sending one event, without blocking. Only call this when
+     * `ready` has said the sink is ready.
+     *
+     * @return false if the connection has gone away
+     */
+    boolean send(String event, String data);
+
+    /**
+     * Drop the connection.
+     */
+    void close();
+  }
+
+  private final int queueCapacity;
+  private final ExecutorService writers;
+  private final ScheduledExecutorService pinger;
+  private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder published = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder evicted = new LongAdder();
+
+  /**
+   * Construct a feed.
+   *
+   * @param writerThreads how many threads write events to subscribers
+   * @param queueCapacity how many events a subscriber can fall behind
+   *   by before it's disconnected
+   */
+  public ChangeFeed(int writerThreads, int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+    writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+      Thread thread = new Thread(runnable, "change-feed-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    pinger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "change-feed-ping");
+      thread.setDaemon(true);
+      return thread;
+    });
+    pinger.scheduleAtFixedRate(() -> publishToAll(new Event(PING_EVENT, Map.of(), "{}")),
+      PING_INTERVAL_SECONDS, PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Start sending events to a newly connected SSE client, filtered
+   * by its `collection`, `owner`, and `category` query parameters.
+   *
+   * @param client the SSE client
+   */
+  public void subscribe(SseClient client) {
+    Map<String, String> filters = new HashMap<>();
+    for (String key : FILTER_KEYS) {
+      String value = client.ctx.queryParam(key);
+      if (value != null) {
+        filters.put(key, value);
+      }
+    }
+    AsyncContext asyncContext = client.ctx.req.getAsyncContext();
+    ServletOutputStream out;
+    try {
+      out = client.ctx.res.getOutputStream();
+    } catch (IOException e) {
+      asyncContext.complete();
+      return;
+    }
+    ServletSink sink = new ServletSink(asyncContext, out);
+    // From here on the output stream never blocks
+    out.setWriteListener(sink);
+    Subscription subscription = subscribe(filters, sink);
+    // Javalin only notices the connection has gone away when one of
+    // its own writes fails, and we don't use those, so listen for the
+    // request finishing ourselves.
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+        unsubscribe(subscription);
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        unsubscribe(subscription);
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        unsubscribe(subscription);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+        // Nothing to do
+      }
+    });
+  }
+
+  /**
+   * Sends events to an SSE client using the servlet's non-blocking
+   * output: an event is written only when the connection can take it,
+   * and otherwise the writer waits for `onWritePossible`.
+   */
+  private static final class ServletSink implements Sink, WriteListener {
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    // Guarded by the lock on `this`: what to run when the output
+    // stream is next ready, if anything's waiting for it.
+    private Runnable onReady;
+    private volatile boolean closed;
+
+    ServletSink(AsyncContext asyncContext, ServletOutputStream out) {
+      this.asyncContext = asyncContext;
+      this.out = out;
+    }
+
+    @Override
+    public synchronized boolean ready(Runnable whenReady) {
+      if (closed) {
+        return true;
+      }
+      // Set first, since the container may call `onWritePossible`
+      // as soon as `isReady` has said no.
+      onReady = whenReady;
+      if (out.isReady()) {
+        onReady = null;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean send(String event, String data) {
+      if (closed) {
+        return false;
+      }
+      byte[] bytes = ("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+      try {
+        out.write(bytes);
+        // A small write may just be buffered; push it out if we can.
+        // If we can't, the container is already writing and will
+        // send it when that's done.
+        if (out.isReady()) {
+          out.flush();
+        }
+        return true;
+      } catch (IOException | IllegalStateException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public void onWritePossible() {
+      Runnable whenReady;
+      synchronized (this) {
+        whenReady = onReady;
+        onReady = null;
+      }
+      if (whenReady != null) {
+        whenReady.run();
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      close();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException e) {
+        // It was already closed
+      }
+    }
+  }
+
+  /**
+   * Start sending matching events to a sink.
+   *
+   * @param filters the attributes an event has to have to be sent
+   * @param sink where to send the events
+   * @return the subscription, for `unsubscribe`
+   */
+  Subscription subscribe(Map<String, String> filters, Sink sink) {
+    Subscription subscription = new Subscription(Map.copyOf(filters), sink, queueCapacity);
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  void unsubscribe(Subscription subscription) {
+    subscriptions.remove(subscription);
+  }
+
+  /**
+   * Send an event to every subscriber it matches.
+   *
+   * @param event the name of the event (e.g., "insert" or "delete")
+   * @param attributes what subscribers can filter the event on
+   * @param payload the event itself, which is sent as JSON
+   */
+  public void publish(String event, Map<String, String> attributes, Object payload) {
+    String data;
+    try {
+      data = JSON.writeValueAsString(payload);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Can't turn the event into JSON", e);
+    }
+    published.increment();
+    publishToAll(new Event(event, attributes, data));
+  }
+
+  private void publishToAll(Event event) {
+    for (Subscription subscription : subscriptions) {
+      if (event.name.equals(PING_EVENT) || subscription.matches(event)) {
+        subscription.offer(event);
+      }
+    }
+  }
+
+  /**
+   * @return how many clients are currently subscribed
+   */
+  public int size() {
+    return subscriptions.size();
+  }
+
+  /**
+   * @return a snapshot of the feed statistics, for reporting
+   */
+  public Map<String, Object> stats() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("subscribers", subscriptions.size());
+    result.put("published", published.sum());
+    result.put("delivered", delivered.sum());
+    result.put("evicted", evicted.sum());
+    return result;
+  }
+
+  @Override
+  public void close() {
+    pinger.shutdownNow();
+    writers.shutdownNow();
+    for (Subscription subscription : subscriptions) {
+      subscription.sink.close();
+    }
+    subscriptions.clear();
+  }
+
+  private static final class Event {
+    private final String name;
+    private final Map<String, String> attributes;
+    private final String data;
+
+    Event(String name, Map<String, String> attributes, String data) {
+      this.name = name;
+      this.attributes = attributes;
+      this.data = data;
+    }
+  }
+
+  /**
+   * One subscriber, with its filters and its queue of unsent events.
+   */
+  final class Subscription {
+    private final Map<String, String> filters;
+    private final Sink sink;
+    private final Queue<Event> queue;
+    // Whether a writer is (or is about to be) emptying the queue
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private Subscription(Map<String, String> filters, Sink sink, int capacity) {
+      this.filters = filters;
+      this.sink = sink;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    private boolean matches(Event event) {
+      for (Map.Entry<String, String> filter : filters.entrySet()) {
+        if (!filter.getValue().equals(event.attributes.get(filter.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void offer(Event event) {
+      if (!queue.offer(event)) {
+        // It's fallen too far behind, so cut it loose.
+        evicted.increment();
+        evict();
+        return;
+      }
+      if (draining.compareAndSet(false, true)) {
+        writers.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      do {
+        for (Event event = queue.peek(); event != null; event = queue.peek()) {
+          if (!sink.ready(this::resume)) {
+            // The connection is busy. The sink will call `resume` when
+            // it isn't, and until then we're still the one draining,
+            // so no other writer starts on this queue.
+            return;
+          }
+          queue.poll();
+          if (!sink.send(event.name, event.data)) {
+            evict();
+            return;
+          }
+          delivered.increment();
+        }
+        draining.set(false);
+        // Something may have been queued after we last looked but
+        // before we cleared the flag, in which case no one else will
+        // have started a writer for it.
+      } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void resume() {
+      writers.execute(this::drain);
+    }
+
+    private void evict() {
+      if (subscriptions.remove(this)) {
+        queue.clear();
+        sink.close();
+      }
+    }
+  }
+}
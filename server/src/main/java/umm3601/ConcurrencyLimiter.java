@@ -0,0 +1,255 @@
+package umm3601;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.MongoException;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.ServiceUnavailableResponse;
+import umm3601.RequestTiming.Phase;
+
+/**
+ * Caps how many requests in a route group can be waiting on Mongo
+ * at once, and adapts that cap to how fast Mongo is answering.
+ *
+ * This is AIMD ("additive increase, multiplicative decrease") in the
+ * same spirit as TCP congestion control:
+ *
+ *   - For each operation (a method and route, like `GET /api/todos`)
+ *     we keep a slowly-drifting baseline of the fastest round trips
+ *     we've seen. While round trips stay within `RTT_TOLERANCE` times
+ *     their operation's baseline and we're actually using the
+ *     capacity we have, the limit creeps up by about one per "window"
+ *     of requests.
+ *   - When round trips get much slower than the baseline, or Mongo
+ *     throws, the limit is cut by `BACKOFF_RATIO` (at most once per
+ *     round trip, so a burst of slow responses doesn't collapse it).
+ *
+ * A round trip is the time the request spent waiting on Mongo (its
+ * `db` phase in `RequestTiming`), or the whole handler for routes that
+ * don't time that phase. Baselines are per operation, since a by-id
+ * lookup is always going to be a lot faster than a big list query;
+ * with one shared baseline every list query would look like it had
+ * been stuck in a queue. Requests that end in a 4xx (a bad id, a
+ * missing todo) never get as far as doing real work in Mongo, so they
+ * don't count at all, and neither do handlers that fail with anything
+ * other than a Mongo exception.
+ *
+ * Requests over the limit are turned away right away with a 503 and
+ * a `Retry-After` header instead of piling up on Jetty threads.
+ */
+public class ConcurrencyLimiter {
+
+  private static final int DEFAULT_INITIAL_LIMIT = 20;
+  private static final int DEFAULT_MIN_LIMIT = 2;
+  private static final int DEFAULT_MAX_LIMIT = 200;
+
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final double RTT_TOLERANCE = 2.0;
+  private static final double BASELINE_DRIFT = 0.01;
+
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private static final int HTTP_CLIENT_ERROR = 400;
+  private static final int HTTP_SERVER_ERROR = 500;
+
+  private final String name;
+  private final int minLimit;
+  private final int maxLimit;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  // Only written while holding the lock on `this`, but read without it
+  // on the request path.
+  private volatile double limit;
+  private final Map<String, Double> baselineRttNanos = new HashMap<>();
+  private long lastBackoffNanos;
+  private boolean hasBackedOff;
+
+  /**
+   * Construct a limiter with the default limits.
+   *
+   * @param name the name of the route group, used in error messages
+   */
+  public ConcurrencyLimiter(String name) {
+    this(name, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+  }
+
+  /**
+   * Construct a limiter.
+   *
+   * @param name the name of the route group, used in error messages
+   * @param initialLimit how many concurrent requests to allow at first
+   * @param minLimit the limit never drops below this
+   * @param maxLimit the limit never grows beyond this
+   */
+  public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+    this.name = name;
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  /**
+   * Wrap a handler so that it only runs when there's room under the
+   * current limit, and so that its run time feeds back into the limit.
+   *
+   * @param handler the handler to protect
+   * @return the wrapped handler
+   */
+  public Handler limit(Handler handler) {
+    return ctx -> {
+      if (!tryAcquire()) {
+        ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+        throw new ServiceUnavailableResponse("The server is too busy to handle " + name + " requests right now.");
+      }
+      RequestTiming timing = RequestTiming.of(ctx);
+      long dbBefore = timing.busyNanos(Phase.DB);
+      long start = System.nanoTime();
+      boolean overloaded = false;
+      boolean clientError = false;
+      boolean failed = false;
+      try {
+        handler.handle(ctx);
+      } catch (MongoException e) {
+        // Timeouts and the like from Mongo are the clearest sign
+        // we're asking too much of it.
+        overloaded = true;
+        throw e;
+      } catch (HttpResponseException e) {
+        clientError = isClientError(e.getStatus());
+        throw e;
+      } catch (Throwable e) {
+        // A bug in the handler, not a verdict on Mongo; the status is
+        // still 200 here, so without this it would count as a success.
+        failed = true;
+        throw e;
+      } finally {
+        long dbNanos = timing.busyNanos(Phase.DB) - dbBefore;
+        long rttNanos = dbNanos > 0 ? dbNanos : System.nanoTime() - start;
+        if (overloaded) {
+          release(operation(ctx), rttNanos, true);
+        } else if (failed || clientError || isClientError(ctx.status())) {
+          release();
+        } else {
+          release(operation(ctx), rttNanos, false);
+        }
+      }
+    };
+  }
+
+  private static boolean isClientError(int status) {
+    return status >= HTTP_CLIENT_ERROR && status < HTTP_SERVER_ERROR;
+  }
+
+  private static String operation(Context ctx) {
+    return ctx.method() + " " + ctx.endpointHandlerPath();
+  }
+
+  /**
+   * Try to claim a slot under the current limit.
+   *
+   * @return true if a slot was claimed (and must later be given back
+   *   with `release`), false if we're already at the limit
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= (int) limit) {
+        rejected.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        accepted.increment();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back a slot claimed by `tryAcquire`, and adjust the limit
+   * based on how the request went.
+   *
+   * @param operation what kind of request it was (round trips are only
+   *   compared with others of the same kind)
+   * @param rttNanos how long the request spent waiting on the database
+   * @param overloaded true if the request failed in a way that suggests
+   *   the database is overloaded
+   */
+  public void release(String operation, long rttNanos, boolean overloaded) {
+    int wasInFlight = inFlight.getAndDecrement();
+    update(operation, rttNanos, overloaded, wasInFlight);
+  }
+
+  /**
+   * Give back a slot claimed by `tryAcquire` without adjusting the
+   * limit, for requests that say nothing about how loaded the
+   * database is.
+   */
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  private synchronized void update(String operation, long rttNanos, boolean overloaded, int wasInFlight) {
+    Double baseline = baselineRttNanos.get(operation);
+    if (!overloaded) {
+      if (baseline == null || rttNanos < baseline) {
+        baseline = (double) rttNanos;
+      } else {
+        baseline += (rttNanos - baseline) * BASELINE_DRIFT;
+      }
+      baselineRttNanos.put(operation, baseline);
+    }
+
+    if (overloaded || baseline != null && rttNanos > baseline * RTT_TOLERANCE) {
+      long now = System.nanoTime();
+      if (!hasBackedOff || now - lastBackoffNanos >= rttNanos) {
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        lastBackoffNanos = now;
+        hasBackedOff = true;
+      }
+    } else if (wasInFlight * 2 >= limit) {
+      // Only grow when we're actually using a good share of the
+      // limit; otherwise an idle server would grow it forever.
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /**
+   * @return the current concurrency limit
+   */
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return how many requests have been turned away so far
+   */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * @return a snapshot of this limiter's statistics, for reporting
+   */
+  public synchronized Map<String, Object> stats() {
+    Map<String, Double> baselineRttMillis = new TreeMap<>();
+    baselineRttNanos.forEach((operation, nanos) ->
+      baselineRttMillis.put(operation, nanos / TimeUnit.MILLISECONDS.toNanos(1)));
+    return Map.of(
+      "limit", getLimit(),
+      "inFlight", inFlight.get(),
+      "accepted", accepted.sum(),
+      "rejected", rejected.sum(),
+      "baselineRttMillis", baselineRttMillis);
+  }
+}
@@ -0,0 +1,193 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.conversions.Bson;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Answers "how many documents match this filter?" for the list
+ * endpoints' `X-Total-Count` header, as cheaply as it can.
+ *
+ * Counts are cached per filter and thrown away whenever one of our
+ * handlers writes to the collection (and after `MAX_AGE_NANOS`, to
+ * cover writes that don't go through this server). For the common
+ * unfiltered case the count comes from `estimatedDocumentCount`,
+ * which just reads the collection metadata.
+ *
+ * Filters include things like paging cursors and time windows, so
+ * there's no end to how many different ones we can see. Only the
+ * `MAX_ENTRIES` most recently used counts are kept.
+ *
+ * The documents can be split over several collections (e.g., shards),
+ * in which case each is counted and the counts are added up.
+ */
+public class CountCache {
+
+  /**
+   * How hard to work at getting the count, as requested with the
+   * `count` query parameter.
+   */
+  public enum Mode {
+    /** Always run a fresh `countDocuments`. */
+    EXACT,
+    /** Use collection metadata or a cached count if we can. */
+    ESTIMATED,
+    /** Don't count at all. */
+    NONE;
+
+    /**
+     * Parse the value of the `count` query parameter.
+     *
+     * @param param the parameter value, or null if it wasn't given
+     * @return the matching mode, `ESTIMATED` if none was given
+     */
+    public static Mode fromParam(String param) {
+      if (param == null) {
+        return ESTIMATED;
+      }
+      switch (param) {
+        case "exact":
+          return EXACT;
+        case "estimated":
+          return ESTIMATED;
+        case "none":
+          return NONE;
+        default:
+          throw new BadRequestResponse("Illegal count mode; must be one of exact, estimated, or none");
+      }
+    }
+  }
+
+  private static final long MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final int MAX_ENTRIES = 1000;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final List<? extends MongoCollection<?>> collections;
+  private final int maxEntries;
+
+  // Least recently used first; guarded by the lock on itself.
+  private final Map<String, CachedCount> counts = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  // Bumped on every write, so that a count that was started before a
+  // write (and might not include it) never makes it into the cache.
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Construct a cache of counts for a collection.
+   *
+   * @param collection the collection to count documents in
+   */
+  public CountCache(MongoCollection<?> collection) {
+    this(List.of(collection));
+  }
+
+  /**
+   * Construct a cache of counts for documents split over several
+   * collections.
+   *
+   * @param collections the collections to count documents in
+   */
+  public CountCache(List<? extends MongoCollection<?>> collections) {
+    this(collections, MAX_ENTRIES);
+  }
+
+  /**
+   * Construct a cache of counts for documents split over several
+   * collections.
+   *
+   * @param collections the collections to count documents in
+   * @param maxEntries how many counts to keep at most
+   */
+  public CountCache(List<? extends MongoCollection<?>> collections, int maxEntries) {
+    this.collections = collections;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Count the documents matching a filter.
+   *
+   * @param mode how hard to work at getting the count
+   * @param filterKey a canonical form of `filter`, used as the cache key
+   * @param filter the filter to count documents for
+   * @param unfiltered true if `filter` matches every document
+   * @return the count, or null if `mode` is `NONE`
+   */
+  public Long count(Mode mode, String filterKey, Bson filter, boolean unfiltered) {
+    switch (mode) {
+      case NONE:
+        return null;
+      case EXACT:
+        return countAll(filter, false);
+      case ESTIMATED:
+      default:
+        synchronized (counts) {
+          CachedCount cached = counts.get(filterKey);
+          if (cached != null) {
+            if (System.nanoTime() - cached.countedAt < MAX_AGE_NANOS) {
+              return cached.count;
+            }
+            counts.remove(filterKey);
+          }
+        }
+        long startingGeneration = generation.get();
+        long count = countAll(filter, unfiltered);
+        synchronized (counts) {
+          if (generation.get() == startingGeneration) {
+            counts.put(filterKey, new CachedCount(count, System.nanoTime()));
+          }
+        }
+        return count;
+    }
+  }
+
+  private long countAll(Bson filter, boolean estimated) {
+    long count = 0;
+    for (MongoCollection<?> collection : collections) {
+      count += estimated ? collection.estimatedDocumentCount() : collection.countDocuments(filter);
+    }
+    return count;
+  }
+
+  /**
+   * Forget all the cached counts. Call this after every write.
+   */
+  public void invalidate() {
+    synchronized (counts) {
+      generation.incrementAndGet();
+      counts.clear();
+    }
+  }
+
+  /**
+   * @return how many counts are cached
+   */
+  public int size() {
+    synchronized (counts) {
+      return counts.size();
+    }
+  }
+
+  private static final class CachedCount {
+    private final long count;
+    private final long countedAt;
+
+    CachedCount(long count, long countedAt) {
+      this.count = count;
+      this.countedAt = countedAt;
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * Stores the values of low-cardinality string fields (like a todo's
+ * category or a user's role) as small integer codes, so each document
+ * and each index entry holds a 4-byte int instead of a repeated string.
+ *
+ * The codes live in a `dictionary` collection, one document per value,
+ *
+ *   { field: "todos.category", value: "Homework", code: 3 }
+ *
+ * and the whole dictionary is cached in memory, so turning a code
+ * into a string (or back) doesn't cost a trip to the database. A new
+ * value gets the next code from a sequence the first time it's
+ * written; if another server assigns a code for the same value at the
+ * same time, the unique index makes sure only one of them wins.
+ *
+ * Documents written before encoding was turned on still hold the
+ * strings. Everything here accepts either, so encoding can be turned
+ * on without migrating existing data first.
+ */
+public class Dictionary {
+
+  /**
+   * The field `sortByValue` puts each document's value in.
+   */
+  public static final String SORT_KEY = "sortKey";
+
+  private static final String COLLECTION_NAME = "dictionary";
+  private static final String SEQUENCE_PREFIX = "dictionary:";
+
+  private final MongoCollection<Document> entries;
+  private final MongoCollection<Document> sequences;
+
+  // field -> value -> code, and field -> code -> value
+  private final Map<String, Map<String, Integer>> codes = new ConcurrentHashMap<>();
+  private final Map<String, Map<Integer, String>> values = new ConcurrentHashMap<>();
+
+  /**
+   * Load the dictionary for a database.
+   *
+   * @param database the database whose fields are encoded
+   */
+  public Dictionary(MongoDatabase database) {
+    entries = database.getCollection(COLLECTION_NAME);
+    sequences = database.getCollection("sequences");
+    entries.createIndex(Indexes.ascending("field", "value"), new IndexOptions().unique(true));
+    entries.createIndex(Indexes.ascending("field", "code"), new IndexOptions().unique(true));
+    reload();
+  }
+
+  private synchronized void reload() {
+    for (Document entry : entries.find()) {
+      remember(entry.getString("field"), entry.getString("value"), entry.getInteger("code"));
+    }
+  }
+
+  private void remember(String field, String value, int code) {
+    codes.computeIfAbsent(field, f -> new ConcurrentHashMap<>()).put(value, code);
+    values.computeIfAbsent(field, f -> new ConcurrentHashMap<>()).put(code, value);
+  }
+
+  /**
+   * Get the code for a value, giving it a new one if it hasn't been
+   * seen before. Use this when writing.
+   *
+   * @param field the encoded field (e.g., "todos.category")
+   * @param value the string value
+   * @return its code
+   */
+  public int encode(String field, String value) {
+    Integer code = lookup(field, value);
+    return code == null ? assign(field, value) : code;
+  }
+
+  private synchronized int assign(String field, String value) {
+    Integer existing = lookup(field, value);
+    if (existing != null) {
+      return existing;
+    }
+    int code = sequences.findOneAndUpdate(
+      eq("_id", SEQUENCE_PREFIX + field),
+      Updates.inc("value", 1),
+      new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER))
+      .getInteger("value");
+    try {
+      entries.insertOne(new Document("field", field).append("value", value).append("code", code));
+      remember(field, value, code);
+      return code;
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+        throw e;
+      }
+      // Another server gave it a code first; use theirs.
+      reload();
+      return lookup(field, value);
+    }
+  }
+
+  /**
+   * Get the code for a value without assigning one. Use this when
+   * reading: a value with no code can't be stored anywhere encoded.
+   *
+   * @param field the encoded field
+   * @param value the string value
+   * @return its code, or null if it doesn't have one
+   */
+  public Integer lookup(String field, String value) {
+    Map<String, Integer> fieldCodes = codes.get(field);
+    return fieldCodes == null ? null : fieldCodes.get(value);
+  }
+
+  /**
+   * Turn a code back into its string.
+   *
+   * @param field the encoded field
+   * @param code the code
+   * @return the string value
+   */
+  public String decode(String field, int code) {
+    String value = valueOf(field, code);
+    if (value == null) {
+      // Another server might have just added it.
+      reload();
+      value = valueOf(field, code);
+      if (value == null) {
+        throw new IllegalStateException("There's no " + field + " with code " + code);
+      }
+    }
+    return value;
+  }
+
+  private String valueOf(String field, int code) {
+    Map<Integer, String> fieldValues = values.get(field);
+    return fieldValues == null ? null : fieldValues.get(code);
+  }
+
+  /**
+   * Turn a value as it's stored (a code, or a string from before
+   * encoding was on) into its string.
+   *
+   * @param field the encoded field
+   * @param stored the stored value
+   * @return the string value, or null if it's neither a code nor a string
+   */
+  public String decodeStored(String field, Object stored) {
+    if (stored instanceof Integer) {
+      return decode(field, (Integer) stored);
+    }
+    return stored instanceof String ? (String) stored : null;
+  }
+
+  /**
+   * Unwrap a raw BSON value into the plain Java value `decodeStored`
+   * takes (a `String` or an `Integer`), or a `Boolean`.
+   *
+   * @param value the BSON value, or null if the field is missing
+   * @return the plain value, or null if it's any other type
+   */
+  public static Object unwrap(BsonValue value) {
+    if (value == null) {
+      return null;
+    }
+    switch (value.getBsonType()) {
+      case STRING:
+        return value.asString().getValue();
+      case INT32:
+        return value.asInt32().getValue();
+      case BOOLEAN:
+        return value.asBoolean().getValue();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Build a filter matching documents whose field has any of the
+   * given values, stored either way. Mongo can still answer this from
+   * an index on the field.
+   *
+   * @param storedField the name of the field in the documents
+   * @param field the encoded field
+   * @param wanted the string values to match
+   * @return the filter
+   */
+  public Bson anyOf(String storedField, String field, Collection<String> wanted) {
+    List<Object> stored = new ArrayList<>();
+    for (String value : wanted) {
+      stored.add(value);
+      Integer code = lookup(field, value);
+      if (code != null) {
+        stored.add(code);
+      }
+    }
+    return in(storedField, stored);
+  }
+
+  /**
+   * Build aggregation stages that sort documents by the string values
+   * of an encoded field, rather than by its codes (which are in the
+   * order the values were first seen, and which Mongo would put before
+   * every string from before encoding was on). Each document gets its
+   * value in a `sortKey` field, looked up from a list of the values
+   * indexed by code; strings are used as they are.
+   *
+   * This can't use an index, so it's only worth it for sorts that ask
+   * for an encoded field.
+   *
+   * @param storedField the name of the field in the documents
+   * @param field the encoded field
+   * @param descending whether to sort in descending order
+   * @return the `$addFields` and `$sort` stages
+   */
+  public List<Bson> sortByValue(String storedField, String field, boolean descending) {
+    List<String> byCode = new ArrayList<>();
+    values.getOrDefault(field, Map.of()).forEach((code, value) -> {
+      while (byCode.size() <= code) {
+        byCode.add(null);
+      }
+      byCode.set(code, value);
+    });
+    String path = "$" + storedField;
+    // Codes are numbers, and Mongo compares every number as less than
+    // any string
+    Document value = new Document("$cond", List.of(
+      new Document("$lt", List.of(path, "")),
+      new Document("$arrayElemAt", List.of(new Document("$literal", byCode), path)),
+      path));
+    return List.of(
+      Aggregates.addFields(new Field<>(SORT_KEY, value)),
+      Aggregates.sort(SortedMerge.sort(SORT_KEY, descending)));
+  }
+
+  /**
+   * @param field the encoded field
+   * @param test which values to match
+   * @return the codes of every value that passes the test
+   */
+  public List<Integer> codesMatching(String field, Predicate<String> test) {
+    List<Integer> result = new ArrayList<>();
+    Map<String, Integer> fieldCodes = codes.getOrDefault(field, Map.of());
+    fieldCodes.forEach((value, code) -> {
+      if (test.test(value)) {
+        result.add(code);
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,139 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Command line tool that fills the database (or NDJSON files) with
+ * synthetic users and todos from `SyntheticData`, for scale testing.
+ *
+ * Options are given as `--name=value`:
+ *
+ *   --users         how many users (default 1000)
+ *   --todos         how many todos (default 100000)
+ *   --seed          the random seed (default 3601)
+ *   --categories    how many distinct categories (default 20)
+ *   --owner-skew    the Zipf exponent for todo owners (default 1.0)
+ *   --complete      the fraction of todos that are complete (default 0.5)
+ *   --out           a directory to write `users.ndjson` and
+ *                   `todos.ndjson` to, instead of loading into Mongo
+ *
+ * When loading into Mongo, it replaces the `users` and `todos`
+ * collections of the `MONGO_DB` database, inserting with `SEED_WORKERS`
+ * parallel workers just like `Seed`. The NDJSON files it writes can
+ * be loaded later with `Seed`.
+ *
+ * Run it with `./gradlew generateData -PgenerateArgs="--todos=10000000"`.
+ */
+public final class GenerateData {
+
+  private static final Set<String> OPTIONS = Set.of(
+    "users", "todos", "seed", "categories", "owner-skew", "complete", "out");
+
+  private static final JsonWriterSettings NDJSON_SETTINGS = JsonWriterSettings.builder()
+    .outputMode(JsonMode.RELAXED)
+    .build();
+
+  private GenerateData() {
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = parseOptions(args);
+    int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+    long todos = Long.parseLong(options.getOrDefault("todos", "100000"));
+    SyntheticData data = new SyntheticData(
+      Long.parseLong(options.getOrDefault("seed", "3601")),
+      users,
+      Integer.parseInt(options.getOrDefault("categories", "20")),
+      Double.parseDouble(options.getOrDefault("owner-skew", "1.0")),
+      Double.parseDouble(options.getOrDefault("complete", "0.5")));
+
+    long start = System.nanoTime();
+    if (options.containsKey("out")) {
+      Path directory = Paths.get(options.get("out"));
+      Files.createDirectories(directory);
+      writeNdjson(directory.resolve("users.ndjson"), data.users(), users);
+      writeNdjson(directory.resolve("todos.ndjson"), data.todos(todos), todos);
+    } else {
+      String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
+      MongoClient mongoClient = Seed.connect();
+      MongoDatabase database = mongoClient.getDatabase(databaseName);
+      try (ParallelInserter inserter = new ParallelInserter(Seed.workers())) {
+        load(database.getCollection("users"), data.users(), inserter);
+        load(database.getCollection("todos"), data.todos(todos), inserter);
+      }
+      Seed.createIndexes(database);
+      RebuildCounters.rebuild(database);
+      mongoClient.close();
+    }
+    Seed.report("total", users + todos, start);
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = equals < 0 || !arg.startsWith("--") ? null : arg.substring(2, equals);
+      if (name == null || !OPTIONS.contains(name)) {
+        throw new IllegalArgumentException("Unknown option " + arg + "; options are --"
+          + String.join("=..., --", OPTIONS) + "=...");
+      }
+      options.put(name, arg.substring(equals + 1));
+    }
+    return options;
+  }
+
+  private static void load(MongoCollection<Document> collection, Iterator<Document> documents,
+      ParallelInserter inserter) throws InterruptedException {
+    String name = collection.getNamespace().getCollectionName();
+    System.out.println("Replacing " + collection.getNamespace());
+    collection.drop();
+
+    long start = System.nanoTime();
+    long count = 0;
+    List<Document> batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+    while (documents.hasNext()) {
+      batch.add(documents.next());
+      count++;
+      if (batch.size() == ParallelInserter.BATCH_SIZE) {
+        inserter.insert(collection, batch);
+        batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+      }
+    }
+    if (!batch.isEmpty()) {
+      inserter.insert(collection, batch);
+    }
+    inserter.awaitAll();
+    Seed.report(name, count, start);
+  }
+
+  private static void writeNdjson(Path file, Iterator<Document> documents, long count) throws IOException {
+    System.out.println("Writing " + file);
+    long start = System.nanoTime();
+    try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      while (documents.hasNext()) {
+        out.write(documents.next().toJson(NDJSON_SETTINGS));
+        out.write('\n');
+      }
+    }
+    Seed.report(file.getFileName().toString(), count, start);
+  }
+}
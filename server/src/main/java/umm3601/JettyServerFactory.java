@@ -0,0 +1,106 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Builds the Jetty server that Javalin runs on, instead of letting
+ * Javalin use its default HTTP/1.1-only connector.
+ *
+ * The connector speaks both HTTP/1.1 and cleartext HTTP/2 (h2c), so
+ * clients that can multiplex (or a reverse proxy in front of us) can
+ * send lots of parallel API calls down a single connection. Everything
+ * can be tuned through environment variables, much like `MONGO_ADDR`
+ * and `MONGO_DB` in `Server`:
+ *
+ *   - `HTTP_ACCEPTORS`: threads accepting new connections (default 1)
+ *   - `HTTP_SELECTORS`: NIO selector threads (default half the cores)
+ *   - `HTTP_MAX_THREADS` / `HTTP_MIN_THREADS`: the request thread pool
+ *   - `HTTP_IDLE_TIMEOUT_MS`: how long an idle keep-alive connection is held
+ *   - `HTTP_OUTPUT_BUFFER_SIZE`: response buffer size in bytes
+ *   - `HTTP2C_ENABLED`: set to "false" to turn off h2c
+ *   - `HTTP2_MAX_CONCURRENT_STREAMS`: streams allowed per HTTP/2 connection
+ */
+public class JettyServerFactory implements Supplier<Server> {
+
+  private static final int DEFAULT_MAX_THREADS = 200;
+  private static final int DEFAULT_MIN_THREADS = 8;
+  private static final int THREAD_IDLE_TIMEOUT_MS = 60_000;
+  private static final int DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+  private static final int DEFAULT_OUTPUT_BUFFER_SIZE = 32 * 1024;
+  private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 128;
+  private static final int ACCEPT_QUEUE_SIZE = 256;
+
+  private final Map<String, String> env;
+  private final int port;
+
+  /**
+   * Create a factory for a server listening on the given port.
+   *
+   * @param env where to look up the tuning settings (usually `System.getenv()`)
+   * @param port the port to listen on
+   */
+  public JettyServerFactory(Map<String, String> env, int port) {
+    this.env = env;
+    this.port = port;
+  }
+
+  @Override
+  public Server get() {
+    QueuedThreadPool threadPool = new QueuedThreadPool(
+      intSetting("HTTP_MAX_THREADS", DEFAULT_MAX_THREADS),
+      intSetting("HTTP_MIN_THREADS", DEFAULT_MIN_THREADS),
+      THREAD_IDLE_TIMEOUT_MS);
+    threadPool.setName("JettyServerThreadPool");
+    Server server = new Server(threadPool);
+
+    HttpConfiguration httpConfig = new HttpConfiguration();
+    httpConfig.setOutputBufferSize(intSetting("HTTP_OUTPUT_BUFFER_SIZE", DEFAULT_OUTPUT_BUFFER_SIZE));
+    httpConfig.setSendServerVersion(false);
+
+    List<ConnectionFactory> factories = new ArrayList<>();
+    factories.add(new HttpConnectionFactory(httpConfig));
+    if (!"false".equals(env.get("HTTP2C_ENABLED"))) {
+      HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+      h2c.setMaxConcurrentStreams(intSetting("HTTP2_MAX_CONCURRENT_STREAMS", DEFAULT_MAX_CONCURRENT_STREAMS));
+      factories.add(h2c);
+    }
+
+    // Accepting connections is cheap, so one acceptor is plenty; the
+    // selectors do the real I/O work, so scale those with the cores.
+    int cores = Runtime.getRuntime().availableProcessors();
+    ServerConnector connector = new ServerConnector(
+      server,
+      intSetting("HTTP_ACCEPTORS", 1),
+      intSetting("HTTP_SELECTORS", Math.max(1, cores / 2)),
+      factories.toArray(new ConnectionFactory[0]));
+    connector.setPort(port);
+    connector.setIdleTimeout(intSetting("HTTP_IDLE_TIMEOUT_MS", DEFAULT_IDLE_TIMEOUT_MS));
+    connector.setAcceptQueueSize(ACCEPT_QUEUE_SIZE);
+    server.addConnector(connector);
+
+    return server;
+  }
+
+  private int intSetting(String name, int defaultValue) {
+    String value = env.get(name);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("The setting " + name + " must be an integer, but was '" + value + "'", e);
+    }
+  }
+}
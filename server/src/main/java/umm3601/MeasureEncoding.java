@@ -0,0 +1,171 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import umm3601.todo.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Command line tool that measures what dictionary encoding (see
+ * `Dictionary`) saves. It loads the same synthetic users and todos
+ * twice, once as plain strings and once encoded, and reports the
+ * storage each copy takes and how long filtering on the encoded
+ * fields takes.
+ *
+ * Options are given as `--name=value`:
+ *
+ *   --users     how many users (default 1000)
+ *   --todos     how many todos (default 100000)
+ *   --seed      the random seed (default 3601)
+ *   --repeats   how many times to run each query (default 20)
+ *
+ * Everything is loaded into a scratch database (`MONGO_DB` with
+ * `_encoding` on the end), which is dropped when it's done.
+ *
+ * Run it with `./gradlew measureEncoding -PmeasureArgs="--todos=1000000"`.
+ */
+public final class MeasureEncoding {
+
+  private static final Set<String> OPTIONS = Set.of("users", "todos", "seed", "repeats");
+
+  private static final int CATEGORIES = 20;
+  private static final double OWNER_SKEW = 1.0;
+  private static final double COMPLETE_RATIO = 0.5;
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private MeasureEncoding() {
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = parseOptions(args);
+    int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+    long todos = Long.parseLong(options.getOrDefault("todos", "100000"));
+    long seed = Long.parseLong(options.getOrDefault("seed", "3601"));
+    int repeats = Integer.parseInt(options.getOrDefault("repeats", "20"));
+
+    String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev") + "_encoding";
+    MongoClient mongoClient = Seed.connect();
+    MongoDatabase database = mongoClient.getDatabase(databaseName);
+    database.drop();
+    Dictionary dictionary = new Dictionary(database);
+
+    Map<String, String> userFields = Map.of(
+      "role", UserController.ROLE_DICTIONARY,
+      "company", UserController.COMPANY_DICTIONARY);
+    Map<String, String> todoFields = Map.of("category", TodoController.CATEGORY_DICTIONARY);
+
+    try (ParallelInserter inserter = new ParallelInserter(Seed.workers())) {
+      for (boolean encoded : new boolean[] {false, true}) {
+        SyntheticData data = new SyntheticData(seed, users, CATEGORIES, OWNER_SKEW, COMPLETE_RATIO);
+        load(collection(database, "users", encoded), data.users(),
+          encoded ? dictionary : null, userFields, UserController.INDEXES, inserter);
+        load(collection(database, "todos", encoded), data.todos(todos),
+          encoded ? dictionary : null, todoFields, TodoController.INDEXES, inserter);
+      }
+    }
+
+    System.out.printf("%-16s %14s %14s %14s%n", "collection", "avgObjSize", "size", "totalIndexSize");
+    for (String name : List.of("users", "todos")) {
+      for (boolean encoded : new boolean[] {false, true}) {
+        String collectionName = collection(database, name, encoded).getNamespace().getCollectionName();
+        Document stats = database.runCommand(new Document("collStats", collectionName));
+        System.out.printf("%-16s %14s %14s %14s%n", collectionName,
+          stats.get("avgObjSize"), stats.get("size"), stats.get("totalIndexSize"));
+      }
+    }
+
+    System.out.printf("%n%-32s %12s %12s%n", "query (mean ms)", "plain", "encoded");
+    String[][] queries = {
+      {"todos", "category", TodoController.CATEGORY_DICTIONARY},
+      {"users", "role", UserController.ROLE_DICTIONARY}};
+    for (String[] query : queries) {
+      String name = query[0];
+      String key = query[1];
+      for (String value : collection(database, name, false).distinct(key, String.class)) {
+        Integer code = dictionary.lookup(query[2], value);
+        System.out.printf("%-32s %12.2f %12.2f%n", name + "." + key + "=" + value,
+          meanMillis(collection(database, name, false), eq(key, value), repeats),
+          meanMillis(collection(database, name, true), eq(key, code), repeats));
+      }
+    }
+
+    database.drop();
+    mongoClient.close();
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = equals < 0 || !arg.startsWith("--") ? null : arg.substring(2, equals);
+      if (name == null || !OPTIONS.contains(name)) {
+        throw new IllegalArgumentException("Unknown option " + arg + "; options are --"
+          + String.join("=..., --", OPTIONS) + "=...");
+      }
+      options.put(name, arg.substring(equals + 1));
+    }
+    return options;
+  }
+
+  private static MongoCollection<Document> collection(MongoDatabase database, String name, boolean encoded) {
+    return database.getCollection(name + (encoded ? "_encoded" : "_plain"));
+  }
+
+  private static void load(MongoCollection<Document> collection, Iterator<Document> documents,
+      Dictionary dictionary, Map<String, String> fields, List<Bson> indexes,
+      ParallelInserter inserter) throws InterruptedException {
+    long start = System.nanoTime();
+    long count = 0;
+    List<Document> batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+    while (documents.hasNext()) {
+      Document document = documents.next();
+      if (dictionary != null) {
+        fields.forEach((key, field) -> document.put(key, dictionary.encode(field, document.getString(key))));
+      }
+      batch.add(document);
+      count++;
+      if (batch.size() == ParallelInserter.BATCH_SIZE) {
+        inserter.insert(collection, batch);
+        batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+      }
+    }
+    if (!batch.isEmpty()) {
+      inserter.insert(collection, batch);
+    }
+    inserter.awaitAll();
+    for (Bson index : indexes) {
+      collection.createIndex(index);
+    }
+    Seed.report(collection.getNamespace().getCollectionName(), count, start);
+  }
+
+  /**
+   * Run a query `repeats` times (after one run to warm up), reading
+   * every matching document each time.
+   *
+   * @return the mean time per run, in milliseconds
+   */
+  private static double meanMillis(MongoCollection<Document> collection, Bson filter, int repeats) {
+    collection.find(filter).into(new ArrayList<>());
+    long start = System.nanoTime();
+    for (int i = 0; i < repeats; i++) {
+      collection.find(filter).into(new ArrayList<>());
+    }
+    return (System.nanoTime() - start) / NANOS_PER_MILLI / repeats;
+  }
+}
@@ -0,0 +1,51 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import io.javalin.http.Context;
+
+/**
+ * A very small registry of named statistics that different parts
+ * of the server want to report (limits, counters, ratios, ...).
+ *
+ * Each source is a `Supplier` that's asked for a fresh snapshot
+ * whenever someone requests `/api/metrics`, so reporting costs
+ * nothing until it's actually looked at.
+ */
+public class Metrics {
+
+  private final Map<String, Supplier<?>> sources = new ConcurrentSkipListMap<>();
+
+  /**
+   * Register a source of statistics.
+   *
+   * @param name the key the statistics will be reported under
+   * @param source produces a JSON-serializable snapshot of the statistics
+   */
+  public void register(String name, Supplier<?> source) {
+    sources.put(name, source);
+  }
+
+  /**
+   * Take a snapshot of every registered source.
+   *
+   * @return the snapshots, keyed (and sorted) by name
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    sources.forEach((name, source) -> result.put(name, source.get()));
+    return result;
+  }
+
+  /**
+   * Get a JSON response with a snapshot of all the statistics.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.json(snapshot());
+  }
+}
@@ -0,0 +1,95 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.client.MongoCollection;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+/**
+ * Fetches a whole batch of documents by id with a single `$in`
+ * query, instead of one round trip per id.
+ *
+ * The response has one entry per requested id, in the order they
+ * were requested, e.g.,
+ *
+ *   [ { "id": "588935f5...", "found": true, "todo": { ... } },
+ *     { "id": "58af3a60...", "found": false } ]
+ */
+public final class MultiGet {
+
+  /**
+   * The most ids we'll look up in one request.
+   */
+  public static final int MAX_IDS = 1000;
+
+  private MultiGet() {
+  }
+
+  /**
+   * Look up all the documents with the given ids.
+   *
+   * @param collection the collection to look in
+   * @param transcoder how to turn each document into JSON
+   * @param itemName the name of the field each found document is put in
+   * @param ids the ids to look up (duplicates are fine)
+   * @return the UTF-8 encoded JSON response
+   */
+  public static byte[] fetch(
+      MongoCollection<RawBsonDocument> collection,
+      RawJsonTranscoder transcoder,
+      String itemName,
+      List<ObjectId> ids) {
+    Map<ObjectId, RawBsonDocument> found = new HashMap<>();
+    for (RawBsonDocument document : collection.find(in("_id", new LinkedHashSet<>(ids)))) {
+      found.put(document.getObjectId("_id").getValue(), document);
+    }
+    return respond(found, transcoder, itemName, ids);
+  }
+
+  /**
+   * Build the response for documents that have already been looked
+   * up (e.g., from several shards).
+   *
+   * @param found the documents that were found, by id
+   * @param transcoder how to turn each document into JSON
+   * @param itemName the name of the field each found document is put in
+   * @param ids the ids that were requested, in order
+   * @return the UTF-8 encoded JSON response
+   */
+  public static byte[] respond(
+      Map<ObjectId, RawBsonDocument> found,
+      RawJsonTranscoder transcoder,
+      String itemName,
+      List<ObjectId> ids) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = RawJsonTranscoder.createGenerator(out)) {
+      generator.writeStartArray();
+      for (ObjectId id : ids) {
+        RawBsonDocument document = found.get(id);
+        generator.writeStartObject();
+        generator.writeStringField("id", id.toHexString());
+        generator.writeBooleanField("found", document != null);
+        if (document != null) {
+          generator.writeFieldName(itemName);
+          transcoder.writeDocument(document, generator);
+        }
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
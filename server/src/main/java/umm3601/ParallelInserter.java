@@ -0,0 +1,80 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Inserts batches of documents on a pool of worker threads, for the
+ * bulk loading tools (`Seed` and `GenerateData`).
+ *
+ * Each batch is a single unordered `insertMany`. Only a few batches
+ * per worker are allowed to be waiting at once; `insert` blocks when
+ * the workers fall behind, so whatever is producing the documents
+ * can't run ahead and fill up memory.
+ */
+final class ParallelInserter implements AutoCloseable {
+
+  /**
+   * How many documents to put in each batch.
+   */
+  static final int BATCH_SIZE = 1000;
+
+  // Let the producer get a little ahead of the workers, but not so
+  // far that everything ends up queued in memory.
+  private static final int BATCHES_IN_FLIGHT_PER_WORKER = 2;
+
+  private final ExecutorService pool;
+  private final Semaphore inFlight;
+  private final List<Future<?>> inserts = new ArrayList<>();
+
+  ParallelInserter(int workers) {
+    pool = Executors.newFixedThreadPool(workers);
+    inFlight = new Semaphore(workers * BATCHES_IN_FLIGHT_PER_WORKER);
+  }
+
+  /**
+   * Queue a batch to be inserted, waiting if too many are already queued.
+   */
+  <T> void insert(MongoCollection<T> collection, List<T> batch) throws InterruptedException {
+    inFlight.acquire();
+    inserts.add(pool.submit(() -> {
+      try {
+        // Unordered, so the server is free to apply the inserts in
+        // parallel and one bad document doesn't stop the rest.
+        collection.insertMany(batch, new InsertManyOptions().ordered(false));
+      } finally {
+        inFlight.release();
+      }
+    }));
+  }
+
+  /**
+   * Wait for every batch queued so far to be inserted.
+   *
+   * @throws IllegalStateException if any of the inserts failed
+   */
+  void awaitAll() throws InterruptedException {
+    try {
+      for (Future<?> insert : inserts) {
+        insert.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Insert failed", e.getCause());
+    } finally {
+      inserts.clear();
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
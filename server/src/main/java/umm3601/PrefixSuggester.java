@@ -0,0 +1,240 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps every distinct value of a field (like todo owners or user
+ * companies) in memory, along with how many documents use each one,
+ * so we can answer "what are the most used values starting with this
+ * prefix?" for typeahead without touching the database.
+ *
+ * Values are kept in a trie keyed on their lower-cased characters, so
+ * all the values starting with a prefix are under a single node. Each
+ * node also keeps the `MAX_SUGGESTIONS` most used values under it, in
+ * order, so a lookup is just a walk down the prefix and a copy of that
+ * list, however many values match. Adding or removing a use of a value
+ * only touches the nodes on its path.
+ */
+public class PrefixSuggester {
+
+  /**
+   * A single suggestion: a value and how many documents use it.
+   */
+  public static final class Suggestion {
+    private final String value;
+    private final int count;
+
+    Suggestion(String value, int count) {
+      this.value = value;
+      this.count = count;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * The most suggestions that can be asked for at once.
+   */
+  public static final int MAX_SUGGESTIONS = 100;
+
+  // Most used first, ties broken alphabetically (ignoring case, then
+  // not), like a sorted list would break them.
+  private static final Comparator<Suggestion> BEST_FIRST = Comparator
+    .comparingInt(Suggestion::getCount).reversed()
+    .thenComparing(suggestion -> normalize(suggestion.getValue()))
+    .thenComparing(Suggestion::getValue);
+
+  private static final class Node {
+    private final Map<Character, Node> children = new HashMap<>();
+    // The values that are exactly this node's prefix (there can be
+    // several that differ only in case), and how many documents use
+    // each one.
+    private final Map<String, Integer> values = new HashMap<>();
+    // The best `MAX_SUGGESTIONS` values at or under this node, best
+    // first. If there are fewer, they're all here.
+    private List<Suggestion> top = new ArrayList<>();
+
+    boolean isEmpty() {
+      return children.isEmpty() && values.isEmpty();
+    }
+  }
+
+  // Guarded by the lock on `this`.
+  private final Node root = new Node();
+  private int size;
+
+  /**
+   * Record that `count` more documents use `value`.
+   *
+   * @param value the value to add
+   * @param count how many documents use it
+   */
+  public void add(String value, int count) {
+    if (value == null || count <= 0) {
+      return;
+    }
+    update(value, count);
+  }
+
+  /**
+   * Record that one more document uses `value`.
+   *
+   * @param value the value to add
+   */
+  public void add(String value) {
+    add(value, 1);
+  }
+
+  /**
+   * Record that one fewer document uses `value`.
+   *
+   * @param value the value to remove
+   */
+  public void remove(String value) {
+    if (value == null) {
+      return;
+    }
+    update(value, -1);
+  }
+
+  private synchronized void update(String value, int delta) {
+    String key = normalize(value);
+    List<Node> path = new ArrayList<>(key.length() + 1);
+    Node node = root;
+    path.add(node);
+    for (int i = 0; i < key.length(); i++) {
+      Node child = node.children.get(key.charAt(i));
+      if (child == null) {
+        if (delta < 0) {
+          return;
+        }
+        child = new Node();
+        node.children.put(key.charAt(i), child);
+      }
+      node = child;
+      path.add(node);
+    }
+
+    Integer oldCount = node.values.get(value);
+    if (oldCount == null && delta < 0) {
+      return;
+    }
+    int newCount = (oldCount == null ? 0 : oldCount) + delta;
+    if (newCount > 0) {
+      node.values.put(value, newCount);
+    } else {
+      node.values.remove(value);
+    }
+    if (oldCount == null) {
+      size++;
+    } else if (newCount <= 0) {
+      size--;
+    }
+
+    // Deepest first, since a node's list may need rebuilding from
+    // its children's.
+    Suggestion updated = new Suggestion(value, newCount);
+    for (int depth = path.size() - 1; depth >= 0; depth--) {
+      updateTop(path.get(depth), updated, delta < 0);
+    }
+
+    // Drop nodes that no longer lead to any value
+    for (int depth = path.size() - 1; depth > 0 && path.get(depth).isEmpty(); depth--) {
+      path.get(depth - 1).children.remove(key.charAt(depth - 1));
+    }
+  }
+
+  private static void updateTop(Node node, Suggestion updated, boolean decreased) {
+    int index = indexOf(node.top, updated.getValue());
+    if (decreased) {
+      if (index < 0) {
+        // It wasn't good enough to be here, and now it's worse
+        return;
+      }
+      if (node.top.size() == MAX_SUGGESTIONS) {
+        // Something that didn't make the list might be better now
+        rebuildTop(node);
+        return;
+      }
+    }
+    if (index >= 0) {
+      node.top.remove(index);
+    }
+    if (updated.getCount() > 0) {
+      insertSorted(node.top, updated);
+      if (node.top.size() > MAX_SUGGESTIONS) {
+        node.top.remove(node.top.size() - 1);
+      }
+    }
+  }
+
+  private static void rebuildTop(Node node) {
+    // The best values under a node are all among the best of its
+    // children, or are the node's own values.
+    List<Suggestion> candidates = new ArrayList<>();
+    node.values.forEach((value, count) -> candidates.add(new Suggestion(value, count)));
+    for (Node child : node.children.values()) {
+      candidates.addAll(child.top);
+    }
+    candidates.sort(BEST_FIRST);
+    node.top = new ArrayList<>(candidates.subList(0, Math.min(MAX_SUGGESTIONS, candidates.size())));
+  }
+
+  private static int indexOf(List<Suggestion> suggestions, String value) {
+    for (int i = 0; i < suggestions.size(); i++) {
+      if (suggestions.get(i).getValue().equals(value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void insertSorted(List<Suggestion> suggestions, Suggestion suggestion) {
+    int i = 0;
+    while (i < suggestions.size() && BEST_FIRST.compare(suggestions.get(i), suggestion) < 0) {
+      i++;
+    }
+    suggestions.add(i, suggestion);
+  }
+
+  /**
+   * Find the most used values that start with `prefix`, ignoring case.
+   *
+   * @param prefix what the values should start with
+   * @param limit the most suggestions to return (at most `MAX_SUGGESTIONS`)
+   * @return the suggestions, most used first (ties broken alphabetically)
+   */
+  public synchronized List<Suggestion> suggest(String prefix, int limit) {
+    String key = normalize(prefix);
+    Node node = root;
+    for (int i = 0; i < key.length() && node != null; i++) {
+      node = node.children.get(key.charAt(i));
+    }
+    if (node == null) {
+      return List.of();
+    }
+    return new ArrayList<>(node.top.subList(0, Math.min(limit, node.top.size())));
+  }
+
+  /**
+   * @return how many distinct values are known
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  private static String normalize(String text) {
+    return text.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,155 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Helpers for turning list query parameters into Mongo filters.
+ */
+public final class QueryParams {
+
+  public static final String CREATED_AFTER_KEY = "createdAfter";
+  public static final String CREATED_BEFORE_KEY = "createdBefore";
+  public static final String AFTER_KEY = "after";
+
+  // An ObjectId is a 4-byte timestamp followed by 8 other bytes, so
+  // the smallest id for a given second is that second and then zeros.
+  private static final String ID_TIMESTAMP_FORMAT = "%08x0000000000000000";
+  private static final long MAX_ID_SECONDS = 0xFFFFFFFFL;
+
+  private QueryParams() {
+  }
+
+  /**
+   * Build a filter that matches any of the values given for a query
+   * parameter. Values can be separated by commas (`role=admin,editor`),
+   * given by repeating the parameter (`role=admin&role=editor`), or both.
+   *
+   * A single value becomes a plain equality test, and several become an
+   * `$in`; either way Mongo can answer it with an index on the field.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param key the query parameter, which is also the field to filter on
+   * @return the filter
+   */
+  public static Bson anyOf(Context ctx, String key) {
+    List<String> values = values(ctx, key);
+    return values.size() == 1 ? eq(key, values.get(0)) : in(key, values);
+  }
+
+  /**
+   * Get the values given for a query parameter, separated by commas
+   * and/or by repeating the parameter, as for `anyOf`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param key the query parameter
+   * @return the distinct values, in the order given
+   */
+  public static List<String> values(Context ctx, String key) {
+    List<String> values = new ArrayList<>();
+    for (String param : ctx.queryParams(key)) {
+      for (String value : param.split(",")) {
+        if (!value.isEmpty() && !values.contains(value)) {
+          values.add(value);
+        }
+      }
+    }
+    if (values.isEmpty()) {
+      throw new BadRequestResponse("Give at least one value for " + key);
+    }
+    return values;
+  }
+
+  /**
+   * Build the filters for the time-window and keyset paging parameters
+   * shared by the list endpoints. These all test `_id`, so they're
+   * answered from the index every collection already has.
+   *
+   *   - `createdAfter` and `createdBefore` are ISO-8601 instants (e.g.,
+   *     `2022-03-01T12:00:00Z`). Since the creation time in an ObjectId
+   *     is in whole seconds, `createdAfter` includes everything created
+   *     in its second, and `createdBefore` excludes it.
+   *   - `after` is the `_id` of the last document on the previous page,
+   *     for paging through in creation (i.e., `_id`) order; only
+   *     documents after it are matched.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the filters (which might be empty)
+   */
+  public static List<Bson> createdFilters(Context ctx) {
+    List<Bson> filters = new ArrayList<>();
+
+    if (ctx.queryParamMap().containsKey(CREATED_AFTER_KEY)) {
+      filters.add(gte("_id", firstIdAt(parseInstant(ctx, CREATED_AFTER_KEY))));
+    }
+
+    if (ctx.queryParamMap().containsKey(CREATED_BEFORE_KEY)) {
+      filters.add(lt("_id", firstIdAt(parseInstant(ctx, CREATED_BEFORE_KEY))));
+    }
+
+    if (ctx.queryParamMap().containsKey(AFTER_KEY)) {
+      String after = ctx.queryParam(AFTER_KEY);
+      if (!ObjectId.isValid(after)) {
+        throw new BadRequestResponse("The after parameter wasn't a legal id");
+      }
+      filters.add(gt("_id", new ObjectId(after)));
+    }
+
+    return filters;
+  }
+
+  /**
+   * Check that the sort asked for works with keyset paging. Paging
+   * with `after` only makes sense in ascending `_id` order, so that's
+   * the default when it's given, and anything else is an error.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param defaultSortBy the field to sort by when `after` isn't given
+   * @return the field to sort by
+   */
+  public static String sortBy(Context ctx, String defaultSortBy) {
+    if (!ctx.queryParamMap().containsKey(AFTER_KEY)) {
+      return Objects.requireNonNullElse(ctx.queryParam("sortby"), defaultSortBy);
+    }
+    if (!Objects.requireNonNullElse(ctx.queryParam("sortby"), "_id").equals("_id")
+        || "desc".equals(ctx.queryParam("sortorder"))) {
+      throw new BadRequestResponse("Paging with after only works in ascending _id order");
+    }
+    return "_id";
+  }
+
+  private static Instant parseInstant(Context ctx, String key) {
+    try {
+      return Instant.parse(ctx.queryParam(key));
+    } catch (DateTimeParseException e) {
+      throw new BadRequestResponse(key + " must be an ISO-8601 time, like 2022-03-01T12:00:00Z");
+    }
+  }
+
+  /**
+   * @param instant a time
+   * @return the smallest ObjectId created in the same second
+   */
+  public static ObjectId firstIdAt(Instant instant) {
+    long seconds = instant.getEpochSecond();
+    if (seconds < 0 || seconds > MAX_ID_SECONDS) {
+      throw new BadRequestResponse("That time is outside the range of ids");
+    }
+    return new ObjectId(String.format(ID_TIMESTAMP_FORMAT, seconds));
+  }
+}
@@ -0,0 +1,365 @@
+package umm3601;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
+
+/**
+ * Turns `RawBsonDocument`s straight into JSON bytes, without
+ * building a `Todo` or `User` in between.
+ *
+ * The output has to look exactly like what Jackson produces for the
+ * matching POJO, so each transcoder is told the POJO's fields (in
+ * declaration order) and their types. Fields in the document that
+ * aren't in that list are skipped, and fields that are missing from
+ * the document get the same default the POJO would have (`null`,
+ * `false`, or `0`).
+ */
+public class RawJsonTranscoder {
+
+  /**
+   * The kinds of POJO field we know how to write.
+   */
+  public enum FieldType {
+    /** A `@ObjectId @Id` field, written as the hex string. */
+    OBJECT_ID,
+    /** A `String` field. */
+    STRING,
+    /** A primitive `boolean` field. */
+    BOOLEAN,
+    /** A primitive `int` field. */
+    INT
+  }
+
+  // We never want the generator to close the stream it's writing
+  // to, since that might be the HTTP response.
+  private static final JsonFactory JSON_FACTORY = new JsonFactory()
+    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private static final String CSV_LINE_END = "\r\n";
+
+  private final List<String> names = new ArrayList<>();
+  private final List<FieldType> types = new ArrayList<>();
+  private final Map<String, Integer> positions = new HashMap<>();
+
+  // Fields stored as `Dictionary` codes, by position, with the name of
+  // the dictionary field they're encoded as.
+  private final Map<Integer, String> encodedFields = new HashMap<>();
+  private Dictionary dictionary;
+
+  /**
+   * Add a field to the output. Fields are written in the order they
+   * are added, which should match the declaration order in the POJO.
+   *
+   * @param name the name of the field in both BSON and JSON
+   * @param type how the field is declared in the POJO
+   * @return this transcoder, so calls can be chained
+   */
+  public RawJsonTranscoder field(String name, FieldType type) {
+    positions.put(name, names.size());
+    names.add(name);
+    types.add(type);
+    return this;
+  }
+
+  /**
+   * Make a copy of this transcoder that turns `Dictionary` codes back
+   * into strings for the given fields. Values that are already
+   * strings are written as they are.
+   *
+   * @param codes the dictionary the codes come from
+   * @param fields the names of the encoded fields, with the dictionary
+   *   field each is encoded as (e.g., "category" -> "todos.category")
+   * @return the new transcoder
+   */
+  public RawJsonTranscoder decodedWith(Dictionary codes, Map<String, String> fields) {
+    RawJsonTranscoder copy = new RawJsonTranscoder();
+    for (int i = 0; i < names.size(); i++) {
+      copy.field(names.get(i), types.get(i));
+    }
+    copy.dictionary = codes;
+    fields.forEach((name, field) -> copy.encodedFields.put(positions.get(name), field));
+    return copy;
+  }
+
+  /**
+   * Transcode a single document into a JSON object.
+   *
+   * @param document the raw document from Mongo
+   * @return the UTF-8 encoded JSON
+   */
+  public byte[] toJson(RawBsonDocument document) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(document.getByteBuffer().remaining());
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      writeDocument(document, generator, new Object[names.size()]);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Transcode a sequence of documents (typically a `FindIterable`)
+   * into a JSON array.
+   *
+   * @param documents the raw documents from Mongo
+   * @return the UTF-8 encoded JSON
+   */
+  public byte[] toJsonArray(Iterable<RawBsonDocument> documents) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    try {
+      writeJsonArray(documents, out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Transcode a sequence of documents into a JSON array written
+   * directly to the given stream.
+   *
+   * @param documents the raw documents from Mongo
+   * @param out where to write the UTF-8 encoded JSON
+   * @throws IOException if writing to `out` fails
+   */
+  public void writeJsonArray(Iterable<RawBsonDocument> documents, OutputStream out) throws IOException {
+    // We reuse one slot array for every document so the only
+    // per-document allocations are the field values themselves.
+    Object[] slots = new Object[names.size()];
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      generator.writeStartArray();
+      for (RawBsonDocument document : documents) {
+        writeDocument(document, generator, slots);
+      }
+      generator.writeEndArray();
+    }
+  }
+
+  /**
+   * Transcode a sequence of documents into newline-delimited JSON
+   * (one object per line) written directly to the given stream.
+   * Nothing but the current document is held in memory, so this
+   * works for any number of documents.
+   *
+   * @param documents the raw documents from Mongo
+   * @param out where to write the UTF-8 encoded NDJSON
+   * @throws IOException if writing to `out` fails
+   */
+  public void writeNdjson(Iterable<RawBsonDocument> documents, OutputStream out) throws IOException {
+    Object[] slots = new Object[names.size()];
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      for (RawBsonDocument document : documents) {
+        writeDocument(document, generator, slots);
+        generator.writeRaw('\n');
+      }
+    }
+  }
+
+  /**
+   * Transcode a sequence of documents into CSV (RFC 4180), with a
+   * header row of the field names, written directly to the given
+   * stream. Missing fields get the same defaults as in the JSON.
+   *
+   * @param documents the raw documents from Mongo
+   * @param out where to write the UTF-8 encoded CSV
+   * @throws IOException if writing to `out` fails
+   */
+  public void writeCsv(Iterable<RawBsonDocument> documents, OutputStream out) throws IOException {
+    Object[] slots = new Object[names.size()];
+    // Don't close the writer, since that would close `out`.
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    for (int i = 0; i < names.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writeCsvString(writer, names.get(i));
+    }
+    writer.write(CSV_LINE_END);
+    for (RawBsonDocument document : documents) {
+      readSlots(document, slots);
+      for (int i = 0; i < slots.length; i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writeCsvValue(writer, types.get(i), slots[i]);
+      }
+      writer.write(CSV_LINE_END);
+    }
+    writer.flush();
+  }
+
+  /**
+   * Create a JSON generator with the same settings the transcoders
+   * use, for callers that need to wrap transcoded documents in some
+   * other JSON.
+   *
+   * @param out where the generator should write
+   * @return the generator; closing it does not close `out`
+   * @throws IOException if the generator can't be created
+   */
+  public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+    return JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+  }
+
+  /**
+   * Write one document as a JSON object on the given generator. This
+   * is exposed so that callers that frame the output differently
+   * (e.g., one object per line) can reuse the transcoding.
+   *
+   * @param document the raw document from Mongo
+   * @param generator the generator to write to
+   * @throws IOException if the generator fails
+   */
+  public void writeDocument(RawBsonDocument document, JsonGenerator generator) throws IOException {
+    writeDocument(document, generator, new Object[names.size()]);
+  }
+
+  /**
+   * Write the fields of one document on the given generator, without
+   * the surrounding braces, so the caller can add more fields of its
+   * own to the same JSON object.
+   *
+   * @param document the raw document from Mongo
+   * @param generator the generator to write to; it must be inside an object
+   * @throws IOException if the generator fails
+   */
+  public void writeFields(RawBsonDocument document, JsonGenerator generator) throws IOException {
+    writeFields(document, generator, new Object[names.size()]);
+  }
+
+  private void writeDocument(RawBsonDocument document, JsonGenerator generator, Object[] slots) throws IOException {
+    generator.writeStartObject();
+    writeFields(document, generator, slots);
+    generator.writeEndObject();
+  }
+
+  private void writeFields(RawBsonDocument document, JsonGenerator generator, Object[] slots) throws IOException {
+    readSlots(document, slots);
+    for (int i = 0; i < slots.length; i++) {
+      generator.writeFieldName(names.get(i));
+      writeValue(generator, types.get(i), slots[i]);
+    }
+  }
+
+  /**
+   * Walk the raw bytes once, pulling out the values of the fields
+   * we care about and skipping everything else.
+   */
+  private void readSlots(RawBsonDocument document, Object[] slots) {
+    Arrays.fill(slots, null);
+    try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()))) {
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        Integer position = positions.get(reader.readName());
+        if (position == null) {
+          reader.skipValue();
+          continue;
+        }
+        switch (reader.getCurrentBsonType()) {
+          case OBJECT_ID:
+            slots[position] = reader.readObjectId().toHexString();
+            break;
+          case STRING:
+            slots[position] = reader.readString();
+            break;
+          case BOOLEAN:
+            slots[position] = reader.readBoolean();
+            break;
+          case INT32:
+            int value = reader.readInt32();
+            String encodedField = encodedFields.get(position);
+            slots[position] = encodedField == null ? (Object) value : dictionary.decode(encodedField, value);
+            break;
+          case INT64:
+            slots[position] = reader.readInt64();
+            break;
+          case DOUBLE:
+            slots[position] = reader.readDouble();
+            break;
+          default:
+            // Nulls and anything Jackson wouldn't have mapped onto
+            // the POJO field are treated as missing.
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.readEndDocument();
+    }
+  }
+
+  private static void writeValue(JsonGenerator generator, FieldType type, Object value) throws IOException {
+    switch (type) {
+      case BOOLEAN:
+        generator.writeBoolean(value instanceof Boolean && (Boolean) value);
+        break;
+      case INT:
+        generator.writeNumber(value instanceof Number ? ((Number) value).intValue() : 0);
+        break;
+      case OBJECT_ID:
+      case STRING:
+      default:
+        if (value == null) {
+          generator.writeNull();
+        } else {
+          generator.writeString(value.toString());
+        }
+        break;
+    }
+  }
+
+  private static void writeCsvValue(Writer writer, FieldType type, Object value) throws IOException {
+    switch (type) {
+      case BOOLEAN:
+        writer.write(Boolean.toString(value instanceof Boolean && (Boolean) value));
+        break;
+      case INT:
+        writer.write(Integer.toString(value instanceof Number ? ((Number) value).intValue() : 0));
+        break;
+      case OBJECT_ID:
+      case STRING:
+      default:
+        // There's no null in CSV, so a missing string is just empty.
+        if (value != null) {
+          writeCsvString(writer, value.toString());
+        }
+        break;
+    }
+  }
+
+  private static void writeCsvString(Writer writer, String value) throws IOException {
+    boolean needsQuotes = false;
+    for (int i = 0; i < value.length() && !needsQuotes; i++) {
+      char c = value.charAt(i);
+      needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+    }
+    if (!needsQuotes) {
+      writer.write(value);
+      return;
+    }
+    writer.write('"');
+    writer.write(value.replace("\"", "\"\""));
+    writer.write('"');
+  }
+}
@@ -0,0 +1,331 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+import org.bson.BsonTimestamp;
+import org.bson.conversions.Bson;
+
+import io.javalin.http.Context;
+
+/**
+ * Decides which replica set members list queries read from, so that
+ * reads can be spread over the secondaries instead of all landing on
+ * the primary. This only matters when `MONGO_ADDR` names a replica
+ * set; against a standalone server every read goes to that server
+ * whatever we ask for.
+ *
+ * There are three parts to it, each set by an environment variable:
+ *
+ *   - `READ_FROM_SECONDARIES`: set to "true" to send list queries to
+ *     a secondary (falling back to the primary if there isn't one),
+ *     as long as it's no more than `MAX_STALENESS_SECONDS` (default,
+ *     and minimum, 90) behind the primary.
+ *   - `HEDGE_AFTER_MS`: if a list query hasn't answered after this
+ *     many milliseconds, send the same query to the primary as well
+ *     and use whichever answers first (or whichever succeeds, if one
+ *     of them fails). This cuts off the tail latency of a secondary
+ *     that's busy or far away. 0 (the default) turns hedging off.
+ *     Hedged queries run on a pool of at most `MAX_HEDGE_THREADS`
+ *     threads; when it's busy, queries just aren't hedged.
+ *   - Read-your-writes: a write made through `write` runs in a
+ *     causally consistent session, and its operation time is sent
+ *     back to the client in a `readAfter` cookie. A read from the same
+ *     client then runs in a session that's been advanced to that
+ *     time, so whichever member answers it waits until it has caught
+ *     up with the write first. A client that adds a todo and then
+ *     lists the todos always sees the new one.
+ *
+ * Writes (and reads that aren't lists, like getting a single todo by
+ * id) still go to the primary.
+ */
+public class ReadRouting implements AutoCloseable {
+
+  public static final String READ_AFTER_COOKIE = "readAfter";
+
+  /**
+   * The most threads hedged list queries run on at once.
+   */
+  public static final int MAX_HEDGE_THREADS = 64;
+
+  private static final long MIN_MAX_STALENESS_SECONDS = 90;
+
+  private static final long HEDGE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  private static final ClientSessionOptions CAUSAL = ClientSessionOptions.builder()
+    .causallyConsistent(true)
+    .build();
+
+  private final MongoClient client;
+  private final ReadPreference listPreference;
+  private final long hedgeAfterMillis;
+  private final ExecutorService hedgeExecutor;
+
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder causalReads = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder unhedged = new LongAdder();
+  private final LongAdder trackedWrites = new LongAdder();
+
+  /**
+   * A query to run against a collection, in a session if there is one.
+   *
+   * @param <D> the type of documents in the collection
+   * @param <T> the type of the result
+   */
+  public interface Query<D, T> {
+    /**
+     * @param collection the collection, with the read preference to use
+     * @param session the session to run in, or null to run without one
+     * @return the result, which must be read in full before returning
+     */
+    T run(MongoCollection<D> collection, ClientSession session);
+  }
+
+  /**
+   * Construct a read router.
+   *
+   * @param client the client to start sessions from
+   * @param listPreference where to send list queries
+   * @param hedgeAfterMillis how long to wait before hedging a list
+   *   query, or 0 to never hedge
+   */
+  public ReadRouting(MongoClient client, ReadPreference listPreference, long hedgeAfterMillis) {
+    this(client, listPreference, hedgeAfterMillis, MAX_HEDGE_THREADS);
+  }
+
+  ReadRouting(MongoClient client, ReadPreference listPreference, long hedgeAfterMillis, int hedgeThreads) {
+    this.client = client;
+    this.listPreference = listPreference;
+    this.hedgeAfterMillis = hedgeAfterMillis;
+    // No queue: when every thread is busy, a task is rejected straight
+    // away, and the query runs without hedging instead of waiting.
+    this.hedgeExecutor = new ThreadPoolExecutor(0, hedgeThreads,
+      HEDGE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "hedged-read");
+        thread.setDaemon(true);
+        return thread;
+      });
+  }
+
+  /**
+   * Construct a read router configured by environment variables, as
+   * described above.
+   *
+   * @param client the client to start sessions from
+   * @param env where to look up the settings (usually `System.getenv()`)
+   * @return the router
+   */
+  public static ReadRouting fromEnvironment(MongoClient client, Map<String, String> env) {
+    ReadPreference listPreference = ReadPreference.primary();
+    if (Boolean.parseBoolean(env.get("READ_FROM_SECONDARIES"))) {
+      long maxStaleness = Long.parseLong(env.getOrDefault(
+        "MAX_STALENESS_SECONDS", Long.toString(MIN_MAX_STALENESS_SECONDS)));
+      if (maxStaleness < MIN_MAX_STALENESS_SECONDS) {
+        throw new IllegalArgumentException("MAX_STALENESS_SECONDS must be at least " + MIN_MAX_STALENESS_SECONDS);
+      }
+      listPreference = ReadPreference.secondaryPreferred(maxStaleness, TimeUnit.SECONDS);
+    }
+    return new ReadRouting(client, listPreference, Long.parseLong(env.getOrDefault("HEDGE_AFTER_MS", "0")));
+  }
+
+  /**
+   * Run a write in a causally consistent session, and tell the client
+   * (in the `readAfter` cookie) what time its later reads need to
+   * reflect.
+   *
+   * @param ctx the Javalin HTTP context of the request making the write
+   * @param operation the write
+   * @return the write's result
+   */
+  public <T> T write(Context ctx, Function<ClientSession, T> operation) {
+    try (ClientSession session = client.startSession(CAUSAL)) {
+      T result = operation.apply(session);
+      // A standalone server doesn't have operation times, and doesn't
+      // need them: there's only one place to read from.
+      BsonTimestamp operationTime = session.getOperationTime();
+      if (operationTime != null) {
+        trackedWrites.increment();
+        ctx.cookie(READ_AFTER_COOKIE, operationTime.getTime() + "." + operationTime.getInc());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Run a list query with this router's read preference, hedging it
+   * if it's slow, and making sure it reflects the client's own writes.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   * @param collection the collection to query
+   * @param query the query
+   * @return the query's result
+   */
+  public <D, T> T read(Context ctx, MongoCollection<D> collection, Query<D, T> query) {
+    return read(readAfter(ctx), collection, query);
+  }
+
+  <D, T> T read(BsonTimestamp after, MongoCollection<D> collection, Query<D, T> query) {
+    reads.increment();
+    if (after != null) {
+      causalReads.increment();
+    }
+    MongoCollection<D> preferred = collection.withReadPreference(listPreference);
+    if (hedgeAfterMillis == 0) {
+      return attempt(preferred, after, query);
+    }
+
+    // Sessions can't be shared between threads, so each attempt gets
+    // its own, advanced to the same time.
+    CompletableFuture<T> first;
+    try {
+      first = CompletableFuture.supplyAsync(() -> attempt(preferred, after, query), hedgeExecutor);
+    } catch (RejectedExecutionException e) {
+      unhedged.increment();
+      return attempt(preferred, after, query);
+    }
+    try {
+      return first.get(hedgeAfterMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // Hedge it, below
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a read", e);
+    }
+
+    MongoCollection<D> primary = collection.withReadPreference(ReadPreference.primary());
+    CompletableFuture<T> hedge;
+    try {
+      hedge = CompletableFuture.supplyAsync(() -> attempt(primary, after, query), hedgeExecutor);
+    } catch (RejectedExecutionException e) {
+      unhedged.increment();
+      return await(first);
+    }
+    hedges.increment();
+
+    // Use the first attempt to succeed; only fail if they both do.
+    CompletableFuture<CompletableFuture<T>> winner = new CompletableFuture<>();
+    AtomicInteger running = new AtomicInteger(2);
+    first.whenComplete((result, error) -> settle(winner, running, first, error));
+    hedge.whenComplete((result, error) -> settle(winner, running, hedge, error));
+    CompletableFuture<T> won = await(winner);
+    if (won == hedge) {
+      hedgeWins.increment();
+    }
+    return won.join();
+  }
+
+  /**
+   * Complete `winner` with an attempt if it's the first to succeed, or
+   * with its error if it's the last to finish and nothing has.
+   */
+  private static <T> void settle(CompletableFuture<CompletableFuture<T>> winner, AtomicInteger running,
+      CompletableFuture<T> attempt, Throwable error) {
+    if (error == null) {
+      winner.complete(attempt);
+    } else if (running.decrementAndGet() == 0) {
+      winner.completeExceptionally(error);
+    }
+  }
+
+  private static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a read", e);
+    }
+  }
+
+  private <D, T> T attempt(MongoCollection<D> collection, BsonTimestamp after, Query<D, T> query) {
+    if (after == null) {
+      return query.run(collection, null);
+    }
+    try (ClientSession session = client.startSession(CAUSAL)) {
+      session.advanceOperationTime(after);
+      return query.run(collection, session);
+    }
+  }
+
+  private static RuntimeException unwrap(Throwable cause) {
+    return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+  }
+
+  /**
+   * Find documents, in a session if there is one.
+   *
+   * @param collection the collection to search
+   * @param session the session, or null
+   * @param filter the filter
+   * @return the matching documents
+   */
+  public static <D> FindIterable<D> find(MongoCollection<D> collection, ClientSession session, Bson filter) {
+    return session == null ? collection.find(filter) : collection.find(session, filter);
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the time the client's last write happened at (from its
+   *   `readAfter` cookie), or null if it hasn't told us one
+   */
+  public static BsonTimestamp readAfter(Context ctx) {
+    return parseToken(ctx.cookie(READ_AFTER_COOKIE));
+  }
+
+  static BsonTimestamp parseToken(String token) {
+    if (token == null) {
+      return null;
+    }
+    String[] parts = token.split("\\.");
+    try {
+      return parts.length == 2 ? new BsonTimestamp(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])) : null;
+    } catch (NumberFormatException e) {
+      // It's only a hint, so a mangled one is the same as none.
+      return null;
+    }
+  }
+
+  /**
+   * @return statistics on where reads went and how often they were hedged
+   */
+  public Map<String, Object> stats() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("listPreference", listPreference.toString());
+    result.put("hedgeAfterMillis", hedgeAfterMillis);
+    result.put("reads", reads.sum());
+    result.put("causalReads", causalReads.sum());
+    result.put("hedges", hedges.sum());
+    result.put("hedgeWins", hedgeWins.sum());
+    result.put("unhedged", unhedged.sum());
+    result.put("trackedWrites", trackedWrites.sum());
+    return result;
+  }
+
+  @Override
+  public void close() {
+    hedgeExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,97 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+import org.bson.RawBsonDocument;
+
+import umm3601.todo.TodoShards;
+
+/**
+ * Command line tool that moves todos to the shard they belong on (see
+ * `TodoShards`). Run it after adding a shard to the end of
+ * `TODO_SHARDS`, to move the owners the new shard takes over, or when
+ * first turning sharding on, to split up the existing `todos`
+ * collection.
+ *
+ * Options are given as `--name=value`:
+ *
+ *   --dry-run     "true" to just report how many todos would move
+ *                 (default false)
+ *   --from-home   "true" to also move the todos out of the `todos`
+ *                 collection of the `MONGO_ADDR` database, when first
+ *                 turning sharding on (default false)
+ *
+ * Like the server, it uses the `MONGO_ADDR`, `MONGO_DB`, and
+ * `TODO_SHARDS` environment variables. Todos are briefly on two shards
+ * while they're being moved, so it's best to stop the server first.
+ *
+ * Run it with `./gradlew rebalanceShards -PrebalanceArgs="--dry-run=true"`.
+ */
+public final class RebalanceShards {
+
+  private static final Set<String> OPTIONS = Set.of("dry-run", "from-home");
+
+  private RebalanceShards() {
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> options = parseOptions(args);
+    boolean dryRun = Boolean.parseBoolean(options.get("dry-run"));
+    boolean fromHome = Boolean.parseBoolean(options.get("from-home"));
+
+    String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
+    List<MongoClient> shardClients = Server.connectShards(System.getenv());
+    if (shardClients.isEmpty()) {
+      System.err.println("TODO_SHARDS isn't set, so there's nothing to rebalance");
+      System.exit(1);
+    }
+    TodoShards shards = new TodoShards(Server.shardDatabases(shardClients, databaseName));
+
+    List<MongoCollection<RawBsonDocument>> sources = new ArrayList<>(shards.collections());
+    MongoClient homeClient = null;
+    if (fromHome) {
+      homeClient = Seed.connect();
+      sources.add(homeClient.getDatabase(databaseName).getCollection("todos", RawBsonDocument.class));
+    }
+
+    long start = System.nanoTime();
+    long total = 0;
+    for (MongoCollection<RawBsonDocument> source : sources) {
+      long[] moved = shards.rebalance(source, dryRun);
+      for (int shard = 0; shard < moved.length; shard++) {
+        if (moved[shard] > 0) {
+          System.out.printf("%s %,d todos from %s to shard %d%n",
+            dryRun ? "Would move" : "Moved", moved[shard], source.getNamespace(), shard);
+          total += moved[shard];
+        }
+      }
+    }
+    Seed.report(dryRun ? "todos to move" : "todos moved", total, start);
+
+    if (homeClient != null) {
+      homeClient.close();
+    }
+    shardClients.forEach(MongoClient::close);
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = equals < 0 || !arg.startsWith("--") ? null : arg.substring(2, equals);
+      if (name == null || !OPTIONS.contains(name)) {
+        throw new IllegalArgumentException("Unknown option " + arg + "; options are --"
+          + String.join("=..., --", OPTIONS) + "=...");
+      }
+      options.put(name, arg.substring(equals + 1));
+    }
+    return options;
+  }
+}
@@ -0,0 +1,66 @@
+package umm3601;
+
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+import umm3601.todo.TodoController;
+import umm3601.todo.TodoShards;
+
+/**
+ * Command line tool that recomputes the per-owner and per-category
+ * todo counters from the todos themselves, fixing any drift (see
+ * `TodoCounters`). This reads every todo, which is why the server
+ * doesn't do it on startup, and why there's no API for it (anyone
+ * could use one to load the database). `Seed` and `GenerateData` run
+ * it after loading todos.
+ *
+ * Like the server, it uses the `MONGO_ADDR`, `MONGO_DB`,
+ * `TODO_SHARDS`, and `DICTIONARY_ENCODING` environment variables.
+ *
+ * Run it with `./gradlew rebuildCounters`.
+ */
+public final class RebuildCounters {
+
+  private RebuildCounters() {
+  }
+
+  public static void main(String[] args) {
+    String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
+    MongoClient mongoClient = Seed.connect();
+    rebuild(mongoClient.getDatabase(databaseName));
+    mongoClient.close();
+  }
+
+  /**
+   * Rebuild the todo counters using the dictionary and shards set by
+   * `DICTIONARY_ENCODING` and `TODO_SHARDS`, as the server does, so
+   * they're keyed and counted the same way.
+   */
+  static void rebuild(MongoDatabase database) {
+    Dictionary dictionary = Boolean.parseBoolean(System.getenv("DICTIONARY_ENCODING"))
+      ? new Dictionary(database)
+      : null;
+    List<MongoClient> shardClients = Server.connectShards(System.getenv());
+    try {
+      TodoShards shards = shardClients.isEmpty()
+        ? null
+        : new TodoShards(Server.shardDatabases(shardClients, database.getName()));
+      rebuild(database, dictionary, shards);
+    } finally {
+      shardClients.forEach(MongoClient::close);
+    }
+  }
+
+  /**
+   * Rebuild the todo counters, reporting how long it took.
+   */
+  static void rebuild(MongoDatabase database, Dictionary dictionary, TodoShards shards) {
+    long start = System.nanoTime();
+    Map<String, Integer> rebuilt = TodoController.rebuildCounters(database, dictionary, shards);
+    rebuilt.forEach((kind, count) -> System.out.printf("Rebuilt %,d %s counters%n", count, kind));
+    Seed.report("todo counters", rebuilt.values().stream().mapToLong(Integer::longValue).sum(), start);
+  }
+}
@@ -0,0 +1,254 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import org.bson.RawBsonDocument;
+
+import io.javalin.http.Context;
+
+/**
+ * Breaks down where the time handling a request goes, so a slow
+ * request can be pinned on Mongo, on decoding, or on writing JSON.
+ *
+ * A timer is started for each request (by a `before` handler) and
+ * kept on its context. Handlers wrap each phase of their work in
+ * `time`, or wrap a Mongo cursor in `fetching`, and the totals are
+ * sent back in a `Server-Timing` header, e.g.,
+ *
+ *   Server-Timing: db;dur=12.31, json;dur=3.02, total;dur=15.87
+ *
+ * which browsers' developer tools show next to the request. Phases
+ * are exclusive: time spent fetching from Mongo while writing JSON
+ * (as a cursor is read) counts as `db`, not `json`. What's nested is
+ * tracked per thread, so work for the same request on other threads
+ * (e.g., both attempts of a hedged read) is added to its own phases
+ * without being taken out of whatever this thread is timing.
+ *
+ * All it costs is a couple of `System.nanoTime` calls per phase (or
+ * per document fetched) and a few atomic adds; the header is only
+ * built once, at the end.
+ */
+public final class RequestTiming {
+
+  /**
+   * The phases of handling a request.
+   */
+  public enum Phase {
+    /** Waiting on Mongo, including reading results off a cursor. */
+    DB("db"),
+    /** Turning request bodies or stored documents into objects. */
+    DECODE("decode"),
+    /** Writing the response as JSON. */
+    JSON("json");
+
+    private final String metric;
+
+    Phase(String metric) {
+      this.metric = metric;
+    }
+
+    /**
+     * @return the name this phase has in a `Server-Timing` header
+     */
+    public String metric() {
+      return metric;
+    }
+  }
+
+  public static final String HEADER = "Server-Timing";
+
+  private static final String ATTRIBUTE = "requestTiming";
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  // The time each thread has counted towards any phase of any
+  // request, so `time` can tell how much of its work was counted by
+  // phases nested in it.
+  private static final ThreadLocal<long[]> THREAD_BUSY_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+  private final long startNanos = System.nanoTime();
+  private final long startEpochNanos = ChronoUnit.NANOS.between(Instant.EPOCH, Instant.now());
+
+  // Per phase: total (exclusive) time, and when it first started and
+  // last ended, relative to `startNanos`. Work for a request can run
+  // on other threads (e.g., a hedged read), hence the atomics.
+  private final AtomicLongArray busyNanos = new AtomicLongArray(PHASES.length);
+  private final AtomicLongArray firstStartNanos = new AtomicLongArray(PHASES.length);
+  private final AtomicLongArray lastEndNanos = new AtomicLongArray(PHASES.length);
+
+  /**
+   * Start timing a request.
+   *
+   * @param ctx the Javalin HTTP context of the request
+   * @return the new timer, which `of` will return from now on
+   */
+  public static RequestTiming start(Context ctx) {
+    RequestTiming timing = new RequestTiming();
+    ctx.attribute(ATTRIBUTE, timing);
+    return timing;
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the request's timer, or a new one that no one will look
+   *   at if it isn't being timed (e.g., in tests)
+   */
+  public static RequestTiming of(Context ctx) {
+    RequestTiming timing = ctx.attribute(ATTRIBUTE);
+    return timing == null ? new RequestTiming() : timing;
+  }
+
+  /**
+   * Do some work, and count the time it takes (less any time counted
+   * for other phases while it runs) towards a phase.
+   *
+   * @param phase the phase the work is part of
+   * @param work the work
+   * @return the work's result
+   */
+  public <T> T time(Phase phase, Supplier<T> work) {
+    long[] threadBusy = THREAD_BUSY_NANOS.get();
+    long nestedBefore = threadBusy[0];
+    long begin = System.nanoTime();
+    try {
+      return work.get();
+    } finally {
+      long end = System.nanoTime();
+      record(phase, begin, end, (end - begin) - (threadBusy[0] - nestedBefore));
+    }
+  }
+
+  /**
+   * Count the time spent getting each item from an iterable (usually
+   * a Mongo cursor, which fetches as it's read) towards `db`. Its
+   * iterators can be closed if the source's can (see `SortedMerge`).
+   *
+   * @param source the iterable
+   * @return an iterable with the same items
+   */
+  public <T> Iterable<T> fetching(Iterable<T> source) {
+    return () -> new Fetching<>(source.iterator());
+  }
+
+  private final class Fetching<T> implements Iterator<T>, Closeable {
+    private final Iterator<T> iterator;
+
+    Fetching(Iterator<T> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      long begin = System.nanoTime();
+      try {
+        return iterator.hasNext();
+      } finally {
+        long end = System.nanoTime();
+        record(Phase.DB, begin, end, end - begin);
+      }
+    }
+
+    @Override
+    public T next() {
+      long begin = System.nanoTime();
+      try {
+        return iterator.next();
+      } finally {
+        long end = System.nanoTime();
+        record(Phase.DB, begin, end, end - begin);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (iterator instanceof Closeable) {
+        ((Closeable) iterator).close();
+      }
+    }
+  }
+
+  /**
+   * Write documents (usually from a Mongo cursor) as a JSON array,
+   * counting the time spent fetching them towards `db` and the rest
+   * towards `json`.
+   *
+   * @param transcoder how to turn each document into JSON
+   * @param documents the documents
+   * @return the UTF-8 encoded JSON array
+   */
+  public byte[] toJsonArray(RawJsonTranscoder transcoder, Iterable<RawBsonDocument> documents) {
+    return time(Phase.JSON, () -> transcoder.toJsonArray(fetching(documents)));
+  }
+
+  private void record(Phase phase, long begin, long end, long busy) {
+    int i = phase.ordinal();
+    busyNanos.addAndGet(i, busy);
+    THREAD_BUSY_NANOS.get()[0] += busy;
+    // 0 means "hasn't run yet"; a phase that starts at exactly
+    // `startNanos` is recorded as starting 1ns later.
+    firstStartNanos.compareAndSet(i, 0, Math.max(1, begin - startNanos));
+    lastEndNanos.accumulateAndGet(i, end - startNanos, Math::max);
+  }
+
+  /**
+   * @return how long it's been since the request started, in nanoseconds
+   */
+  public long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  /**
+   * @return when the request started, in nanoseconds since the epoch
+   */
+  public long startEpochNanos() {
+    return startEpochNanos;
+  }
+
+  /**
+   * @return the total time counted towards a phase, in nanoseconds
+   */
+  public long busyNanos(Phase phase) {
+    return busyNanos.get(phase.ordinal());
+  }
+
+  /**
+   * @return when a phase first started, in nanoseconds after the
+   *   request did, or 0 if it never ran
+   */
+  public long firstStartNanos(Phase phase) {
+    return firstStartNanos.get(phase.ordinal());
+  }
+
+  /**
+   * @return when a phase last ended, in nanoseconds after the request
+   *   started, or 0 if it never ran
+   */
+  public long lastEndNanos(Phase phase) {
+    return lastEndNanos.get(phase.ordinal());
+  }
+
+  /**
+   * @return the value of a `Server-Timing` header with each phase that
+   *   ran and the total so far, in milliseconds
+   */
+  public String serverTiming() {
+    StringBuilder header = new StringBuilder();
+    for (Phase phase : PHASES) {
+      if (firstStartNanos(phase) != 0) {
+        header.append(String.format(Locale.ROOT, "%s;dur=%.2f, ",
+          phase.metric(), busyNanos(phase) / NANOS_PER_MILLI));
+      }
+    }
+    return header.append(String.format(Locale.ROOT, "total;dur=%.2f", elapsedNanos() / NANOS_PER_MILLI))
+      .toString();
+  }
+}
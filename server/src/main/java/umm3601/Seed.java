@@ -0,0 +1,244 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import umm3601.todo.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Command line tool that (re)seeds the database from JSON files,
+ * as a much faster replacement for `database/mongoseed.sh`.
+ *
+ * Each file is loaded into the collection with the same name (so
+ * `todos.json` goes into `todos`). Files can either hold one big JSON
+ * array, like the ones `mongoimport --jsonArray` takes, or be
+ * newline-delimited JSON with one document per line (`.ndjson` or
+ * `.jsonl`). Either way they can use Mongo's extended JSON, e.g.,
+ * `{"$oid": "..."}` for ids.
+ *
+ * Files are read with a streaming parser, and documents are handed
+ * off in batches to a pool of workers doing unordered `insertMany`s
+ * in parallel. Only a few batches are ever in memory at once, so
+ * this handles files of any size. Indexes are built once everything
+ * is loaded, which is much cheaper than updating them on every insert,
+ * and the todo counters are rebuilt at the end (see `RebuildCounters`).
+ *
+ * Like the server, it uses the `MONGO_ADDR` and `MONGO_DB` environment
+ * variables, and `SEED_WORKERS` sets how many inserts run at once
+ * (the default is one per processor). The arguments are the files, or
+ * directories of files, to load; with none it loads `../database/seed`.
+ *
+ * Run it with `./gradlew seed`.
+ */
+public final class Seed {
+
+  private static final String DEFAULT_SEED_DIRECTORY = "../database/seed";
+
+  private static final List<String> SEED_EXTENSIONS = List.of(".json", ".ndjson", ".jsonl");
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  // The indexes the server relies on, built after the data is loaded.
+  private static final Map<String, List<Bson>> INDEXES = Map.of(
+    "users", UserController.INDEXES,
+    "todos", TodoController.INDEXES);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private Seed() {
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
+
+    String[] paths = args.length == 0 ? new String[] {DEFAULT_SEED_DIRECTORY} : args;
+    List<Path> files = seedFiles(paths);
+    if (files.isEmpty()) {
+      System.err.println("No seed files found in " + String.join(" ", paths));
+      System.exit(1);
+    }
+
+    MongoClient mongoClient = connect();
+    MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+    System.out.println("Dropping DB " + databaseName);
+    database.drop();
+
+    long start = System.nanoTime();
+    long total = 0;
+    try (ParallelInserter inserter = new ParallelInserter(workers())) {
+      for (Path file : files) {
+        String collectionName = collectionName(file);
+        System.out.println("Seeding " + collectionName + " from " + file + " in DB " + databaseName);
+        long fileStart = System.nanoTime();
+        long count = load(file, database.getCollection(collectionName, RawBsonDocument.class), inserter);
+        report(collectionName, count, fileStart);
+        total += count;
+      }
+    }
+
+    createIndexes(database);
+    report("total", total, start);
+    // The todo counters went with the old database
+    RebuildCounters.rebuild(database);
+    mongoClient.close();
+  }
+
+  /**
+   * Connect to the Mongo server given by `MONGO_ADDR`, like the server does.
+   */
+  static MongoClient connect() {
+    return MongoClients.create(Server.mongoSettings(System.getenv()));
+  }
+
+  /**
+   * How many inserts to run at once, from `SEED_WORKERS`.
+   */
+  static int workers() {
+    return Integer.parseInt(System.getenv().getOrDefault(
+      "SEED_WORKERS", Integer.toString(Runtime.getRuntime().availableProcessors())));
+  }
+
+  /**
+   * Build the indexes the server relies on. This is done after the
+   * data is loaded, since building an index in one go is much cheaper
+   * than updating it on every insert.
+   */
+  static void createIndexes(MongoDatabase database) {
+    long start = System.nanoTime();
+    for (Map.Entry<String, List<Bson>> entry : INDEXES.entrySet()) {
+      for (Bson index : entry.getValue()) {
+        database.getCollection(entry.getKey()).createIndex(index);
+      }
+    }
+    System.out.printf("Built indexes in %.2f s%n", (System.nanoTime() - start) / NANOS_PER_SECOND);
+  }
+
+  /**
+   * Load every document in one file into a collection.
+   *
+   * @return how many documents were loaded
+   */
+  private static long load(Path file, MongoCollection<RawBsonDocument> collection, ParallelInserter inserter)
+      throws IOException, InterruptedException {
+    long count = 0;
+    try (InputStream in = Files.newInputStream(file); JsonParser parser = JSON_FACTORY.createParser(in)) {
+      JsonToken token = parser.nextToken();
+      // A JSON array holds the documents; otherwise the documents are
+      // just one after another at the top level (i.e., NDJSON).
+      if (token == JsonToken.START_ARRAY) {
+        token = parser.nextToken();
+      }
+      List<RawBsonDocument> batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+      while (token != null && token != JsonToken.END_ARRAY) {
+        if (token != JsonToken.START_OBJECT) {
+          throw new IOException(file + " should only contain JSON objects, but found " + token);
+        }
+        batch.add(readDocument(parser));
+        count++;
+        if (batch.size() == ParallelInserter.BATCH_SIZE) {
+          inserter.insert(collection, batch);
+          batch = new ArrayList<>(ParallelInserter.BATCH_SIZE);
+        }
+        token = parser.nextToken();
+      }
+      if (!batch.isEmpty()) {
+        inserter.insert(collection, batch);
+      }
+    }
+
+    // Wait for this file to finish, so the report is accurate and any
+    // failure is reported against the right file.
+    try {
+      inserter.awaitAll();
+    } catch (IllegalStateException e) {
+      throw new IllegalStateException("Failed to seed " + file, e.getCause());
+    }
+    return count;
+  }
+
+  /**
+   * Read the JSON object the parser is positioned at and turn it into
+   * BSON, honoring extended JSON like `{"$oid": "..."}`.
+   */
+  private static RawBsonDocument readDocument(JsonParser parser) throws IOException {
+    StringWriter json = new StringWriter();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+      generator.copyCurrentStructure(parser);
+    }
+    return RawBsonDocument.parse(json.toString());
+  }
+
+  /**
+   * Expand the command line arguments into the seed files to load,
+   * in a predictable order.
+   */
+  private static List<Path> seedFiles(String[] paths) throws IOException {
+    List<Path> files = new ArrayList<>();
+    for (String path : paths) {
+      Path p = Paths.get(path);
+      if (Files.isDirectory(p)) {
+        try (Stream<Path> children = Files.list(p)) {
+          files.addAll(children
+            .filter(child -> Files.isRegularFile(child) && seedExtension(child) != null)
+            .sorted()
+            .collect(Collectors.toList()));
+        }
+      } else if (seedExtension(p) != null) {
+        files.add(p);
+      } else {
+        throw new IllegalArgumentException(path + " isn't a seed file (.json, .ndjson, or .jsonl)");
+      }
+    }
+    return files;
+  }
+
+  /**
+   * The collection a seed file goes in: its name without the extension.
+   */
+  private static String collectionName(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.length() - seedExtension(file).length());
+  }
+
+  private static String seedExtension(Path file) {
+    String name = file.getFileName().toString();
+    for (String extension : SEED_EXTENSIONS) {
+      if (name.endsWith(extension)) {
+        return extension;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Print how many documents were loaded and how fast.
+   */
+  static void report(String what, long count, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+    System.out.printf("%s: %,d documents in %.2f s (%,.0f docs/sec)%n",
+      what, count, seconds, seconds == 0 ? 0.0 : count / seconds);
+  }
+}
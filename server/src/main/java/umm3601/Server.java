@@ -1,6 +1,11 @@
 package umm3601;
 
-import java.util.Arrays;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
@@ -13,34 +18,176 @@ import io.javalin.core.util.RouteOverviewPlugin;
 import io.javalin.http.InternalServerErrorResponse;
 import umm3601.user.UserController;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoShards;
+import umm3601.suggest.SuggestController;
 
 public class Server {
 
   private static final int PORT_NUMBER = 4567;
 
+  private static final int MAX_BY_ID_BATCH_SIZE = 100;
+
+  private static final int FEED_WRITER_THREADS = 8;
+  private static final int FEED_QUEUE_CAPACITY = 256;
+
+  private static final Duration ARCHIVE_INTERVAL = Duration.ofMinutes(10);
+
+  /**
+   * Build the settings for connecting to Mongo from environment
+   * variables. `MONGO_ADDR` is the server's address (default
+   * "localhost"), or a comma separated list of addresses of members
+   * of a replica set, e.g., `localhost:27017,localhost:27018`. If
+   * `MONGO_REPLICA_SET` is set, we only connect to members of the
+   * replica set with that name.
+   *
+   * @param env where to look up the settings (usually `System.getenv()`)
+   * @return the settings
+   */
+  static MongoClientSettings mongoSettings(Map<String, String> env) {
+    List<ServerAddress> hosts = new ArrayList<>();
+    for (String address : env.getOrDefault("MONGO_ADDR", "localhost").split(",")) {
+      hosts.add(new ServerAddress(address.trim()));
+    }
+    return MongoClientSettings
+      .builder()
+      .applyToClusterSettings(builder -> {
+        builder.hosts(hosts);
+        if (env.containsKey("MONGO_REPLICA_SET")) {
+          builder.requiredReplicaSetName(env.get("MONGO_REPLICA_SET"));
+        }
+      })
+      .build();
+  }
+
+  /**
+   * Connect to the shards the todos are split over, if there are any.
+   * `TODO_SHARDS` is a semicolon separated list of shards, each given
+   * the same way as `MONGO_ADDR` (so a shard can be a replica set),
+   * e.g., `shard0:27017;shard1a:27017,shard1b:27017`. Shards can be
+   * added to the end of the list, but never removed or reordered (see
+   * `TodoShards`).
+   *
+   * @param env where to look up the settings (usually `System.getenv()`)
+   * @return a client for each shard, in order, or an empty list if
+   *   the todos aren't sharded
+   */
+  static List<MongoClient> connectShards(Map<String, String> env) {
+    List<MongoClient> clients = new ArrayList<>();
+    String shards = env.getOrDefault("TODO_SHARDS", "").trim();
+    if (shards.isEmpty()) {
+      return clients;
+    }
+    for (String shard : shards.split(";")) {
+      Map<String, String> shardEnv = new HashMap<>();
+      shardEnv.put("MONGO_ADDR", shard.trim());
+      clients.add(MongoClients.create(mongoSettings(shardEnv)));
+    }
+    return clients;
+  }
+
+  /**
+   * @return the database with the given name on each shard, in order
+   */
+  static List<MongoDatabase> shardDatabases(List<MongoClient> clients, String databaseName) {
+    List<MongoDatabase> databases = new ArrayList<>();
+    for (MongoClient client : clients) {
+      databases.add(client.getDatabase(databaseName));
+    }
+    return databases;
+  }
+
   public static void main(String[] args) {
 
-    // Get the MongoDB address and database name from environment variables and
-    // if they aren't set, use the defaults of "localhost" and "dev".
-    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    // Get the database name from an environment variable and if it
+    // isn't set, use the default of "dev".
     String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
 
-    // Setup the MongoDB client object with the information we set earlier
-    MongoClient mongoClient
-      = MongoClients.create(MongoClientSettings
-        .builder()
-        .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
-        .build());
+    // Setup the MongoDB client object (see `mongoSettings` for where
+    // it connects to)
+    MongoClient mongoClient = MongoClients.create(mongoSettings(System.getenv()));
 
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
     // Initialize dependencies
-    UserController userController = new UserController(database);
-    TodoController todoController = new TodoController(database);
+    // Storing todo categories and user roles and companies as small
+    // integer codes is opt-in: set DICTIONARY_ENCODING=true.
+    Dictionary dictionary = Boolean.parseBoolean(System.getenv("DICTIONARY_ENCODING"))
+      ? new Dictionary(database)
+      : null;
+    // Splitting the todos over several Mongo deployments is opt-in:
+    // set TODO_SHARDS (see `connectShards`). Everything else stays in
+    // `database`.
+    List<MongoClient> shardClients = connectShards(System.getenv());
+    TodoShards todoShards = shardClients.isEmpty()
+      ? null
+      : new TodoShards(shardDatabases(shardClients, databaseName));
+    UserController userController = new UserController(database, dictionary);
+    TodoController todoController = new TodoController(database, dictionary, todoShards);
+    if (todoShards != null) {
+      userController.enableTodoShards(todoShards);
+    }
+
+    // Where list queries read from when there's a replica set; see
+    // `ReadRouting` for the settings.
+    ReadRouting readRouting = ReadRouting.fromEnvironment(mongoClient, System.getenv());
+    userController.enableReadRouting(readRouting);
+    todoController.enableReadRouting(readRouting);
+
+    // Batching concurrent by-id lookups into one query is opt-in: set
+    // BY_ID_BATCH_WINDOW_MICROS to how long to wait for a batch to fill.
+    long batchWindowMicros = Long.parseLong(System.getenv().getOrDefault("BY_ID_BATCH_WINDOW_MICROS", "0"));
+    if (batchWindowMicros > 0) {
+      Duration batchWindow = Duration.of(batchWindowMicros, ChronoUnit.MICROS);
+      userController.enableByIdBatching(batchWindow, MAX_BY_ID_BATCH_SIZE);
+      todoController.enableByIdBatching(batchWindow, MAX_BY_ID_BATCH_SIZE);
+    }
+
+    // Archiving completed todos is opt-in too: set ARCHIVE_AFTER_DAYS
+    // to how long a todo has to have been around before it's archived.
+    long archiveAfterDays = Long.parseLong(System.getenv().getOrDefault("ARCHIVE_AFTER_DAYS", "0"));
+    if (archiveAfterDays > 0) {
+      todoController.enableArchiving(Duration.ofDays(archiveAfterDays), ARCHIVE_INTERVAL);
+    }
+
+    SuggestController suggestController = new SuggestController(Map.of(
+      "owner", todoController.getOwnerSuggester(),
+      "category", todoController.getCategorySuggester(),
+      "company", userController.getCompanySuggester()));
+
+    // Live clients get adds and deletes pushed to them as they happen
+    ChangeFeed changeFeed = new ChangeFeed(FEED_WRITER_THREADS, FEED_QUEUE_CAPACITY);
+    userController.publishChangesTo(changeFeed);
+    todoController.publishChangesTo(changeFeed);
+
+    Metrics metrics = new Metrics();
+    metrics.register("coalescing.users", userController::listQueryStats);
+    metrics.register("coalescing.todos", todoController::listQueryStats);
+    metrics.register("batching.users", userController::byIdBatchStats);
+    metrics.register("batching.todos", todoController::byIdBatchStats);
+    metrics.register("feed", changeFeed::stats);
+    metrics.register("archive.todos", todoController::archiveStats);
+    metrics.register("reads", readRouting::stats);
+
+    // Requests and errors are logged (as JSON lines) to files in
+    // LOG_DIR, without making requests wait on the disk; see `AsyncLog`.
+    AsyncLog accessLog = AsyncLog.fromEnvironment(System.getenv(), "access.log");
+    AsyncLog errorLog = AsyncLog.fromEnvironment(System.getenv(), "error.log");
+    metrics.register("logs.access", accessLog::stats);
+    metrics.register("logs.errors", errorLog::stats);
+
+    // Keeping traces of slow (and a sample of other) requests is
+    // opt-in: set TRACE_FILE or TRACE_OTLP_ENDPOINT (see `Tracer`).
+    Tracer tracer = Tracer.fromEnvironment(System.getenv());
+    if (tracer != null) {
+      metrics.register("traces", tracer::stats);
+    }
 
     Javalin server = Javalin.create(config -> {
       config.registerPlugin(new RouteOverviewPlugin("/api"));
+      // Use our own Jetty setup so we get HTTP/2 (h2c) and tuned
+      // connection handling instead of Javalin's defaults.
+      config.server(new JettyServerFactory(System.getenv(), PORT_NUMBER));
     });
     /*
      * We want to shut the `mongoClient` down if the server either
@@ -52,48 +199,136 @@ public class Server {
     server.events(event -> {
       event.serverStartFailed(mongoClient::close);
       event.serverStopped(mongoClient::close);
+      event.serverStartFailed(() -> shardClients.forEach(MongoClient::close));
+      event.serverStopped(() -> shardClients.forEach(MongoClient::close));
+      event.serverStopped(changeFeed::close);
+      event.serverStopped(readRouting::close);
+      if (tracer != null) {
+        event.serverStopped(tracer::close);
+      }
+      event.serverStopped(accessLog::close);
+      event.serverStopped(errorLog::close);
     });
     Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
+    observeRequests(server, accessLog, errorLog, tracer);
+
     server.start(PORT_NUMBER);
 
+    addRoutes(server, userController, todoController, suggestController, changeFeed, metrics);
+  }
+
+  /**
+   * Time and log every request (see `RequestTiming` and `AsyncLog`),
+   * keep traces of the ones `tracer` wants (if there is a tracer), and
+   * log every uncaught exception.
+   */
+  private static void observeRequests(Javalin server, AsyncLog accessLog, AsyncLog errorLog, Tracer tracer) {
+    // Time every request, and tell the client where the time went in
+    // a `Server-Timing` header (see `RequestTiming`). Streamed
+    // responses (like exports) have already been sent by the time the
+    // `after` handlers run, so they don't get one.
+    server.before(RequestTiming::start);
+    server.after(ctx -> {
+      RequestTiming timing = RequestTiming.of(ctx);
+      ctx.header(RequestTiming.HEADER, timing.serverTiming());
+      accessLog.access(ctx.method(), ctx.path(), ctx.queryString(), ctx.endpointHandlerPath(), ctx.status(),
+        ctx.ip(), timing);
+      if (tracer != null) {
+        tracer.finish(ctx.method() + " " + ctx.endpointHandlerPath(), ctx.status(), timing);
+      }
+    });
+
+    // This catches any uncaught exceptions thrown in the server
+    // code and turns them into a 500 response ("Internal Server
+    // Error Response"). In general you'll like to *never* actually
+    // return this, as it's an instance of the server crashing in
+    // some way, and returning a 500 to your user is *super*
+    // unhelpful to them. So each one is logged, stack trace and all,
+    // to `error.log`, so we know about them and can address them.
+    server.exception(Exception.class, (e, ctx) -> {
+      errorLog.error(ctx.method(), ctx.path(), e);
+      throw new InternalServerErrorResponse(e.toString());
+    });
+  }
+
+  /**
+   * Add the API's routes, each group behind its own concurrency limit.
+   */
+  private static void addRoutes(Javalin server, UserController userController, TodoController todoController,
+      SuggestController suggestController, ChangeFeed changeFeed, Metrics metrics) {
+    // Each group of routes gets its own adaptive limit on how many
+    // requests can be waiting on Mongo at once, so a slow collection
+    // can't tie up every server thread.
+    ConcurrencyLimiter userLimiter = new ConcurrencyLimiter("user");
+    ConcurrencyLimiter todoLimiter = new ConcurrencyLimiter("todo");
+    metrics.register("limiter.users", userLimiter::stats);
+    metrics.register("limiter.todos", todoLimiter::stats);
+
     // List users, filtered using query parameters
-    server.get("/api/users", userController::getUsers);
+    server.get("/api/users", userLimiter.limit(userController::getUsers));
 
     // List todos, filtered using query parameters
-    server.get("/api/todos", todoController::getTodos);
+    server.get("/api/todos", todoLimiter.limit(todoController::getTodos));
+
+    // Stream out all the users, or all the todos, for bulk exports.
+    // These aren't behind the limiters: an export holds its request
+    // open for a long time, which would throw off their latency
+    // measurements.
+    server.get("/api/users/export", userController::exportUsers);
+    server.get("/api/todos/export", todoController::exportTodos);
+
+    // List the todos owned by the specified user
+    server.get("/api/users/{id}/todos", userLimiter.limit(userController::getUserTodos));
 
     // Get the specified user
-    server.get("/api/users/{id}", userController::getUser);
+    server.get("/api/users/{id}", userLimiter.limit(userController::getUser));
+
+    // Get the todos added or deleted since a client last asked
+    server.get("/api/todos/changes", todoLimiter.limit(todoController::getChanges));
+
+    // Get running totals of todos per owner or per category
+    server.get("/api/todos/counters", todoLimiter.limit(todoController::getCounters));
 
     // Get the specified todo
-    server.get("/api/todos/{id}", todoController::getTodo);
+    server.get("/api/todos/{id}", todoLimiter.limit(todoController::getTodo));
 
     // Delete the specified user
-    server.delete("/api/users/{id}", userController::deleteUser);
+    server.delete("/api/users/{id}", userLimiter.limit(userController::deleteUser));
 
     // Delete the specified todo
-    server.delete("/api/todos/{id}", todoController::deleteTodo);
+    server.delete("/api/todos/{id}", todoLimiter.limit(todoController::deleteTodo));
+
+    // Get several users at once, with their ids in the JSON body
+    server.post("/api/users/_mget", userLimiter.limit(userController::getUsersById));
+
+    // Get several todos at once, with their ids in the JSON body
+    server.post("/api/todos/_mget", todoLimiter.limit(todoController::getTodosById));
 
     // Add new user with the user info being in the JSON body
     // of the HTTP request
-    server.post("/api/users", userController::addNewUser);
+    server.post("/api/users", userLimiter.limit(userController::addNewUser));
+
+    // Change some fields of the specified todo
+    server.patch("/api/todos/{id}", todoLimiter.limit(todoController::updateTodo));
+
+    // Set the status of all the todos that match the filters
+    server.patch("/api/todos", todoLimiter.limit(todoController::updateTodos));
 
     // Add a new todo with the todo info being in the JSON body
     // of the HTTP request
-    server.post("/api/todos", todoController::addNewTodo);
+    server.post("/api/todos", todoLimiter.limit(todoController::addNewTodo));
 
-    // This catches any uncaught exceptions thrown in the server
-    // code and turns them into a 500 response ("Internal Server
-    // Error Response"). In general you'll like to *never* actually
-    // return this, as it's an instance of the server crashing in
-    // some way, and returning a 500 to your user is *super*
-    // unhelpful to them. In a production system you'd almost
-    // certainly want to use a logging library to log all errors
-    // caught here so you'd know about them and could try to address
-    // them.
-    server.exception(Exception.class, (e, ctx) -> {
-      throw new InternalServerErrorResponse(e.toString());
-    });
+    // A live feed (Server-Sent Events) of users and todos being added
+    // and deleted, optionally filtered by `collection`, `owner`, and
+    // `category`. This isn't behind a limiter, since each subscriber
+    // stays connected indefinitely.
+    server.sse("/api/changes/live", changeFeed::subscribe);
+
+    // Typeahead suggestions for owners, categories, and companies
+    server.get("/api/suggest", suggestController::getSuggestions);
+
+    // Report server statistics (concurrency limits, etc.)
+    server.get("/api/metrics", metrics::getMetrics);
   }
 }
@@ -0,0 +1,94 @@
+package umm3601;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure that only one copy of a given piece of work is running
+ * at a time. If a second caller asks for the same key while the first
+ * is still working on it, the second caller just waits for (and
+ * shares) the first caller's result instead of doing the work again.
+ *
+ * Nothing is cached once the work finishes; this only collapses
+ * requests that actually overlap in time.
+ *
+ * @param <K> the type of the keys identifying the work
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+  private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder executions = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * Do the work for `key`, or wait for a copy of it that's already
+   * in progress.
+   *
+   * @param key identifies the work; calls with equal keys are shared
+   * @param work does the work if no one else already is
+   * @return the result of the work
+   */
+  public V run(K key, Supplier<V> work) {
+    CompletableFuture<V> ours = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, ours);
+
+    if (existing != null) {
+      coalesced.increment();
+      try {
+        return existing.join();
+      } catch (CompletionException e) {
+        // Rethrow whatever the caller doing the work saw, so all the
+        // waiting requests fail the same way it did.
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    executions.increment();
+    try {
+      V result = work.get();
+      ours.complete(result);
+      return result;
+    } catch (RuntimeException | Error e) {
+      ours.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, ours);
+    }
+  }
+
+  /**
+   * @return how many calls actually did the work
+   */
+  public long getExecutionCount() {
+    return executions.sum();
+  }
+
+  /**
+   * @return how many calls shared someone else's work
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  /**
+   * @return a snapshot of the coalescing statistics, for reporting
+   */
+  public Map<String, Object> stats() {
+    long executed = executions.sum();
+    long shared = coalesced.sum();
+    long total = executed + shared;
+    return Map.of(
+      "executions", executed,
+      "coalesced", shared,
+      "coalescingRatio", total == 0 ? 0.0 : (double) shared / total);
+  }
+}
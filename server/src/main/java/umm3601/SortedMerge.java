@@ -0,0 +1,227 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonDocument;
+import org.bson.BsonNumber;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+/**
+ * Merges several lists of documents, each already sorted the same
+ * way, into one sorted list, the way Mongo would have sorted them if
+ * they'd all been in one collection.
+ *
+ * This is a k-way merge: it only ever looks at the next document from
+ * each source, so each source can be a cursor with `sort` and `limit`
+ * applied in the database, and only `skip + limit` documents are read
+ * from any of them.
+ */
+public final class SortedMerge {
+
+  // The order Mongo sorts values of different types in. Types in the
+  // same group are compared with each other by value.
+  private static final List<List<BsonType>> TYPE_ORDER = List.of(
+    List.of(BsonType.MIN_KEY),
+    List.of(BsonType.NULL, BsonType.UNDEFINED),
+    List.of(BsonType.INT32, BsonType.INT64, BsonType.DOUBLE, BsonType.DECIMAL128),
+    List.of(BsonType.SYMBOL, BsonType.STRING),
+    List.of(BsonType.DOCUMENT),
+    List.of(BsonType.ARRAY),
+    List.of(BsonType.BINARY),
+    List.of(BsonType.OBJECT_ID),
+    List.of(BsonType.BOOLEAN),
+    List.of(BsonType.DATE_TIME),
+    List.of(BsonType.TIMESTAMP),
+    List.of(BsonType.REGULAR_EXPRESSION),
+    List.of(BsonType.MAX_KEY));
+
+  private SortedMerge() {
+  }
+
+  /**
+   * Compare documents by one field, the way a Mongo `sort` on that
+   * field does. Ties are broken by `_id` (in the same direction), so
+   * the merged order is the same every time. Sort each source with
+   * `sort(field, descending)` so it's in this order too.
+   *
+   * @param field the field to sort by
+   * @param descending whether to sort from largest to smallest
+   * @return the comparator
+   */
+  public static <T extends BsonDocument> Comparator<T> comparator(String field, boolean descending) {
+    Comparator<T> order = (a, b) -> compareValues(a.get(field), b.get(field));
+    order = order.thenComparing((a, b) -> compareValues(a.get("_id"), b.get("_id")));
+    return descending ? order.reversed() : order;
+  }
+
+  /**
+   * The Mongo sort that puts documents in the same order as
+   * `comparator(field, descending)`. Both directions can be read off
+   * an index on `{ field: 1, _id: 1 }`.
+   *
+   * @param field the field to sort by
+   * @param descending whether to sort from largest to smallest
+   * @return the sort
+   */
+  public static Bson sort(String field, boolean descending) {
+    List<String> fields = field.equals("_id") ? List.of("_id") : List.of(field, "_id");
+    return descending ? Sorts.descending(fields) : Sorts.ascending(fields);
+  }
+
+  /**
+   * Merge sorted sources into one sorted list. Sources that aren't
+   * read to the end (because the list is full) are closed, if they
+   * can be, so no cursors are left open on the server.
+   *
+   * @param sources the sources, each sorted by `order`
+   * @param order how the sources are sorted
+   * @param skip how many documents to leave off the front
+   * @param limit the most documents to return (0 means no limit)
+   * @return the merged documents
+   */
+  public static <T> List<T> merge(List<? extends Iterable<T>> sources, Comparator<? super T> order,
+      int skip, int limit) {
+    try (Merged<T> merged = merged(sources, order)) {
+      for (int skipped = 0; skipped < skip && merged.hasNext(); skipped++) {
+        merged.next();
+      }
+      List<T> result = new ArrayList<>();
+      while (merged.hasNext() && (limit == 0 || result.size() < limit)) {
+        result.add(merged.next());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Merge sorted sources lazily: each source is only read as far as
+   * the result has been, so arbitrarily many documents can be streamed
+   * through it (e.g., to an export) without holding them all. Every
+   * source is opened (e.g., its query run) straight away, so close the
+   * result when done with it.
+   *
+   * @param sources the sources, each sorted by `order`
+   * @param order how the sources are sorted
+   * @return the merged documents
+   */
+  public static <T> Merged<T> merged(List<? extends Iterable<T>> sources, Comparator<? super T> order) {
+    return new Merged<>(sources, order);
+  }
+
+  /**
+   * The documents from several sorted sources, merged as they're read.
+   * Closing it closes each source's iterator that can be closed (like
+   * a `MongoCursor`), whether or not it's been read to the end.
+   */
+  public static final class Merged<T> implements Iterator<T>, Closeable {
+    private final List<Iterator<T>> opened = new ArrayList<>();
+    private final PriorityQueue<Head<T>> heads;
+
+    private Merged(List<? extends Iterable<T>> sources, Comparator<? super T> order) {
+      heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> order.compare(a.value, b.value));
+      try {
+        for (Iterable<T> source : sources) {
+          Iterator<T> iterator = source.iterator();
+          opened.add(iterator);
+          if (iterator.hasNext()) {
+            heads.add(new Head<>(iterator.next(), iterator));
+          }
+        }
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+      Head<T> head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      if (head.rest.hasNext()) {
+        heads.add(new Head<>(head.rest.next(), head.rest));
+      }
+      return head.value;
+    }
+
+    @Override
+    public void close() {
+      heads.clear();
+      for (Iterator<T> iterator : opened) {
+        if (iterator instanceof Closeable) {
+          try {
+            ((Closeable) iterator).close();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      }
+    }
+  }
+
+  private static int compareValues(BsonValue a, BsonValue b) {
+    BsonType typeA = a == null ? BsonType.NULL : a.getBsonType();
+    BsonType typeB = b == null ? BsonType.NULL : b.getBsonType();
+    int byType = Integer.compare(typeRank(typeA), typeRank(typeB));
+    if (byType != 0 || a == null || b == null) {
+      return byType;
+    }
+    switch (typeA) {
+      case INT32:
+      case INT64:
+      case DOUBLE:
+      case DECIMAL128:
+        return Double.compare(((BsonNumber) a).doubleValue(), ((BsonNumber) b).doubleValue());
+      case STRING:
+        return a.asString().getValue().compareTo(b.asString().getValue());
+      case OBJECT_ID:
+        return a.asObjectId().getValue().compareTo(b.asObjectId().getValue());
+      case BOOLEAN:
+        return Boolean.compare(a.asBoolean().getValue(), b.asBoolean().getValue());
+      case DATE_TIME:
+        return Long.compare(a.asDateTime().getValue(), b.asDateTime().getValue());
+      case TIMESTAMP:
+        return a.asTimestamp().compareTo(b.asTimestamp());
+      default:
+        // We don't sort on anything else, so treat them as equal.
+        return 0;
+    }
+  }
+
+  private static int typeRank(BsonType type) {
+    for (int i = 0; i < TYPE_ORDER.size(); i++) {
+      if (TYPE_ORDER.get(i).contains(type)) {
+        return i;
+      }
+    }
+    return TYPE_ORDER.size();
+  }
+
+  private static final class Head<T> {
+    private final T value;
+    private final Iterator<T> rest;
+
+    Head(T value, Iterator<T> rest) {
+      this.value = value;
+      this.rest = rest;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package umm3601;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+
+import org.bson.RawBsonDocument;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Streams a whole (filtered) collection to the client as NDJSON or
+ * CSV, for bulk exports.
+ *
+ * Unlike the list endpoints, nothing is collected into a response
+ * body first: documents are pulled from the cursor a batch at a time
+ * and written straight to the HTTP response, so memory use stays the
+ * same no matter how many documents there are. If the client accepts
+ * gzip, the output is compressed on the fly as it's written.
+ */
+public final class StreamingExport {
+
+  private static final String FORMAT_KEY = "format";
+
+  // How many documents Mongo sends back per `getMore`. Bigger batches
+  // mean fewer round trips; this keeps each batch to a few hundred KB.
+  private static final int BATCH_SIZE = 2000;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The formats an export can be in.
+   */
+  public enum Format {
+    /** Newline-delimited JSON, one document per line. */
+    NDJSON("application/x-ndjson", "ndjson"),
+    /** Comma-separated values, with a header row. */
+    CSV("text/csv; charset=utf-8", "csv");
+
+    private final String contentType;
+    private final String extension;
+
+    Format(String contentType, String extension) {
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+
+    /**
+     * Parse the `format` query parameter.
+     *
+     * @param param the value of the parameter, or null if there wasn't one
+     * @return the format (NDJSON if there was no parameter)
+     */
+    public static Format fromParam(String param) {
+      if (param == null) {
+        return NDJSON;
+      }
+      try {
+        return valueOf(param.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new BadRequestResponse("The export format must be one of ndjson or csv");
+      }
+    }
+  }
+
+  private StreamingExport() {
+  }
+
+  /**
+   * Stream the documents found by a query to the client, in the
+   * format given by the `format` query parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param name the base name of the file the client should save
+   * @param transcoder how to turn each document into output
+   * @param documents the (not yet started) query
+   * @throws IOException if writing the response fails
+   */
+  public static void send(Context ctx, String name, RawJsonTranscoder transcoder,
+      FindIterable<RawBsonDocument> documents) throws IOException {
+    send(ctx, name, transcoder, List.of(documents), null);
+  }
+
+  /**
+   * Stream the documents found by several queries (e.g., one per
+   * shard) to the client, merged into one sorted stream as they're
+   * read (see `SortedMerge.merged`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param name the base name of the file the client should save
+   * @param transcoder how to turn each document into output
+   * @param sources the (not yet started) queries, each sorted by `order`
+   * @param order how the queries are sorted, which can only be null if
+   *   there's just one
+   * @throws IOException if writing the response fails
+   */
+  public static void send(Context ctx, String name, RawJsonTranscoder transcoder,
+      List<FindIterable<RawBsonDocument>> sources, Comparator<RawBsonDocument> order) throws IOException {
+    // Check the parameters before anything is written, since once
+    // we've started streaming it's too late to send an error.
+    Format format = Format.fromParam(ctx.queryParam(FORMAT_KEY));
+    boolean gzip = acceptsGzip(ctx);
+
+    ctx.contentType(format.contentType);
+    ctx.header("Content-Disposition", "attachment; filename=\"" + name + "." + format.extension + "\"");
+    ctx.header("Vary", "Accept-Encoding");
+    if (gzip) {
+      ctx.header("Content-Encoding", "gzip");
+    }
+
+    // We write to the servlet response ourselves (rather than handing
+    // Javalin a result) so the output is never buffered in full.
+    OutputStream out = ctx.res.getOutputStream();
+    if (gzip) {
+      out = new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+    // The cursors are closed however the export ends, so a client
+    // that goes away partway through doesn't leave them open on the
+    // server until they time out.
+    List<MongoCursor<RawBsonDocument>> cursors = new ArrayList<>();
+    try (OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE)) {
+      List<Iterable<RawBsonDocument>> opened = new ArrayList<>();
+      for (FindIterable<RawBsonDocument> source : sources) {
+        MongoCursor<RawBsonDocument> cursor = source.batchSize(BATCH_SIZE).iterator();
+        cursors.add(cursor);
+        opened.add(() -> cursor);
+      }
+      Iterator<RawBsonDocument> documents = cursors.size() == 1
+        ? cursors.get(0)
+        : SortedMerge.merged(opened, order);
+      if (format == Format.CSV) {
+        transcoder.writeCsv(() -> documents, buffered);
+      } else {
+        transcoder.writeNdjson(() -> documents, buffered);
+      }
+    } finally {
+      cursors.forEach(MongoCursor::close);
+    }
+  }
+
+  private static boolean acceptsGzip(Context ctx) {
+    String acceptEncoding = Objects.requireNonNullElse(ctx.header("Accept-Encoding"), "");
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        // Respect an explicit "gzip;q=0", which means "no gzip, please".
+        return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+}
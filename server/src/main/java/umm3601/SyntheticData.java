@@ -0,0 +1,302 @@
+package umm3601;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Generates any number of realistic looking users and todos, for
+ * testing how the server behaves with production sized data.
+ *
+ * Everything is derived from a single seed, so the same settings
+ * always produce exactly the same documents (ids included), which
+ * makes benchmark runs repeatable.
+ *
+ * The data is deliberately skewed the way real data is:
+ *
+ *   - Todo owners are user names, picked from a Zipf distribution, so
+ *     a few users own a large share of the todos and most own only a
+ *     handful.
+ *   - There are a configurable number of categories, also Zipfian.
+ *   - A configurable fraction of the todos are complete.
+ *   - Todo bodies are lorem ipsum with a long-tailed (log-normal)
+ *     number of words: mostly a sentence or two, occasionally a lot.
+ *
+ * Ids are made of a timestamp and the document's position, so todos
+ * are spread over a year and sort by id in the order they were made.
+ */
+public class SyntheticData {
+
+  private static final List<String> FIRST_NAMES = List.of(
+    "Connie", "Lynn", "Kitty", "Marcy", "Lynda", "Sullivan", "Shannon", "Blanche", "Fry", "Roberta",
+    "Dawn", "Barry", "Workman", "Chris", "Pat", "Jamie", "Sam", "Alex", "Morgan", "Taylor",
+    "Jordan", "Casey", "Riley", "Avery", "Quinn", "Rowan", "Emerson", "Harper", "Kendall", "Reese");
+
+  private static final List<String> LAST_NAMES = List.of(
+    "Stewart", "Ferguson", "Page", "Pugh", "Dillard", "Thompson", "Mcdonald", "Bray", "Cole", "Reeves",
+    "Whitehead", "Wagner", "Nash", "Hardy", "Bishop", "Mathews", "Frost", "Gilmore", "Kline", "Rios",
+    "Mercer", "Hahn", "Lambert", "Ortega", "Beasley", "Pace", "Snow", "Vance", "Cherry", "Moss");
+
+  private static final List<String> CATEGORIES = List.of(
+    "software design", "video games", "homework", "groceries");
+
+  private static final List<String> ROLES = List.of("viewer", "editor", "admin");
+
+  private static final List<String> LOREM = List.of((
+    "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor incididunt ut labore et "
+    + "dolore magna aliqua enim ad minim veniam quis nostrud exercitation ullamco laboris nisi aliquip ex ea "
+    + "commodo consequat duis aute irure in reprehenderit voluptate velit esse cillum fugiat nulla pariatur "
+    + "excepteur sint occaecat cupidatat non proident sunt culpa qui officia deserunt mollit anim id est laborum")
+    .split(" "));
+
+  private static final int COMPANY_COUNT = 50;
+
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 80;
+
+  // Role weights, out of 100, in the same order as ROLES
+  private static final int VIEWER_PERCENT = 70;
+  private static final int EDITOR_PERCENT = 20;
+  private static final int PERCENT = 100;
+
+  // A log-normal number of words: a median of about 15, with a long tail
+  private static final double BODY_WORDS_MU = 2.7;
+  private static final double BODY_WORDS_SIGMA = 0.6;
+  private static final int MAX_BODY_WORDS = 400;
+  private static final int WORDS_PER_SENTENCE = 12;
+
+  // 2021-01-01T00:00:00Z, and a year after that
+  private static final int FIRST_TIMESTAMP = 1_609_459_200;
+  private static final int TIMESTAMP_SPAN = 365 * 24 * 60 * 60;
+
+  // Distinguish the ids of the two kinds of document
+  private static final int USER_ID_TAG = 0x75736572;
+  private static final int TODO_ID_TAG = 0x746f646f;
+
+  private static final int OBJECT_ID_BYTES = 12;
+
+  // Keep the random streams for users and todos apart, so that
+  // generating one doesn't change the other
+  private static final long TODO_SEED_OFFSET = 0x9E3779B97F4A7C15L;
+
+  private final long seed;
+  private final int userCount;
+  private final int categoryCount;
+  private final double completeRatio;
+  private final double[] ownerCdf;
+  private final double[] categoryCdf;
+
+  /**
+   * Set up a generator.
+   *
+   * @param seed the random seed; the same seed gives the same data
+   * @param userCount how many users there are (and so how many owners)
+   * @param categoryCount how many distinct categories the todos have
+   * @param ownerSkew the Zipf exponent for owners; 0 is uniform, and
+   *   the bigger it is, the more the todos bunch up on a few owners
+   * @param completeRatio the fraction of todos that are complete
+   */
+  public SyntheticData(long seed, int userCount, int categoryCount, double ownerSkew, double completeRatio) {
+    if (userCount <= 0 || categoryCount <= 0) {
+      throw new IllegalArgumentException("There must be at least one user and one category");
+    }
+    if (completeRatio < 0 || completeRatio > 1) {
+      throw new IllegalArgumentException("The complete ratio must be between 0 and 1");
+    }
+    this.seed = seed;
+    this.userCount = userCount;
+    this.categoryCount = categoryCount;
+    this.completeRatio = completeRatio;
+    this.ownerCdf = zipfCdf(userCount, ownerSkew);
+    this.categoryCdf = zipfCdf(categoryCount, 1);
+  }
+
+  /**
+   * @return all the users, generated one at a time as they're needed
+   */
+  public Iterator<Document> users() {
+    Random random = new Random(seed);
+    return new Generator(userCount) {
+      @Override
+      Document generate(long i) {
+        return user(random, (int) i);
+      }
+    };
+  }
+
+  /**
+   * @param todoCount how many todos to generate
+   * @return the todos, generated one at a time as they're needed
+   */
+  public Iterator<Document> todos(long todoCount) {
+    Random random = new Random(seed ^ TODO_SEED_OFFSET);
+    return new Generator(todoCount) {
+      @Override
+      Document generate(long i) {
+        return todo(random, i, todoCount);
+      }
+    };
+  }
+
+  /**
+   * The name of a user. Names are unique: once the combinations of
+   * first and last names run out, a number is added.
+   *
+   * @param i which user (counting from 0)
+   * @return the name of that user
+   */
+  public static String userName(int i) {
+    int combinations = FIRST_NAMES.size() * LAST_NAMES.size();
+    String name = FIRST_NAMES.get(i % FIRST_NAMES.size()) + " "
+      + LAST_NAMES.get((i / FIRST_NAMES.size()) % LAST_NAMES.size());
+    return i < combinations ? name : name + " " + (i / combinations + 1);
+  }
+
+  private Document user(Random random, int i) {
+    String name = userName(i);
+    String company = companyName(random.nextInt(COMPANY_COUNT));
+    String email = name.toLowerCase(Locale.ROOT).replace(" ", "") + "@" + company.toLowerCase(Locale.ROOT) + ".com";
+    int roll = random.nextInt(PERCENT);
+    String role = roll < VIEWER_PERCENT ? ROLES.get(0)
+      : roll < VIEWER_PERCENT + EDITOR_PERCENT ? ROLES.get(1)
+      : ROLES.get(2);
+    // Field order matches `User`
+    return new Document("_id", objectId(USER_ID_TAG, FIRST_TIMESTAMP, i))
+      .append("name", name)
+      .append("age", MIN_AGE + random.nextInt(MAX_AGE - MIN_AGE + 1))
+      .append("company", company)
+      .append("email", email)
+      .append("avatar", "https://gravatar.com/avatar/" + md5(email) + "?d=identicon")
+      .append("role", role);
+  }
+
+  private Document todo(Random random, long i, long todoCount) {
+    // Spread the todos evenly over the year, in order
+    int timestamp = FIRST_TIMESTAMP + (int) (i * TIMESTAMP_SPAN / Math.max(todoCount, 1));
+    // Field order matches `Todo`
+    return new Document("_id", objectId(TODO_ID_TAG, timestamp, i))
+      .append("owner", userName(sample(ownerCdf, random)))
+      .append("status", random.nextDouble() < completeRatio)
+      .append("body", body(random))
+      .append("category", categoryName(sample(categoryCdf, random)));
+  }
+
+  private static String body(Random random) {
+    double words = Math.exp(BODY_WORDS_MU + BODY_WORDS_SIGMA * random.nextGaussian());
+    int wordCount = (int) Math.max(1, Math.min(MAX_BODY_WORDS, Math.round(words)));
+    StringBuilder body = new StringBuilder();
+    boolean startOfSentence = true;
+    for (int w = 0; w < wordCount; w++) {
+      String word = LOREM.get(random.nextInt(LOREM.size()));
+      if (startOfSentence) {
+        word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+      }
+      if (w > 0) {
+        body.append(' ');
+      }
+      body.append(word);
+      startOfSentence = w == wordCount - 1 || random.nextInt(WORDS_PER_SENTENCE) == 0;
+      if (startOfSentence) {
+        body.append('.');
+      }
+    }
+    return body.toString();
+  }
+
+  /**
+   * The name of a category. The first few are the ones in the seed
+   * data; after that they're made up.
+   */
+  static String categoryName(int i) {
+    if (i < CATEGORIES.size()) {
+      return CATEGORIES.get(i);
+    }
+    int n = i - CATEGORIES.size();
+    return LOREM.get(n % LOREM.size()) + " " + LOREM.get((n / LOREM.size()) % LOREM.size())
+      + (n < LOREM.size() * LOREM.size() ? "" : " " + (n / (LOREM.size() * LOREM.size()) + 1));
+  }
+
+  private static String companyName(int i) {
+    return (LOREM.get(i % LOREM.size()) + (i < LOREM.size() ? "" : "tech")).toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * The cumulative probabilities of a Zipf distribution over `n`
+   * ranks, i.e., where rank `k` has weight `1 / (k + 1)^exponent`.
+   */
+  private static double[] zipfCdf(int n, double exponent) {
+    double[] cdf = new double[n];
+    double total = 0;
+    for (int k = 0; k < n; k++) {
+      total += 1 / Math.pow(k + 1, exponent);
+      cdf[k] = total;
+    }
+    for (int k = 0; k < n; k++) {
+      cdf[k] /= total;
+    }
+    return cdf;
+  }
+
+  private static int sample(double[] cdf, Random random) {
+    int index = Arrays.binarySearch(cdf, random.nextDouble());
+    // A miss gives -(insertion point) - 1, and the insertion point is
+    // the first rank whose cumulative probability is over the sample.
+    return Math.min(index < 0 ? -index - 1 : index, cdf.length - 1);
+  }
+
+  private static ObjectId objectId(int tag, int timestamp, long i) {
+    ByteBuffer bytes = ByteBuffer.allocate(OBJECT_ID_BYTES);
+    bytes.putInt(timestamp);
+    bytes.putInt(tag);
+    bytes.putInt((int) i);
+    return new ObjectId(bytes.array());
+  }
+
+  @SuppressWarnings("lgtm[java/weak-cryptographic-algorithm]")
+  private static String md5(String text) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+      return String.format("%032x", new BigInteger(1, hash));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Hands out the documents one at a time.
+   */
+  private abstract static class Generator implements Iterator<Document> {
+    private final long count;
+    private long next;
+
+    Generator(long count) {
+      this.count = count;
+    }
+
+    abstract Document generate(long i);
+
+    @Override
+    public boolean hasNext() {
+      return next < count;
+    }
+
+    @Override
+    public Document next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return generate(next++);
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Keeps traces of a sample of requests, broken down into the phases
+ * `RequestTiming` measures, and exports them in the OTLP/JSON format
+ * OpenTelemetry collectors take, so they can be looked at in Jaeger,
+ * Tempo, and the like.
+ *
+ * Sampling happens once a request is done ("tail sampling"), so the
+ * requests we care about most are always kept: anything slower than
+ * `TRACE_SLOW_MS` (default 500) or that failed with a 5xx. Of the
+ * rest, a `TRACE_SAMPLE_RATE` fraction (default 0.01) is kept, so
+ * there's something normal to compare against.
+ *
+ * Kept traces are put on a bounded queue, and a background thread
+ * exports them in batches, either appending each batch as a line to
+ * `TRACE_FILE`, or POSTing it to `TRACE_OTLP_ENDPOINT` (e.g.,
+ * `http://localhost:4318/v1/traces`). Request threads never wait on
+ * the export; if it falls behind and the queue fills, traces are
+ * dropped (and counted).
+ */
+public class Tracer implements AutoCloseable {
+
+  private static final int QUEUE_CAPACITY = 4096;
+  private static final int BATCH_SIZE = 256;
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+  private static final Duration EXPORT_TIMEOUT = Duration.ofSeconds(10);
+  private static final int HTTP_OK_MIN = 200;
+  private static final int HTTP_OK_MAX = 299;
+  private static final int HTTP_SERVER_ERROR = 500;
+
+  private static final String SERVICE_NAME = "umm3601-server";
+
+  // Span kinds and status codes, as OTLP numbers them
+  private static final int KIND_INTERNAL = 1;
+  private static final int KIND_SERVER = 2;
+  private static final int STATUS_ERROR = 2;
+
+  private static final int TRACE_ID_LONGS = 2;
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  /**
+   * Where batches of traces go.
+   */
+  interface Exporter {
+    /**
+     * Export one batch.
+     *
+     * @param request an OTLP `ExportTraceServiceRequest`, as JSON
+     */
+    void export(byte[] request) throws IOException, InterruptedException;
+  }
+
+  /**
+   * A finished request that was kept, with everything needed to
+   * export it (and nothing else, so the request itself can be freed).
+   */
+  private static final class Trace {
+    private final String name;
+    private final int status;
+    private final long startEpochNanos;
+    private final long durationNanos;
+    private final long[][] phases;
+
+    Trace(String name, int status, RequestTiming timing, long durationNanos) {
+      this.name = name;
+      this.status = status;
+      this.startEpochNanos = timing.startEpochNanos();
+      this.durationNanos = durationNanos;
+      RequestTiming.Phase[] all = RequestTiming.Phase.values();
+      this.phases = new long[all.length][];
+      for (RequestTiming.Phase phase : all) {
+        phases[phase.ordinal()] = new long[] {
+          timing.firstStartNanos(phase), timing.lastEndNanos(phase), timing.busyNanos(phase)};
+      }
+    }
+  }
+
+  private final long slowNanos;
+  private final double sampleRate;
+  private final Exporter exporter;
+  private final BlockingQueue<Trace> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final Thread worker;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder keptSlow = new LongAdder();
+  private final LongAdder keptError = new LongAdder();
+  private final LongAdder keptSampled = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder exported = new LongAdder();
+  private final LongAdder exportFailures = new LongAdder();
+
+  private volatile boolean closed;
+
+  /**
+   * Construct a tracer, and start its export thread.
+   *
+   * @param slowMillis requests that take at least this long are always kept
+   * @param sampleRate the fraction of other requests to keep
+   * @param exporter where to send batches of traces
+   */
+  Tracer(long slowMillis, double sampleRate, Exporter exporter) {
+    this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    this.sampleRate = sampleRate;
+    this.exporter = exporter;
+    worker = new Thread(this::exportLoop, "trace-export");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Construct a tracer configured by environment variables, as
+   * described above.
+   *
+   * @param env where to look up the settings (usually `System.getenv()`)
+   * @return the tracer, or null if neither `TRACE_FILE` nor
+   *   `TRACE_OTLP_ENDPOINT` is set
+   */
+  public static Tracer fromEnvironment(Map<String, String> env) {
+    Exporter exporter;
+    if (env.containsKey("TRACE_OTLP_ENDPOINT")) {
+      exporter = httpExporter(URI.create(env.get("TRACE_OTLP_ENDPOINT")));
+    } else if (env.containsKey("TRACE_FILE")) {
+      exporter = fileExporter(Paths.get(env.get("TRACE_FILE")));
+    } else {
+      return null;
+    }
+    return new Tracer(
+      Long.parseLong(env.getOrDefault("TRACE_SLOW_MS", "500")),
+      Double.parseDouble(env.getOrDefault("TRACE_SAMPLE_RATE", "0.01")),
+      exporter);
+  }
+
+  static Exporter fileExporter(Path file) {
+    return request -> {
+      byte[] line = new byte[request.length + 1];
+      System.arraycopy(request, 0, line, 0, request.length);
+      line[request.length] = '\n';
+      Files.write(file, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    };
+  }
+
+  static Exporter httpExporter(URI endpoint) {
+    HttpClient client = HttpClient.newBuilder().connectTimeout(EXPORT_TIMEOUT).build();
+    return request -> {
+      HttpResponse<Void> response = client.send(
+        HttpRequest.newBuilder(endpoint)
+          .timeout(EXPORT_TIMEOUT)
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofByteArray(request))
+          .build(),
+        HttpResponse.BodyHandlers.discarding());
+      if (response.statusCode() < HTTP_OK_MIN || response.statusCode() > HTTP_OK_MAX) {
+        throw new IOException("The collector answered " + response.statusCode());
+      }
+    };
+  }
+
+  /**
+   * Decide whether to keep the trace of a request that's just
+   * finished, and queue it for export if so.
+   *
+   * @param name what to call the request (e.g., "GET /api/todos/{id}")
+   * @param status the response's HTTP status
+   * @param timing the request's timer
+   * @return true if the trace was kept
+   */
+  public boolean finish(String name, int status, RequestTiming timing) {
+    requests.increment();
+    long durationNanos = timing.elapsedNanos();
+    if (status >= HTTP_SERVER_ERROR) {
+      keptError.increment();
+    } else if (durationNanos >= slowNanos) {
+      keptSlow.increment();
+    } else if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+      keptSampled.increment();
+    } else {
+      return false;
+    }
+    if (!queue.offer(new Trace(name, status, timing, durationNanos))) {
+      dropped.increment();
+    }
+    return true;
+  }
+
+  private void exportLoop() {
+    List<Trace> batch = new ArrayList<>(BATCH_SIZE);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Trace first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        exporter.export(JSON.writeValueAsBytes(request(batch)));
+        exported.add(batch.size());
+      } catch (IOException | RuntimeException e) {
+        // The collector being down (or answering with something the
+        // client can't make sense of) shouldn't take anything else
+        // down, least of all this thread; these traces are just lost.
+        exportFailures.increment();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Build an OTLP `ExportTraceServiceRequest` for a batch of traces:
+   * a server span for each request, with a child span for each phase
+   * that ran, covering the time from when it first started to when it
+   * last ended.
+   */
+  private static ObjectNode request(List<Trace> batch) {
+    ObjectNode request = JSON.createObjectNode();
+    ObjectNode resourceSpans = request.putArray("resourceSpans").addObject();
+    attribute(resourceSpans.putObject("resource").putArray("attributes"), "service.name", SERVICE_NAME);
+    ObjectNode scopeSpans = resourceSpans.putArray("scopeSpans").addObject();
+    scopeSpans.putObject("scope").put("name", Tracer.class.getName());
+    ArrayNode spans = scopeSpans.putArray("spans");
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (Trace trace : batch) {
+      StringBuilder traceId = new StringBuilder();
+      for (int i = 0; i < TRACE_ID_LONGS; i++) {
+        traceId.append(String.format("%016x", random.nextLong()));
+      }
+      ObjectNode root = span(spans, traceId.toString(), null, trace.name, KIND_SERVER,
+        trace.startEpochNanos, trace.startEpochNanos + trace.durationNanos);
+      String rootId = root.get("spanId").asText();
+      ArrayNode attributes = root.putArray("attributes");
+      attribute(attributes, "http.status_code", trace.status);
+      if (trace.status >= HTTP_SERVER_ERROR) {
+        root.putObject("status").put("code", STATUS_ERROR);
+      }
+
+      for (RequestTiming.Phase phase : RequestTiming.Phase.values()) {
+        long[] times = trace.phases[phase.ordinal()];
+        if (times[0] != 0) {
+          ObjectNode child = span(spans, traceId.toString(), rootId, phase.metric(), KIND_INTERNAL,
+            trace.startEpochNanos + times[0], trace.startEpochNanos + times[1]);
+          ArrayNode childAttributes = child.putArray("attributes");
+          childAttributes.addObject().put("key", "busy_ms").putObject("value")
+            .put("doubleValue", times[2] / NANOS_PER_MILLI);
+        }
+      }
+    }
+    return request;
+  }
+
+  // Add a span with a new random id
+  private static ObjectNode span(ArrayNode spans, String traceId, String parentId,
+      String name, int kind, long startEpochNanos, long endEpochNanos) {
+    ObjectNode span = spans.addObject()
+      .put("traceId", traceId)
+      .put("spanId", String.format("%016x", ThreadLocalRandom.current().nextLong()));
+    if (parentId != null) {
+      span.put("parentSpanId", parentId);
+    }
+    // OTLP/JSON writes 64-bit integers as strings
+    return span
+      .put("name", name)
+      .put("kind", kind)
+      .put("startTimeUnixNano", Long.toString(startEpochNanos))
+      .put("endTimeUnixNano", Long.toString(endEpochNanos));
+  }
+
+  private static void attribute(ArrayNode attributes, String key, String value) {
+    attributes.addObject().put("key", key).putObject("value").put("stringValue", value);
+  }
+
+  private static void attribute(ArrayNode attributes, String key, long value) {
+    attributes.addObject().put("key", key).putObject("value").put("intValue", Long.toString(value));
+  }
+
+  /**
+   * @return statistics on how many traces were kept, and why, and how
+   *   many made it out
+   */
+  public Map<String, Object> stats() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("slowMillis", TimeUnit.NANOSECONDS.toMillis(slowNanos));
+    result.put("sampleRate", sampleRate);
+    result.put("requests", requests.sum());
+    result.put("keptSlow", keptSlow.sum());
+    result.put("keptError", keptError.sum());
+    result.put("keptSampled", keptSampled.sum());
+    result.put("dropped", dropped.sum());
+    result.put("exported", exported.sum());
+    result.put("exportFailures", exportFailures.sum());
+    return result;
+  }
+
+  /**
+   * Stop taking traces, and wait (briefly) for the ones already kept
+   * to be exported.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      worker.join(EXPORT_TIMEOUT.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index for case-insensitive substring search over a
+ * (fairly small) set of distinct values, like todo owners.
+ *
+ * Every value is broken into its overlapping three-character pieces
+ * ("trigrams"), and for each trigram we remember which values contain
+ * it. A search only has to look at the values that contain *every*
+ * trigram of the search string, rather than scanning all of them.
+ *
+ * We also keep a count of how many documents use each value, so a
+ * value only disappears from the index when the last document using
+ * it is deleted.
+ */
+public class TrigramIndex {
+
+  private static final int GRAM_SIZE = 3;
+
+  private final Map<String, Set<String>> postings = new HashMap<>();
+  private final Map<String, Integer> documentCounts = new HashMap<>();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Record that `count` more documents use `value`.
+   *
+   * @param value the value to add
+   * @param count how many documents use it
+   */
+  public void add(String value, int count) {
+    if (value == null || count <= 0) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (documentCounts.merge(value, count, Integer::sum) == count) {
+        // This is a brand new value, so index its trigrams.
+        for (String gram : trigrams(normalize(value))) {
+          postings.computeIfAbsent(gram, g -> new HashSet<>()).add(value);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record that one more document uses `value`.
+   *
+   * @param value the value to add
+   */
+  public void add(String value) {
+    add(value, 1);
+  }
+
+  /**
+   * Record that one fewer document uses `value`.
+   *
+   * @param value the value to remove
+   */
+  public void remove(String value) {
+    if (value == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      Integer count = documentCounts.get(value);
+      if (count == null) {
+        return;
+      }
+      if (count > 1) {
+        documentCounts.put(value, count - 1);
+        return;
+      }
+      documentCounts.remove(value);
+      for (String gram : trigrams(normalize(value))) {
+        Set<String> values = postings.get(gram);
+        if (values != null) {
+          values.remove(value);
+          if (values.isEmpty()) {
+            postings.remove(gram);
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find every indexed value that contains `substring`, ignoring case.
+   *
+   * @param substring what to look for
+   * @return the exact (original case) values that contain it
+   */
+  public Set<String> search(String substring) {
+    String needle = normalize(substring);
+    lock.readLock().lock();
+    try {
+      Set<String> matches = new HashSet<>();
+      Iterable<String> candidates;
+      if (needle.length() < GRAM_SIZE) {
+        // Too short to have a trigram, so we have to check every value.
+        candidates = documentCounts.keySet();
+      } else {
+        candidates = intersectPostings(trigrams(needle));
+      }
+      // Having all the trigrams doesn't guarantee they're in the right
+      // order, so we still have to check each candidate.
+      for (String candidate : candidates) {
+        if (normalize(candidate).contains(needle)) {
+          matches.add(candidate);
+        }
+      }
+      return matches;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return how many distinct values are indexed
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return documentCounts.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Set<String> intersectPostings(Set<String> grams) {
+    List<Set<String>> lists = new ArrayList<>();
+    for (String gram : grams) {
+      Set<String> values = postings.get(gram);
+      if (values == null) {
+        return Set.of();
+      }
+      lists.add(values);
+    }
+    // Start from the rarest trigram so the intersection stays small.
+    lists.sort(Comparator.comparingInt(Set::size));
+    Set<String> result = new HashSet<>(lists.get(0));
+    for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+      result.retainAll(lists.get(i));
+    }
+    return result;
+  }
+
+  private static Set<String> trigrams(String text) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM_SIZE <= text.length(); i++) {
+      grams.add(text.substring(i, i + GRAM_SIZE));
+    }
+    return grams;
+  }
+
+  private static String normalize(String text) {
+    return text.toLowerCase(Locale.ROOT);
+  }
+}
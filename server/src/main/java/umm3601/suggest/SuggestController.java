@@ -0,0 +1,55 @@
+package umm3601.suggest;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import umm3601.PrefixSuggester;
+
+/**
+ * Controller that serves typeahead suggestions (owners, companies,
+ * categories, ...) straight from memory.
+ */
+public class SuggestController {
+
+  private static final String FIELD_KEY = "field";
+  private static final String PREFIX_KEY = "prefix";
+  private static final String LIMIT_KEY = "limit";
+
+  private static final int DEFAULT_LIMIT = 10;
+  private static final int MAX_LIMIT = PrefixSuggester.MAX_SUGGESTIONS;
+
+  private final Map<String, PrefixSuggester> suggesters;
+
+  /**
+   * Construct a controller for suggestions.
+   *
+   * @param suggesters the suggester to use for each field name
+   */
+  public SuggestController(Map<String, PrefixSuggester> suggesters) {
+    this.suggesters = suggesters;
+  }
+
+  /**
+   * Get a JSON response with the most common values of the `field`
+   * parameter that start with the `prefix` parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getSuggestions(Context ctx) {
+    String field = ctx.queryParam(FIELD_KEY);
+    if (field == null || !suggesters.containsKey(field)) {
+      throw new BadRequestResponse(
+        "The field to suggest must be one of " + String.join(", ", new TreeSet<>(suggesters.keySet())));
+    }
+    PrefixSuggester suggester = suggesters.get(field);
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(n -> n > 0 && n <= MAX_LIMIT, "limit must be between 1 and " + MAX_LIMIT)
+      .getOrDefault(DEFAULT_LIMIT);
+
+    ctx.json(suggester.suggest(prefix, limit));
+  }
+}
@@ -0,0 +1,246 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.QueryParams;
+
+/**
+ * Moves completed todos out of the `todos` collection and into
+ * `todos_archive`, so the todos that are actually being worked on (the
+ * "hot" ones every list query looks at) stay small enough to keep in
+ * memory.
+ *
+ * A todo is archived once it's complete and older (by the creation
+ * time in its id) than a threshold. It's moved in batches: copied
+ * into the archive first, then deleted from `todos`, so a todo is
+ * never missing from both. A todo is only deleted from `todos` if it's
+ * exactly what was copied, so if one is changed while its batch is
+ * being moved, it stays hot and is taken back out of the archive (as
+ * is one that's deleted while its batch is being moved).
+ *
+ * Archived todos are still todos: they're counted in the counters and
+ * suggestions, can be read with `includeArchived`, and can be deleted.
+ * Changing one moves it back into `todos` (see
+ * `TodoController.updateTodo`), where it'll be archived again if it's
+ * still due.
+ */
+class TodoArchiver implements AutoCloseable {
+
+  static final String COLLECTION_NAME = "todos_archive";
+
+  static final int BATCH_SIZE = 1000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(TodoArchiver.class);
+
+  private final MongoDatabase database;
+  private final MongoCollection<RawBsonDocument> hot;
+  private final MongoCollection<RawBsonDocument> archive;
+  private final Duration olderThan;
+  private final Consumer<List<RawBsonDocument>> onMoved;
+
+  private ScheduledExecutorService scheduler;
+
+  // Only written by `archive`, which is synchronized, but read by
+  // `stats` without waiting for a run to finish.
+  private volatile long runs;
+  private volatile long moved;
+  private volatile Map<String, Object> lastRun = Map.of();
+
+  /**
+   * Construct an archiver.
+   *
+   * @param database the database with the todos
+   * @param olderThan how old a completed todo has to be to be archived
+   * @param onMoved called with the todos that were moved, after each
+   *   batch
+   */
+  TodoArchiver(MongoDatabase database, Duration olderThan, Consumer<List<RawBsonDocument>> onMoved) {
+    this.database = database;
+    this.hot = database.getCollection("todos", RawBsonDocument.class);
+    this.archive = database.getCollection(COLLECTION_NAME, RawBsonDocument.class);
+    this.olderThan = olderThan;
+    this.onMoved = onMoved;
+  }
+
+  /**
+   * Archive every todo that's due, every `interval`, in the background.
+   *
+   * @param interval how long to wait between runs
+   */
+  void start(Duration interval) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "todo-archiver");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      // An exception would cancel all the later runs, so just log it
+      // and try again next time.
+      try {
+        archive();
+      } catch (RuntimeException e) {
+        LOG.error("Archiving todos failed", e);
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Move every todo that's due into the archive.
+   *
+   * @return how many todos were moved
+   */
+  synchronized long archive() {
+    Map<String, Object> before = hotStats();
+    Bson due = and(
+      eq("status", true),
+      lt("_id", QueryParams.firstIdAt(Instant.now().minus(olderThan))));
+
+    long movedThisRun = 0;
+    List<RawBsonDocument> batch;
+    do {
+      batch = hot.find(due).sort(Sorts.ascending("_id")).limit(BATCH_SIZE).into(new ArrayList<>());
+      if (!batch.isEmpty()) {
+        movedThisRun += moveBatch(batch);
+      }
+    } while (batch.size() == BATCH_SIZE);
+
+    Map<String, Object> after = hotStats();
+    runs++;
+    moved += movedThisRun;
+    Map<String, Object> run = new LinkedHashMap<>();
+    run.put("at", Instant.now().toString());
+    run.put("moved", movedThisRun);
+    run.put("hotBefore", before);
+    run.put("hotAfter", after);
+    lastRun = run;
+    LOG.info("Archived {} todos; hot todos went from {} to {}", movedThisRun, before, after);
+    return movedThisRun;
+  }
+
+  /**
+   * Copy a batch of todos into the archive, then delete them from the
+   * hot todos, unless they've changed since they were read.
+   *
+   * @return how many todos were moved
+   */
+  long moveBatch(List<RawBsonDocument> batch) {
+    copy(batch);
+    return deleteCopied(batch);
+  }
+
+  /**
+   * Copy a batch of todos into the archive (the first half of
+   * `moveBatch`).
+   */
+  void copy(List<RawBsonDocument> batch) {
+    try {
+      archive.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // A todo that's already in the archive (e.g., from a run that
+      // died between copying and deleting) is fine.
+      for (BulkWriteError error : e.getWriteErrors()) {
+        if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete a batch of copied todos from the hot todos (the second half
+   * of `moveBatch`).
+   *
+   * @return how many todos were moved
+   */
+  long deleteCopied(List<RawBsonDocument> batch) {
+    // Each todo is matched on every field we copied, so one that's
+    // been changed since isn't deleted, and the change isn't lost.
+    // They're deleted one at a time so we know which ones weren't:
+    // those were changed (and stay hot) or deleted by someone else
+    // since they were read, and either way their copies have to come
+    // back out of the archive.
+    List<RawBsonDocument> movedTodos = new ArrayList<>(batch.size());
+    List<ObjectId> notMoved = new ArrayList<>();
+    for (RawBsonDocument todo : batch) {
+      if (hot.deleteOne(todo).getDeletedCount() == 0) {
+        notMoved.add(todo.getObjectId("_id").getValue());
+      } else {
+        movedTodos.add(todo);
+      }
+    }
+    if (!notMoved.isEmpty()) {
+      archive.deleteMany(in("_id", notMoved));
+    }
+    if (!movedTodos.isEmpty()) {
+      onMoved.accept(movedTodos);
+    }
+    return movedTodos.size();
+  }
+
+  /**
+   * Measure the hot working set: how many todos there are, and how
+   * much space they and their indexes take.
+   */
+  private Map<String, Object> hotStats() {
+    Document stats = database.runCommand(new Document("collStats", "todos"));
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("count", longValue(stats, "count"));
+    result.put("dataBytes", longValue(stats, "size"));
+    result.put("indexBytes", longValue(stats, "totalIndexSize"));
+    return result;
+  }
+
+  private static long longValue(Document stats, String key) {
+    // Missing if there's no `todos` collection (yet)
+    Object value = stats.get(key);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  /**
+   * @return a snapshot of what the archiver has done, for reporting
+   */
+  Map<String, Object> stats() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("olderThan", olderThan.toString());
+    result.put("runs", runs);
+    result.put("moved", moved);
+    result.put("lastRun", lastRun);
+    return result;
+  }
+
+  @Override
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.GoneResponse;
+import umm3601.RawJsonTranscoder;
+
+/**
+ * Records every todo that's added or deleted in a `todoChanges`
+ * collection, so clients can ask for just what's changed since they
+ * last looked instead of downloading every todo again.
+ *
+ * Each change gets the next number in a sequence, and that number is
+ * the "token" clients hand back to say where they're up to, e.g.,
+ *
+ *   { _id: 42, op: "insert", todoId: ObjectId(...), at: ISODate(...),
+ *     todo: { _id: ..., owner: "Blanche", ... } }
+ *
+ * Inserts and updates carry the whole (new) todo, so a client can
+ * apply either one by just replacing whatever it has for that id.
+ *
+ * The changes follow the default list of todos, which leaves out
+ * archived ones, so a todo being archived is recorded as a delete.
+ * If it's changed later it's moved back, and recorded as an update.
+ *
+ * Changes are kept for a week (by a TTL index on `at`); a client
+ * with an older token than that is told to reload everything.
+ *
+ * We use our own log rather than a Mongo change stream since change
+ * streams need a replica set, and our development and test databases
+ * are standalone servers.
+ */
+class TodoChangeLog {
+
+  /**
+   * The most changes returned by one call to `changesSince`.
+   */
+  static final int MAX_CHANGES = 1000;
+
+  private static final String COLLECTION_NAME = "todoChanges";
+  private static final String SEQUENCE_NAME = "todoChanges";
+
+  private static final Duration RETENTION = Duration.ofDays(7);
+
+  // The most changes numbered and written in one go
+  private static final int BATCH_SIZE = 1000;
+
+  // How long a gap in the numbers can go unfilled before we decide
+  // the change was never going to be written (e.g., its server died
+  // between reserving the number and writing it) and skip it.
+  private static final Duration GAP_TIMEOUT = Duration.ofSeconds(30);
+
+  private static final String INSERT = "insert";
+  private static final String UPDATE = "update";
+  private static final String DELETE = "delete";
+
+  private final MongoCollection<Document> sequences;
+  private final MongoCollection<Document> changes;
+  private final MongoCollection<RawBsonDocument> rawChanges;
+
+  TodoChangeLog(MongoDatabase database) {
+    sequences = database.getCollection("sequences");
+    changes = database.getCollection(COLLECTION_NAME);
+    rawChanges = database.getCollection(COLLECTION_NAME, RawBsonDocument.class);
+    changes.createIndex(Indexes.ascending("at"),
+      new IndexOptions().expireAfter(RETENTION.toSeconds(), TimeUnit.SECONDS));
+  }
+
+  void todoAdded(Todo todo) {
+    record(INSERT, List.of(todo));
+  }
+
+  void todoUpdated(Todo todo) {
+    record(UPDATE, List.of(todo));
+  }
+
+  /**
+   * Record an update to each of `todos`, taking one round trip to
+   * number them and one to write them for every `BATCH_SIZE` todos.
+   */
+  void todosUpdated(List<Todo> todos) {
+    record(UPDATE, todos);
+  }
+
+  void todoRemoved(Todo todo) {
+    record(DELETE, List.of(todo));
+  }
+
+  /**
+   * Record archived todos as deletes, since they've left the list
+   * (see `TodoArchiver`).
+   */
+  void todosArchived(List<Todo> todos) {
+    record(DELETE, todos);
+  }
+
+  // Changes are numbered by reserving a range of the sequence with a
+  // single `$inc`, and then written in one `insertMany`. Nothing is
+  // locked, so (here, or on another server) a later number can be
+  // written before an earlier one; `changesSince` waits for the gap to
+  // be filled rather than skip past it.
+  private void record(String op, List<Todo> todos) {
+    for (int from = 0; from < todos.size(); from += BATCH_SIZE) {
+      List<Todo> batch = todos.subList(from, Math.min(todos.size(), from + BATCH_SIZE));
+      Date at = new Date();
+      long next = reserveSequenceNumbers(batch.size());
+      List<Document> batchChanges = new ArrayList<>(batch.size());
+      for (Todo todo : batch) {
+        batchChanges.add(change(next++, op, todo, at));
+      }
+      changes.insertMany(batchChanges);
+    }
+  }
+
+  private static Document change(long number, String op, Todo todo, Date at) {
+    Document change = new Document("_id", number)
+      .append("op", op)
+      .append("todoId", new ObjectId(todo._id))
+      .append("at", at);
+    if (!op.equals(DELETE)) {
+      // Field order matches `Todo`, so it can be sent as-is
+      change.append("todo", new Document("_id", new ObjectId(todo._id))
+        .append("owner", todo.owner)
+        .append("status", todo.status)
+        .append("body", todo.body)
+        .append("category", todo.category));
+    }
+    return change;
+  }
+
+  /**
+   * @return the first of `count` consecutive sequence numbers that
+   *   are now ours to use
+   */
+  private long reserveSequenceNumbers(int count) {
+    Document sequence = sequences.findOneAndUpdate(
+      eq("_id", SEQUENCE_NAME),
+      Updates.inc("value", (long) count),
+      new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+    return sequence.getLong("value") - count + 1;
+  }
+
+  /**
+   * @return the token for "now", i.e., the number of the latest change
+   */
+  long currentToken() {
+    Document sequence = sequences.find(eq("_id", SEQUENCE_NAME)).first();
+    return sequence == null ? 0 : sequence.getLong("value");
+  }
+
+  /**
+   * Describe the changes after the given token as JSON:
+   *
+   *   { "token": "45", "more": false, "changes": [
+   *       { "op": "insert", "id": "...", "todo": { ... } },
+   *       { "op": "update", "id": "...", "todo": { ... } },
+   *       { "op": "delete", "id": "..." } ] }
+   *
+   * Only the latest version of each todo is sent. A todo that was
+   * added since the token is always an "insert", however many times
+   * it's been updated since, and if it's also been deleted it's left
+   * out altogether. If `more` is true there were too many changes
+   * to send at once, and the client should ask again with the new
+   * token straight away.
+   *
+   * @param since the token the client last got
+   * @return the UTF-8 encoded JSON
+   */
+  byte[] changesSince(long since) {
+    long current = currentToken();
+    if (since > current) {
+      throw new BadRequestResponse("That changes token is from the future");
+    }
+    Document oldest = changes.find().sort(Sorts.ascending("_id")).first();
+    long oldestKept = oldest == null ? current + 1 : oldest.getLong("_id");
+    if (since < oldestKept - 1) {
+      throw new GoneResponse("Those changes are too old to replay; reload all the todos");
+    }
+
+    List<RawBsonDocument> page = rawChanges.find(gt("_id", since))
+      .sort(Sorts.ascending("_id"))
+      .limit(MAX_CHANGES + 1)
+      .into(new ArrayList<>());
+    boolean more = page.size() > MAX_CHANGES;
+    if (more) {
+      page.remove(MAX_CHANGES);
+    }
+    // Stop at the first recent gap, since the missing change may be
+    // about to be written and the client mustn't move past it.
+    Date gapCutoff = new Date(System.currentTimeMillis() - GAP_TIMEOUT.toMillis());
+    long expected = since + 1;
+    for (int i = 0; i < page.size(); i++) {
+      RawBsonDocument change = page.get(i);
+      long number = change.getInt64("_id").getValue();
+      if (number != expected && !new Date(change.getDateTime("at").getValue()).before(gapCutoff)) {
+        page.subList(i, page.size()).clear();
+        more = false;
+        break;
+      }
+      expected = number + 1;
+    }
+    long token = page.isEmpty() ? since : page.get(page.size() - 1).getInt64("_id").getValue();
+
+    // Only the latest change to each todo matters, and if the client
+    // never saw a todo it doesn't need to hear that it's gone.
+    Map<ObjectId, RawBsonDocument> latest = new LinkedHashMap<>();
+    Map<ObjectId, String> ops = new HashMap<>();
+    for (RawBsonDocument change : page) {
+      ObjectId todoId = change.getObjectId("todoId").getValue();
+      String op = change.getString("op").getValue();
+      latest.remove(todoId);
+      String previousOp = ops.remove(todoId);
+      if (INSERT.equals(previousOp)) {
+        if (op.equals(DELETE)) {
+          continue;
+        }
+        op = INSERT;
+      }
+      latest.put(todoId, change);
+      ops.put(todoId, op);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = RawJsonTranscoder.createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeStringField("token", Long.toString(token));
+      generator.writeBooleanField("more", more);
+      generator.writeArrayFieldStart("changes");
+      for (Map.Entry<ObjectId, RawBsonDocument> entry : latest.entrySet()) {
+        RawBsonDocument change = entry.getValue();
+        String op = ops.get(entry.getKey());
+        generator.writeStartObject();
+        generator.writeStringField("op", op);
+        generator.writeStringField("id", entry.getKey().toHexString());
+        if (!op.equals(DELETE)) {
+          generator.writeFieldName("todo");
+          TodoController.TODO_JSON.writeDocument((RawBsonDocument) change.getDocument("todo"), generator);
+        }
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -2,16 +2,44 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.ne;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
@@ -20,52 +48,665 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ByIdBatcher;
+import umm3601.ChangeFeed;
+import umm3601.CountCache;
+import umm3601.Dictionary;
+import umm3601.MultiGet;
+import umm3601.PrefixSuggester;
+import umm3601.QueryParams;
+import umm3601.ReadRouting;
+import umm3601.RequestTiming;
+import umm3601.RequestTiming.Phase;
+import umm3601.RawJsonTranscoder;
+import umm3601.RawJsonTranscoder.FieldType;
+import umm3601.SingleFlight;
+import umm3601.SortedMerge;
+import umm3601.StreamingExport;
+import umm3601.TrigramIndex;
 
 /**
  * Controller that manCATEGORYs requests for info about todos.
  */
 public class TodoController {
 
+  private static final String OWNER_KEY = "owner";
   private static final String CATEGORY_KEY = "category";
   private static final String STATUS_KEY = "status";
+  private static final String SKIP_KEY = "skip";
+  private static final String LIMIT_KEY = "limit";
+  private static final String COUNT_KEY = "count";
+  private static final String IDS_KEY = "ids";
+  private static final String SINCE_KEY = "since";
+  private static final String BODY_KEY = "body";
+  private static final String INCLUDE_ARCHIVED_KEY = "includeArchived";
+
+  /**
+   * The name todo categories are encoded under in a `Dictionary`.
+   */
+  public static final String CATEGORY_DICTIONARY = "todos.category";
+
+  private static final List<String> UPDATABLE_FIELDS = List.of(OWNER_KEY, STATUS_KEY, BODY_KEY, CATEGORY_KEY);
+
+  /**
+   * The indexes the list queries rely on. The compound one is laid out
+   * equality-sort-range: `category` (equality or `$in`), then the
+   * default sort (`owner`, with ties broken by `_id`; see
+   * `SortedMerge.sort`), then `status`, so a filtered page sorted by
+   * owner is read in order straight off the index.
+   */
+  public static final List<Bson> INDEXES = List.of(
+    Indexes.ascending(OWNER_KEY, "_id"),
+    Indexes.ascending(CATEGORY_KEY, OWNER_KEY, "_id", STATUS_KEY));
+
+  private static final int BULK_UPDATE_BATCH_SIZE = 1000;
+
+  // Briefly tags the todos a bulk update changed (see `updateStatus`)
+  private static final String BULK_UPDATE_KEY = "bulkUpdate";
+
+  private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+  // The fields here have to stay in the same order as they're
+  // declared in `Todo` so that the JSON we send out is identical
+  // to what Jackson would produce.
+  public static final RawJsonTranscoder TODO_JSON = new RawJsonTranscoder()
+    .field("_id", FieldType.OBJECT_ID)
+    .field("owner", FieldType.STRING)
+    .field("status", FieldType.BOOLEAN)
+    .field("body", FieldType.STRING)
+    .field("category", FieldType.STRING);
+
+  private final MongoDatabase database;
+
+  // If dictionary encoding is turned on, categories are stored as codes
+  // from this dictionary. This is null when encoding is off.
+  private final Dictionary dictionary;
+
+  // Writes todos as JSON, decoding categories if they're encoded.
+  private final RawJsonTranscoder todoJson;
 
   private final JacksonMongoCollection<Todo> todoCollection;
 
+  // The read-only endpoints skip the `Todo` POJOs entirely and
+  // transcode the raw BSON straight into JSON.
+  private final MongoCollection<RawBsonDocument> rawTodoCollection;
+
+  // If the todos are split over several deployments, which one each
+  // todo is on. This is null when they're all in `database`.
+  private final TodoShards shards;
+
+  // Every collection todos are kept in: one per shard, or just
+  // `rawTodoCollection`.
+  private final List<MongoCollection<RawBsonDocument>> todoCollections;
+
+  // Identical list queries that arrive at the same time share one
+  // trip to the database and one JSON buffer.
+  private final SingleFlight<String, byte[]> listQueries = new SingleFlight<>();
+
+  private final CountCache counts;
+
+  // Completed todos that have been moved out of the way (see
+  // `TodoArchiver`), and how many of them match each filter.
+  private final MongoCollection<RawBsonDocument> rawArchivedTodoCollection;
+  private final CountCache archivedCounts;
+
+  // Moves completed todos into the archive, or null if archiving is off.
+  private TodoArchiver archiver;
+
+  // If batching is turned on, by-id lookups that arrive together
+  // share a single query. This is null when batching is off.
+  private ByIdBatcher byIdBatcher;
+
+  // Where list queries read from, and how writes are tracked so
+  // clients can read them back. This is null when every read goes to
+  // the primary.
+  private ReadRouting readRouting;
+
+  // Where to push adds and deletes to live clients, or null if no one
+  // is listening.
+  private ChangeFeed changeFeed;
+
+  // All the distinct owners, indexed so we can do substring searches
+  // on them without scanning the whole collection.
+  private final TrigramIndex ownerIndex = new TrigramIndex();
+
+  // Owners and categories with how often each is used, for typeahead.
+  private final PrefixSuggester ownerSuggester = new PrefixSuggester();
+  private final PrefixSuggester categorySuggester = new PrefixSuggester();
+
+  // Running per-owner and per-category totals, kept in the database.
+  private final TodoCounters todoCounters;
+
+  // Every add and delete, so clients can catch up on just the changes.
+  private final TodoChangeLog changeLog;
+
   public TodoController(MongoDatabase database) {
+    this(database, null);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param dictionary the dictionary to store categories as codes
+   *   from, or null to store them as plain strings
+   */
+  public TodoController(MongoDatabase database, Dictionary dictionary) {
+    this(database, dictionary, null);
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data (and everything
+   *   kept about the todos, like the counters, if they're sharded)
+   * @param dictionary the dictionary to store categories as codes
+   *   from, or null to store them as plain strings
+   * @param shards the shards to split the todos over, or null to keep
+   *   them all in `database`
+   */
+  public TodoController(MongoDatabase database, Dictionary dictionary, TodoShards shards) {
+    this.database = database;
+    this.dictionary = dictionary;
+    this.shards = shards;
+    todoJson = dictionary == null
+      ? TODO_JSON
+      : TODO_JSON.decodedWith(dictionary, Map.of(CATEGORY_KEY, CATEGORY_DICTIONARY));
     todoCollection = JacksonMongoCollection.builder().build(database, "todos", Todo.class);
+    rawTodoCollection = database.getCollection("todos", RawBsonDocument.class);
+    todoCollections = shards == null ? List.of(rawTodoCollection) : shards.collections();
+    counts = new CountCache(todoCollections);
+    rawArchivedTodoCollection = database.getCollection(TodoArchiver.COLLECTION_NAME, RawBsonDocument.class);
+    archivedCounts = new CountCache(rawArchivedTodoCollection);
+
+    for (Bson index : INDEXES) {
+      for (MongoCollection<RawBsonDocument> collection : todoCollections) {
+        collection.createIndex(index);
+      }
+      rawArchivedTodoCollection.createIndex(index);
+    }
+
+    // Rebuilding the counters reads every todo, so it's only done here
+    // if there aren't any yet (e.g., the todos were loaded with
+    // `mongoimport`). Otherwise it's up to `RebuildCounters`.
+    todoCounters = new TodoCounters(database, todoDocuments(database, todoCollections), this::decodeStored);
+    if (todoCounters.isEmpty()) {
+      todoCounters.rebuild();
+    }
+    // The counters already know every owner and category, and how many
+    // todos use each, so the in-memory indexes are loaded from them.
+    todoCounters.forEach(OWNER_KEY, (owner, count) -> {
+      ownerIndex.add(owner, count);
+      ownerSuggester.add(owner, count);
+    });
+    todoCounters.forEach(CATEGORY_KEY, categorySuggester::add);
+
+    changeLog = new TodoChangeLog(database);
+  }
+
+  /**
+   * @return every collection todos are kept in, including the archive
+   */
+  private static List<MongoCollection<Document>> todoDocuments(MongoDatabase database,
+      List<MongoCollection<RawBsonDocument>> todoCollections) {
+    List<MongoCollection<Document>> result = new ArrayList<>();
+    for (MongoCollection<RawBsonDocument> collection : todoCollections) {
+      result.add(collection.withDocumentClass(Document.class));
+    }
+    result.add(database.getCollection(TodoArchiver.COLLECTION_NAME));
+    return result;
+  }
+
+  /**
+   * Recompute the per-owner and per-category todo counters from the
+   * todos themselves, without starting a controller. This reads every
+   * todo, so it's for tools (see `RebuildCounters`), not for requests.
+   *
+   * @param database the database containing todo data
+   * @param dictionary the dictionary categories are encoded with, or
+   *   null if they aren't
+   * @param shards the shards the todos are split over, or null if
+   *   they're all in `database`
+   * @return how many counters of each kind there are now
+   */
+  public static Map<String, Integer> rebuildCounters(MongoDatabase database, Dictionary dictionary,
+      TodoShards shards) {
+    List<MongoCollection<RawBsonDocument>> todoCollections = shards == null
+      ? List.of(database.getCollection("todos", RawBsonDocument.class))
+      : shards.collections();
+    return new TodoCounters(database, todoDocuments(database, todoCollections),
+      (field, stored) -> decodeStored(dictionary, field, stored)).rebuild();
+  }
+
+  /**
+   * Turn a field's value as it's stored in Mongo into a string. Only
+   * categories are ever encoded.
+   *
+   * @return the string, or null if the value isn't one
+   */
+  private String decodeStored(String field, Object stored) {
+    return decodeStored(dictionary, field, stored);
+  }
+
+  private static String decodeStored(Dictionary dictionary, String field, Object stored) {
+    if (dictionary != null && field.equals(CATEGORY_KEY)) {
+      return dictionary.decodeStored(CATEGORY_DICTIONARY, stored);
+    }
+    return stored instanceof String ? (String) stored : null;
+  }
+
+  /**
+   * Turn a field's value into what should be stored in Mongo, which
+   * is a dictionary code for categories if encoding is on.
+   */
+  private Object encodeStored(String field, Object value) {
+    if (dictionary != null && field.equals(CATEGORY_KEY)) {
+      return dictionary.encode(CATEGORY_DICTIONARY, (String) value);
+    }
+    return value;
+  }
+
+  /**
+   * Build a `Todo` from a raw document, decoding its category.
+   */
+  private Todo todoFrom(RawBsonDocument document) {
+    Todo todo = new Todo();
+    todo._id = document.getObjectId("_id").getValue().toHexString();
+    todo.owner = decodeStored(OWNER_KEY, Dictionary.unwrap(document.get(OWNER_KEY)));
+    todo.status = Boolean.TRUE.equals(Dictionary.unwrap(document.get(STATUS_KEY)));
+    todo.body = decodeStored(BODY_KEY, Dictionary.unwrap(document.get(BODY_KEY)));
+    todo.category = decodeStored(CATEGORY_KEY, Dictionary.unwrap(document.get(CATEGORY_KEY)));
+    return todo;
+  }
+
+  /**
+   * Push every todo that's added or deleted to a live feed. This
+   * should be called before the server starts handling requests.
+   *
+   * @param feed the feed to publish to
+   */
+  public void publishChangesTo(ChangeFeed feed) {
+    changeFeed = feed;
+  }
+
+  /**
+   * Send list queries wherever `routing` says (see `ReadRouting`), and
+   * track writes so clients always see their own. This should be
+   * called before the server starts handling requests.
+   *
+   * @param routing the read router
+   */
+  public void enableReadRouting(ReadRouting routing) {
+    readRouting = routing;
+  }
+
+  /**
+   * Turn on batching of by-id lookups (see `ByIdBatcher`). This should
+   * be called before the server starts handling requests. Batching
+   * isn't used if the todos are sharded, since each lookup goes
+   * straight to its shard instead.
+   *
+   * @param window how long to wait for more lookups to join a batch
+   * @param maxBatchSize the most ids to put in a single query
+   */
+  public void enableByIdBatching(Duration window, int maxBatchSize) {
+    byIdBatcher = new ByIdBatcher(rawTodoCollection, window.toNanos(), maxBatchSize);
+  }
+
+  /**
+   * @return statistics on by-id batching, including batch sizes
+   */
+  public Map<String, Object> byIdBatchStats() {
+    return byIdBatcher == null ? Map.of("enabled", false) : byIdBatcher.stats();
+  }
+
+  /**
+   * Turn on archiving of completed todos (see `TodoArchiver`), which
+   * runs in the background every `interval`. This should be called
+   * before the server starts handling requests.
+   *
+   * @param olderThan how old a completed todo has to be to be archived
+   * @param interval how long to wait between archiving runs
+   */
+  public void enableArchiving(Duration olderThan, Duration interval) {
+    if (shards != null) {
+      throw new IllegalStateException("Archiving only works when the todos aren't sharded");
+    }
+    archiver = new TodoArchiver(database, olderThan, this::todosArchived);
+    archiver.start(interval);
+  }
+
+  /**
+   * Archive everything that's due right now, without waiting for the
+   * next run. Archiving has to have been turned on.
+   *
+   * @return how many todos were archived
+   */
+  long archiveNow() {
+    return archiver.archive();
+  }
+
+  /**
+   * @return statistics on archiving, including the size of the hot
+   *   todos before and after the last run
+   */
+  public Map<String, Object> archiveStats() {
+    return archiver == null ? Map.of("enabled", false) : archiver.stats();
+  }
+
+  /**
+   * Archived todos leave the default list, so clients following the
+   * change log or the live feed are told they've gone, as if they'd
+   * been deleted. They still count everywhere else (the counters,
+   * owners, and suggestions).
+   */
+  private void todosArchived(List<RawBsonDocument> moved) {
+    List<Todo> archived = new ArrayList<>(moved.size());
+    for (RawBsonDocument todo : moved) {
+      archived.add(todoFrom(todo));
+    }
+    changeLog.todosArchived(archived);
+    counts.invalidate();
+    archivedCounts.invalidate();
+    archived.forEach(todo -> publishChange("delete", todo));
   }
 
   /**
    * Get the single todo specified by the `id` parameter in the request.
+   * With `includeArchived=true`, archived todos are found too.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getTodo(Context ctx) {
-    String id = ctx.pathParam("id");
-    Todo todo;
+    ObjectId id = parseTodoId(ctx.pathParam("id"));
+    RequestTiming timing = RequestTiming.of(ctx);
+    RawBsonDocument todo = timing.time(Phase.DB, () -> findTodo(id, includeArchived(ctx)));
+    if (todo == null) {
+      throw new NotFoundResponse("The requested todo was not found.");
+    } else {
+      ctx.contentType("application/json").result(timing.time(Phase.JSON, () -> todoJson.toJson(todo)));
+    }
+  }
+
+  private RawBsonDocument findTodo(ObjectId id, boolean includeArchived) {
+    RawBsonDocument todo;
+    if (shards != null) {
+      todo = shards.find(id);
+    } else {
+      todo = byIdBatcher == null
+        ? rawTodoCollection.find(eq("_id", id)).first()
+        : byIdBatcher.load(id);
+    }
+    if (todo == null && includeArchived) {
+      todo = rawArchivedTodoCollection.find(eq("_id", id)).first();
+    }
+    return todo;
+  }
+
+  private static boolean includeArchived(Context ctx) {
+    return "true".equals(ctx.queryParam(INCLUDE_ARCHIVED_KEY));
+  }
 
+  /**
+   * Turn the id of a todo from a request into an `ObjectId`, responding
+   * with a 400 if it isn't a legal one.
+   */
+  private static ObjectId parseTodoId(String id) {
     try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
+      return new ObjectId(id);
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todo id wasn't a legal Mongo object id.");
     }
-    if (todo == null) {
-      throw new NotFoundResponse("The requested todo was not found.");
-    } else {
-      ctx.json(todo);
+  }
+
+  /**
+   * Get several todos at once, with the ids given as a JSON array in
+   * the `ids` field of the request body.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodosById(Context ctx) {
+    ObjectNode body = ctx.bodyValidator(ObjectNode.class)
+      .check(b -> b.has(IDS_KEY) && b.get(IDS_KEY).isArray(), "The request must have an array of todo ids")
+      .get();
+    List<String> ids = new ArrayList<>();
+    for (JsonNode id : body.get(IDS_KEY)) {
+      if (!id.isTextual()) {
+        throw new BadRequestResponse("Todo ids must be strings");
+      }
+      ids.add(id.asText());
+    }
+    sendTodosById(ctx, ids);
+  }
+
+  /**
+   * Respond with the todos with the given ids, in the same order,
+   * noting which ones weren't found.
+   */
+  private void sendTodosById(Context ctx, List<String> ids) {
+    if (ids.size() > MultiGet.MAX_IDS) {
+      throw new BadRequestResponse("At most " + MultiGet.MAX_IDS + " todos can be requested at once");
+    }
+    List<ObjectId> objectIds = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      objectIds.add(parseTodoId(id));
     }
+    ctx.contentType("application/json").result(shards == null
+      ? MultiGet.fetch(rawTodoCollection, todoJson, "todo", objectIds)
+      : MultiGet.respond(shards.findAll(objectIds), todoJson, "todo", objectIds));
   }
 
   /**
-   * Get a JSON response with a list of all the todos.
+   * Get a JSON response with a list of all the todos. With
+   * `includeArchived=true`, archived todos are listed too, merged in
+   * with the others in the requested order. If the todos are sharded,
+   * the query is sent to every shard and the results merged the same
+   * way.
    *
    * @param ctx a Javalin HTTP context
    */
   public void getTodos(Context ctx) {
+    // If specific ids were asked for, look up exactly those.
+    if (ctx.queryParamMap().containsKey(IDS_KEY)) {
+      sendTodosById(ctx, List.of(ctx.queryParam(IDS_KEY).split(",")));
+      return;
+    }
+    List<Bson> filters = listFilters(ctx);
+
+    // Sort the results. Use the `sortby` query param (default "owner",
+    // or "_id" when paging with `after`) as the field to sort by, and
+    // the query param `sortorder` (default "asc") to specify the sort
+    // order.
+    String sortBy = QueryParams.sortBy(ctx, "owner");
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    boolean descending = sortOrder.equals("desc");
+
+    Bson filter = filters.isEmpty() ? new Document() : and(filters);
+    Bson sort = SortedMerge.sort(sortBy, descending);
+
+    // Paging: skip the first `skip` todos and return at most `limit`
+    // of them. A `limit` of 0 (the default) means no limit.
+    int skip = ctx.queryParamAsClass(SKIP_KEY, Integer.class)
+      .check(n -> n >= 0, "skip must be non-negative")
+      .getOrDefault(0);
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(n -> n >= 0, "limit must be non-negative")
+      .getOrDefault(0);
+
+    // Tell the client how many todos match in total, so it can page
+    // through them. By default this comes from a cache (or the
+    // collection metadata), so it's usually free.
+    String filterKey = canonical(filter);
+    CountCache.Mode countMode = CountCache.Mode.fromParam(ctx.queryParam(COUNT_KEY));
+    RequestTiming timing = RequestTiming.of(ctx);
+    Long totalCount = timing.time(Phase.DB, () -> counts.count(countMode, filterKey, filter, filters.isEmpty()));
+    boolean includeArchived = includeArchived(ctx);
+    if (includeArchived && totalCount != null) {
+      totalCount += timing.time(Phase.DB,
+        () -> archivedCounts.count(countMode, filterKey, filter, filters.isEmpty()));
+    }
+    if (totalCount != null) {
+      ctx.header(TOTAL_COUNT_HEADER, totalCount.toString());
+    }
+
+    // A client that's just written something can't share a query that
+    // might have started before its write.
+    String queryKey = filterKey + " " + canonical(sort) + " " + skip + " " + limit
+      + " " + Objects.toString(ReadRouting.readAfter(ctx), "");
+    List<MongoCollection<RawBsonDocument>> sources = new ArrayList<>(todoCollections);
+    if (includeArchived) {
+      sources.add(rawArchivedTodoCollection);
+      queryKey += " archived";
+    }
+    if (sources.size() == 1) {
+      ctx.contentType("application/json").result(sharedList(timing, queryKey,
+        () -> listRead(ctx, (todos, session) ->
+          timing.toJsonArray(todoJson, sorted(todos, session, filter, sortBy, descending, skip, limit)))));
+      return;
+    }
+
+    // Ask each collection for its first `skip + limit` todos in order,
+    // then merge them; the page we want is somewhere in there.
+    int fetch = limit == 0 ? 0 : skip + limit;
+    ctx.contentType("application/json").result(sharedList(timing, queryKey,
+      () -> listRead(ctx, (todos, session) -> {
+        List<Iterable<RawBsonDocument>> pages = new ArrayList<>();
+        for (MongoCollection<RawBsonDocument> source : sources) {
+          pages.add(timing.fetching(sorted(source.withReadPreference(todos.getReadPreference()), session,
+            filter, sortBy, descending, 0, fetch)));
+        }
+        String mergeBy = sortsByValue(sortBy) ? Dictionary.SORT_KEY : sortBy;
+        return timing.toJsonArray(todoJson, SortedMerge.merge(
+          pages, SortedMerge.comparator(mergeBy, descending), skip, limit));
+      })));
+  }
+
+  /**
+   * Run a list query, or share an identical one that's already running
+   * (see `listQueries`). The request running the query times its own
+   * phases as usual; one that shares it has nothing to time but the
+   * wait, which counts as `db` in its `Server-Timing` header (and for
+   * the concurrency limiter), since that's what it's waiting on. Reads
+   * don't set the `readAfter` cookie, so there's nothing else to copy.
+   */
+  private byte[] sharedList(RequestTiming timing, String queryKey, Supplier<byte[]> query) {
+    return timing.time(Phase.DB, () -> listQueries.run(queryKey, query));
+  }
+
+  /**
+   * Whether sorting on this field has to look at the values it's
+   * stored as (dictionary codes) rather than sort them directly.
+   */
+  private boolean sortsByValue(String sortBy) {
+    return dictionary != null && sortBy.equals(CATEGORY_KEY);
+  }
+
+  /**
+   * Query one collection of todos for a page of a sorted list. Encoded
+   * categories are sorted by their values (see
+   * `Dictionary.sortByValue`), which takes an aggregation.
+   */
+  private Iterable<RawBsonDocument> sorted(MongoCollection<RawBsonDocument> collection, ClientSession session,
+      Bson filter, String sortBy, boolean descending, int skip, int limit) {
+    if (!sortsByValue(sortBy)) {
+      return ReadRouting.find(collection, session, filter).sort(SortedMerge.sort(sortBy, descending))
+        .skip(skip).limit(limit);
+    }
+    List<Bson> pipeline = new ArrayList<>();
+    pipeline.add(Aggregates.match(filter));
+    pipeline.addAll(dictionary.sortByValue(CATEGORY_KEY, CATEGORY_DICTIONARY, descending));
+    if (skip > 0) {
+      pipeline.add(Aggregates.skip(skip));
+    }
+    if (limit > 0) {
+      pipeline.add(Aggregates.limit(limit));
+    }
+    return (session == null ? collection.aggregate(pipeline) : collection.aggregate(session, pipeline))
+      .allowDiskUse(true);
+  }
+
+  /**
+   * Run a list query against the todos, through the read router if
+   * there is one. Shards are separate deployments with their own
+   * clients, so a session from the router can't be used with them;
+   * sharded todos are always read from each shard's primary.
+   */
+  private <T> T listRead(Context ctx, ReadRouting.Query<RawBsonDocument, T> query) {
+    return readRouting == null || shards != null
+      ? query.run(rawTodoCollection, null)
+      : readRouting.read(ctx, rawTodoCollection, query);
+  }
+
+  /**
+   * Run a write, in a causally consistent session if there's a read
+   * router (and the todos aren't sharded), so the client will be able
+   * to read it back from wherever its reads are sent.
+   */
+  private <T> T write(Context ctx, Function<ClientSession, T> operation) {
+    return readRouting == null || shards != null ? operation.apply(null) : readRouting.write(ctx, operation);
+  }
+
+  /**
+   * Stream every todo that matches the same filters as `getTodos` to
+   * the client as NDJSON (the default) or CSV, for bulk exports.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if writing the response fails
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    List<Bson> filters = listFilters(ctx);
+    Bson filter = filters.isEmpty() ? new Document() : and(filters);
+    // Export in `_id` order, which Mongo can walk from an index
+    // without having to sort the whole collection in memory.
+    List<FindIterable<RawBsonDocument>> sources = new ArrayList<>();
+    for (MongoCollection<RawBsonDocument> collection : todoCollections) {
+      sources.add(collection.find(filter).sort(Sorts.ascending("_id")));
+    }
+    StreamingExport.send(ctx, "todos", todoJson, sources, SortedMerge.comparator("_id", false));
+  }
+
+  /**
+   * Build the filters for the query parameters of `getTodos`. See
+   * `QueryParams.createdFilters` for the creation time and paging
+   * filters.
+   */
+  List<Bson> listFilters(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
 
+    if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
+      // Owner is a case-insensitive substring search. Rather than making
+      // Mongo scan with a regex, we look the substring up in our owner
+      // index and ask Mongo for exactly those owners, which it can answer
+      // from its own index on `owner`.
+      filters.add(in(OWNER_KEY, new TreeSet<>(ownerIndex.search(ctx.queryParam(OWNER_KEY)))));
+    }
+
+    filters.addAll(categoryAndStatusFilters(ctx, dictionary));
+    filters.addAll(QueryParams.createdFilters(ctx));
+
+    return filters;
+  }
+
+  /**
+   * Build the filters for the `category` and `status` query parameters.
+   * Several categories can be given at once, as `category=a,b`.
+   * These are shared by every endpoint that lists todos, including the
+   * ones that list a user's todos.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param dictionary the dictionary categories are encoded with, or
+   *   null if they aren't
+   * @return the filters (which might be empty)
+   */
+  public static List<Bson> categoryAndStatusFilters(Context ctx, Dictionary dictionary) {
+    List<Bson> filters = new ArrayList<>();
+
     if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
-        filters.add(eq(CATEGORY_KEY, ctx.queryParam(CATEGORY_KEY)));
+      if (dictionary == null) {
+        filters.add(QueryParams.anyOf(ctx, CATEGORY_KEY));
+      } else {
+        filters.add(dictionary.anyOf(CATEGORY_KEY, CATEGORY_DICTIONARY, QueryParams.values(ctx, CATEGORY_KEY)));
+      }
     }
 
     if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
@@ -76,15 +717,73 @@ public class TodoController {
       filters.add(eq(STATUS_KEY, targetStatus));
     }
 
-    // Sort the results. Use the `sortby` query param (default "owner")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "owner");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    return filters;
+  }
+
+  /**
+   * Turn a filter or sort into a string that's the same for any two
+   * requests that would run the same query, no matter how their query
+   * parameters were written.
+   */
+  private static String canonical(Bson bson) {
+    CodecRegistry registry = MongoClientSettings.getDefaultCodecRegistry();
+    return bson.toBsonDocument(BsonDocument.class, registry).toJson();
+  }
 
-    ctx.json(todoCollection.find(filters.isEmpty() ? new Document() : and(filters))
-      .sort(sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-      .into(new ArrayList<>()));
+  /**
+   * @return statistics on how often concurrent list queries were shared
+   */
+  public Map<String, Object> listQueryStats() {
+    return listQueries.stats();
+  }
+
+  /**
+   * Get a JSON response with the running totals of todos (and completed
+   * todos) for each owner or category, as chosen by the `by` parameter
+   * (default "owner"). If the `value` parameter is given, only the
+   * counter for that one owner or category is returned.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getCounters(Context ctx) {
+    String kind = Objects.requireNonNullElse(ctx.queryParam("by"), OWNER_KEY);
+    if (!TodoCounters.KINDS.contains(kind)) {
+      throw new BadRequestResponse("Todo counters are only kept by owner or category");
+    }
+
+    String value = ctx.queryParam("value");
+    if (value == null) {
+      ctx.json(todoCounters.list(kind));
+      return;
+    }
+    Map<String, Object> counter = todoCounters.get(kind, value);
+    if (counter == null) {
+      throw new NotFoundResponse("There are no todos with that " + kind);
+    }
+    ctx.json(counter);
+  }
+
+  /**
+   * Get a JSON response with the todos that have been added or deleted
+   * since the `since` token (see `TodoChangeLog` for the format). With
+   * no `since`, this just returns the current token, with no changes:
+   * a client should get that first, then load the full list of todos,
+   * then poll with the token from then on.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getChanges(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(SINCE_KEY)) {
+      ctx.json(Map.of(
+        "token", Long.toString(changeLog.currentToken()),
+        "more", false,
+        "changes", List.of()));
+      return;
+    }
+    long since = ctx.queryParamAsClass(SINCE_KEY, Long.class)
+      .check(n -> n >= 0, "since must be a token from an earlier request")
+      .get();
+    ctx.contentType("application/json").result(changeLog.changesSince(since));
   }
 
   /**
@@ -92,7 +791,8 @@ public class TodoController {
    * @param ctx
    */
   public void addNewTodo(Context ctx) {
-    Todo newTodo = ctx.bodyValidator(Todo.class)
+    RequestTiming timing = RequestTiming.of(ctx);
+    Todo newTodo = timing.time(Phase.DECODE, () -> ctx.bodyValidator(Todo.class)
       // Verify that the Todo has a owner that is not blank
       .check(tdo -> tdo.owner != null && tdo.owner.length() > 0, "Todo must have a non-empty Todo owner")
       // Verify that the status is one of the valid status
@@ -101,21 +801,430 @@ public class TodoController {
       .check(tdo -> tdo.body != null && tdo.body.length() > 0, "Todo must have a legal body")
       // Verify that the Todo has a category that is not blank
       .check(tdo -> tdo.category != null && tdo.category.length() > 0, "Todo must have a non-empty category owner")
-      .get();
+      .get());
 
-    todoCollection.insertOne(newTodo);
+    timing.time(Phase.DB, () -> write(ctx, session -> insertTodo(newTodo, session)));
+    todoAdded(newTodo);
     ctx.status(HttpCode.OK);
     ctx.json(Map.of("id", newTodo._id));
   }
 
+  private Todo insertTodo(Todo newTodo, ClientSession session) {
+    if (dictionary == null && shards == null) {
+      if (session == null) {
+        todoCollection.insertOne(newTodo);
+      } else {
+        todoCollection.insertOne(session, newTodo);
+      }
+      return newTodo;
+    }
+    ObjectId id = shards == null ? new ObjectId() : shards.newId(newTodo.owner);
+    MongoCollection<Document> collection = shards == null
+      ? database.getCollection("todos")
+      : shards.forOwner(newTodo.owner).withDocumentClass(Document.class);
+    Document document = new Document("_id", id)
+      .append(OWNER_KEY, newTodo.owner)
+      .append(STATUS_KEY, newTodo.status)
+      .append(BODY_KEY, newTodo.body)
+      .append(CATEGORY_KEY, encodeStored(CATEGORY_KEY, newTodo.category));
+    if (session == null) {
+      collection.insertOne(document);
+    } else {
+      collection.insertOne(session, document);
+    }
+    newTodo._id = id.toHexString();
+    return newTodo;
+  }
+
   /**
-   * Delete the todo specified by the `id` parameter in the request.
+   * Delete the todo specified by the `id` parameter in the request,
+   * whether or not it's been archived.
    *
    * @param ctx a Javalin HTTP context
    */
   public void deleteTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    todoCollection.deleteOne(eq("_id", new ObjectId(id)));
+    Bson byId = eq("_id", new ObjectId(id));
+    MongoCollection<RawBsonDocument> collection = collectionFor(new ObjectId(id));
+    RawBsonDocument deletedTodo = collection == null ? null : write(ctx, session -> session == null
+      ? collection.findOneAndDelete(byId)
+      : collection.findOneAndDelete(session, byId));
+    // The archive is always checked: a todo can be in both, if a run
+    // of the archiver died between copying it and deleting it.
+    RawBsonDocument archivedTodo = write(ctx, session -> session == null
+      ? rawArchivedTodoCollection.findOneAndDelete(byId)
+      : rawArchivedTodoCollection.findOneAndDelete(session, byId));
+    if (archivedTodo != null) {
+      archivedCounts.invalidate();
+    }
+    if (deletedTodo == null) {
+      deletedTodo = archivedTodo;
+    }
+    if (deletedTodo != null) {
+      todoRemoved(todoFrom(deletedTodo));
+    }
+  }
+
+  /**
+   * Change some of the fields of the todo specified by the `id`
+   * parameter, given as a JSON object in the request body (e.g.,
+   * `{"status": true}`). Only the given fields are written; they have
+   * to follow the same rules as when adding a todo. Changing an
+   * archived todo moves it back into the hot todos.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodo(Context ctx) {
+    ObjectId id = parseTodoId(ctx.pathParam("id"));
+    Map<String, Object> changes = validTodoChanges(ctx.bodyValidator(ObjectNode.class).get(), UPDATABLE_FIELDS);
+
+    FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE);
+    MongoCollection<RawBsonDocument> collection = collectionFor(id);
+    RawBsonDocument found = collection == null ? null : write(ctx, session -> session == null
+      ? collection.findOneAndUpdate(eq("_id", id), setAll(changes), options)
+      : collection.findOneAndUpdate(session, eq("_id", id), setAll(changes), options));
+    if (found == null && shards == null) {
+      found = unarchive(ctx, id, changes);
+    }
+    if (found == null) {
+      throw new NotFoundResponse("The requested todo was not found");
+    }
+    Todo before = todoFrom(found);
+    Todo after = withChanges(before, changes);
+    if (shards != null && !after.owner.equals(before.owner)) {
+      // Its new owner's todos might be on another shard
+      int from = todoCollections.indexOf(collection);
+      int to = shards.shardForOwner(after.owner);
+      if (from != to) {
+        shards.move(id, from, to);
+      }
+    }
+    boolean modified = !sameTodo(before, after);
+    if (modified) {
+      todoUpdated(before, after);
+    }
+    ctx.json(Map.of("matched", 1, "modified", modified ? 1 : 0));
+  }
+
+  /**
+   * Move an archived todo back into the hot todos, with `changes` made
+   * to it (usually it's being marked not complete again). It's copied
+   * before it's deleted from the archive, like `TodoArchiver` does the
+   * other way, so it's never missing from both.
+   *
+   * @return the todo as it was in the archive, or null if it isn't
+   *   archived
+   */
+  private RawBsonDocument unarchive(Context ctx, ObjectId id, Map<String, Object> changes) {
+    Bson byId = eq("_id", id);
+    RawBsonDocument archived = write(ctx, session -> session == null
+      ? rawArchivedTodoCollection.find(byId).first()
+      : rawArchivedTodoCollection.find(session, byId).first());
+    if (archived == null) {
+      return null;
+    }
+    Document changed = new Document();
+    changed.putAll(archived);
+    changes.forEach((name, value) -> changed.put(name, encodeStored(name, value)));
+    MongoCollection<Document> hot = rawTodoCollection.withDocumentClass(Document.class);
+    try {
+      write(ctx, session -> {
+        if (session == null) {
+          hot.insertOne(changed);
+        } else {
+          hot.insertOne(session, changed);
+        }
+        return null;
+      });
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+        throw e;
+      }
+      // Someone else moved it back first, so change it there instead
+      FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE);
+      return write(ctx, session -> session == null
+        ? rawTodoCollection.findOneAndUpdate(byId, setAll(changes), options)
+        : rawTodoCollection.findOneAndUpdate(session, byId, setAll(changes), options));
+    }
+    write(ctx, session -> session == null
+      ? rawArchivedTodoCollection.deleteOne(byId)
+      : rawArchivedTodoCollection.deleteOne(session, byId));
+    archivedCounts.invalidate();
+    return archived;
+  }
+
+  /**
+   * @return the collection the todo with this id is in (which is
+   *   always `rawTodoCollection` unless the todos are sharded), or null
+   *   if it isn't in any of them
+   */
+  private MongoCollection<RawBsonDocument> collectionFor(ObjectId id) {
+    if (shards == null) {
+      return rawTodoCollection;
+    }
+    int shard = shards.locate(id);
+    return shard < 0 ? null : todoCollections.get(shard);
+  }
+
+  /**
+   * Set the status of every todo that matches the same filters as
+   * `getTodos` (at least one of which has to be given), with the new
+   * status given in the request body as `{"status": true}`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodos(Context ctx) {
+    List<Bson> filters = listFilters(ctx);
+    if (filters.isEmpty()) {
+      throw new BadRequestResponse("Give at least one filter (owner, category, or status) to update todos in bulk");
+    }
+    Map<String, Object> changes = validTodoChanges(ctx.bodyValidator(ObjectNode.class).get(), List.of(STATUS_KEY));
+    boolean status = (Boolean) changes.get(STATUS_KEY);
+
+    // We find the matching todos first, so that every one that changes
+    // goes through the same bookkeeping (counters, change log, live
+    // feed) as a single update, then update them a batch at a time.
+    // Only todos that don't already have the new status are touched.
+    long[] matchedAndModified = write(ctx, session -> {
+      long matched = 0;
+      long modified = 0;
+      for (MongoCollection<RawBsonDocument> collection : todoCollections) {
+        // Changing a todo's status moves it in the indexes, so the
+        // cursor may come across one we've already updated again.
+        Set<String> updated = new HashSet<>();
+        List<Todo> batch = new ArrayList<>(BULK_UPDATE_BATCH_SIZE);
+        for (RawBsonDocument document : session == null
+            ? collection.find(and(filters))
+            : collection.find(session, and(filters))) {
+          Todo todo = todoFrom(document);
+          if (todo.status == status) {
+            if (!updated.contains(todo._id)) {
+              matched++;
+            }
+            continue;
+          }
+          matched++;
+          updated.add(todo._id);
+          batch.add(todo);
+          if (batch.size() == BULK_UPDATE_BATCH_SIZE) {
+            modified += updateStatus(session, collection, batch, status);
+            batch.clear();
+          }
+        }
+        if (!batch.isEmpty()) {
+          modified += updateStatus(session, collection, batch, status);
+        }
+      }
+      return new long[] {matched, modified};
+    });
+    ctx.json(Map.of("matched", matchedAndModified[0], "modified", matchedAndModified[1]));
+  }
+
+  /**
+   * Set the status of a batch of todos, and do the bookkeeping for
+   * the ones this changed.
+   *
+   * @return how many todos were changed
+   */
+  private long updateStatus(ClientSession session, MongoCollection<RawBsonDocument> collection, List<Todo> todos,
+      boolean status) {
+    List<ObjectId> ids = new ArrayList<>(todos.size());
+    for (Todo todo : todos) {
+      ids.add(new ObjectId(todo._id));
+    }
+    // Someone else may have changed some of these since we read them,
+    // in which case they've already done the bookkeeping for them. Tag
+    // the ones we change, so we know exactly which those are.
+    ObjectId updateId = new ObjectId();
+    Bson ours = and(in("_id", ids), eq(BULK_UPDATE_KEY, updateId));
+    Bson update = Updates.combine(Updates.set(STATUS_KEY, status), Updates.set(BULK_UPDATE_KEY, updateId));
+    Bson filter = and(in("_id", ids), ne(STATUS_KEY, status));
+    long modified = (session == null
+      ? collection.updateMany(filter, update)
+      : collection.updateMany(session, filter, update)).getModifiedCount();
+    if (modified == 0) {
+      return 0;
+    }
+
+    List<Todo> changed = todos;
+    if (modified < todos.size()) {
+      Set<String> changedIds = new HashSet<>();
+      for (RawBsonDocument document : (session == null ? collection.find(ours) : collection.find(session, ours))
+          .projection(Projections.include("_id"))) {
+        changedIds.add(document.getObjectId("_id").getValue().toHexString());
+      }
+      changed = new ArrayList<>();
+      for (Todo todo : todos) {
+        if (changedIds.contains(todo._id)) {
+          changed.add(todo);
+        }
+      }
+    }
+    if (session == null) {
+      collection.updateMany(ours, Updates.unset(BULK_UPDATE_KEY));
+    } else {
+      collection.updateMany(session, ours, Updates.unset(BULK_UPDATE_KEY));
+    }
+
+    Map<String, Object> changes = Map.of(STATUS_KEY, status);
+    List<Todo> after = new ArrayList<>(changed.size());
+    for (Todo todo : changed) {
+      after.add(withChanges(todo, changes));
+    }
+    todosUpdated(changed, after);
+    return modified;
+  }
+
+  /**
+   * Check the fields to change in a todo against the rules for todos.
+   *
+   * @param body the JSON object from the request
+   * @param allowed the fields that are allowed to be changed
+   * @return the new value for each field being changed
+   */
+  private static Map<String, Object> validTodoChanges(ObjectNode body, List<String> allowed) {
+    if (body == null || body.size() == 0) {
+      throw new BadRequestResponse("Give at least one of " + String.join(", ", allowed) + " to change");
+    }
+    Map<String, Object> changes = new LinkedHashMap<>();
+    body.fields().forEachRemaining(field -> {
+      String name = field.getKey();
+      JsonNode value = field.getValue();
+      if (!allowed.contains(name)) {
+        throw new BadRequestResponse("Only " + String.join(", ", allowed) + " can be changed, not " + name);
+      }
+      if (name.equals(STATUS_KEY)) {
+        if (!value.isBoolean()) {
+          throw new BadRequestResponse("Todo must have a legal Todo status");
+        }
+        changes.put(name, value.booleanValue());
+      } else {
+        if (!value.isTextual() || value.asText().isEmpty()) {
+          throw new BadRequestResponse("Todo must have a non-empty " + name);
+        }
+        changes.put(name, value.asText());
+      }
+    });
+    return changes;
+  }
+
+  private Bson setAll(Map<String, Object> changes) {
+    List<Bson> updates = new ArrayList<>();
+    changes.forEach((name, value) -> updates.add(Updates.set(name, encodeStored(name, value))));
+    return Updates.combine(updates);
+  }
+
+  private static Todo withChanges(Todo todo, Map<String, Object> changes) {
+    Todo result = new Todo();
+    result._id = todo._id;
+    result.owner = (String) changes.getOrDefault(OWNER_KEY, todo.owner);
+    result.status = (Boolean) changes.getOrDefault(STATUS_KEY, todo.status);
+    result.body = (String) changes.getOrDefault(BODY_KEY, todo.body);
+    result.category = (String) changes.getOrDefault(CATEGORY_KEY, todo.category);
+    return result;
+  }
+
+  private static boolean sameTodo(Todo a, Todo b) {
+    return a.status == b.status
+      && Objects.equals(a.owner, b.owner)
+      && Objects.equals(a.body, b.body)
+      && Objects.equals(a.category, b.category);
+  }
+
+  /**
+   * Bring all our in-memory views of the todos up to date after a
+   * todo has been added.
+   */
+  private void todoAdded(Todo todo) {
+    todoCounters.todoAdded(todo);
+    changeLog.todoAdded(todo);
+    counts.invalidate();
+    ownerIndex.add(todo.owner);
+    ownerSuggester.add(todo.owner);
+    categorySuggester.add(todo.category);
+    publishChange("insert", todo);
+  }
+
+  /**
+   * Bring all our in-memory views of the todos up to date after a
+   * todo has been removed.
+   */
+  private void todoRemoved(Todo todo) {
+    todoCounters.todoRemoved(todo);
+    changeLog.todoRemoved(todo);
+    counts.invalidate();
+    ownerIndex.remove(todo.owner);
+    ownerSuggester.remove(todo.owner);
+    categorySuggester.remove(todo.category);
+    publishChange("delete", todo);
+  }
+
+  /**
+   * Bring all our in-memory views of the todos up to date after a
+   * todo has been changed.
+   */
+  private void todoUpdated(Todo before, Todo after) {
+    todoCounters.todoRemoved(before);
+    todoCounters.todoAdded(after);
+    changeLog.todoUpdated(after);
+    counts.invalidate();
+    ownerIndex.remove(before.owner);
+    ownerIndex.add(after.owner);
+    ownerSuggester.remove(before.owner);
+    ownerSuggester.add(after.owner);
+    categorySuggester.remove(before.category);
+    categorySuggester.add(after.category);
+    publishChange("update", after);
+  }
+
+  /**
+   * Bring all our in-memory views of the todos up to date after a
+   * batch of todos has been changed, writing the counters and change
+   * log in one go rather than a todo at a time.
+   */
+  private void todosUpdated(List<Todo> before, List<Todo> after) {
+    todoCounters.todosUpdated(before, after);
+    changeLog.todosUpdated(after);
+    counts.invalidate();
+    for (int i = 0; i < before.size(); i++) {
+      ownerIndex.remove(before.get(i).owner);
+      ownerIndex.add(after.get(i).owner);
+      ownerSuggester.remove(before.get(i).owner);
+      ownerSuggester.add(after.get(i).owner);
+      categorySuggester.remove(before.get(i).category);
+      categorySuggester.add(after.get(i).category);
+      publishChange("update", after.get(i));
+    }
+  }
+
+  private void publishChange(String op, Todo todo) {
+    if (changeFeed == null) {
+      return;
+    }
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("collection", "todos");
+    attributes.put(OWNER_KEY, todo.owner);
+    attributes.put(CATEGORY_KEY, todo.category);
+    Map<String, Object> payload = new LinkedHashMap<>();
+    payload.put("collection", "todos");
+    payload.put("op", op);
+    payload.put("id", todo._id);
+    payload.put("todo", todo);
+    changeFeed.publish(op, attributes, payload);
+  }
+
+  /**
+   * @return typeahead suggestions for todo owners
+   */
+  public PrefixSuggester getOwnerSuggester() {
+    return ownerSuggester;
+  }
+
+  /**
+   * @return typeahead suggestions for todo categories
+   */
+  public PrefixSuggester getCategorySuggester() {
+    return categorySuggester;
   }
 
 }
@@ -0,0 +1,246 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.ne;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Keeps running totals of todos (and completed todos) per owner and
+ * per category in a separate `todoCounters` collection, so summary
+ * numbers can be read with a single lookup instead of an aggregation
+ * over all the todos.
+ *
+ * Each counter document looks like
+ *
+ *   { _id: "owner:Blanche", kind: "owner", value: "Blanche", total: 12, complete: 5 }
+ *
+ * The counters are bumped with `$inc` every time `TodoController`
+ * adds or deletes a todo. Since that's not in the same transaction as
+ * the todo write itself, they can drift (e.g., if the server dies in
+ * between, or someone edits the database by hand), so `rebuild` can
+ * recompute them all from scratch. That reads every todo, so it's only
+ * done when asked (see `RebuildCounters`), or when there are no
+ * counters at all yet.
+ */
+class TodoCounters {
+
+  static final List<String> KINDS = List.of("owner", "category");
+
+  private static final String COLLECTION_NAME = "todoCounters";
+
+  private static final int REBUILD_BATCH_SIZE = 1000;
+
+  // Archived todos still count, so this is every collection todos
+  // are kept in (shards included), plus the archive.
+  private final List<MongoCollection<Document>> todoDocuments;
+  private final MongoCollection<Document> counters;
+
+  // Turns a field's stored value (which might be a dictionary code)
+  // into its string, or null if it isn't one.
+  private final BiFunction<String, Object, String> decode;
+
+  TodoCounters(MongoDatabase database, List<MongoCollection<Document>> todoDocuments,
+      BiFunction<String, Object, String> decode) {
+    this.decode = decode;
+    this.todoDocuments = todoDocuments;
+    counters = database.getCollection(COLLECTION_NAME);
+    counters.createIndex(Indexes.ascending("kind", "value"));
+  }
+
+  /**
+   * @return true if there are no counters at all, e.g., because the
+   *   database was just loaded without them
+   */
+  boolean isEmpty() {
+    return counters.find().first() == null;
+  }
+
+  void todoAdded(Todo todo) {
+    write(adjust(new LinkedHashMap<>(), todo, 1));
+  }
+
+  void todoRemoved(Todo todo) {
+    write(adjust(new LinkedHashMap<>(), todo, -1));
+  }
+
+  /**
+   * Move each of `before` to the matching todo in `after`, in one
+   * round trip however many todos there are.
+   */
+  void todosUpdated(List<Todo> before, List<Todo> after) {
+    Map<List<String>, int[]> deltas = new LinkedHashMap<>();
+    before.forEach(todo -> adjust(deltas, todo, -1));
+    after.forEach(todo -> adjust(deltas, todo, 1));
+    write(deltas);
+  }
+
+  // Add a todo's contribution to the running changes, which are
+  // { total, complete } per (kind, value).
+  private static Map<List<String>, int[]> adjust(Map<List<String>, int[]> deltas, Todo todo, int delta) {
+    for (String kind : KINDS) {
+      String value = kind.equals("owner") ? todo.owner : todo.category;
+      if (value == null) {
+        continue;
+      }
+      int[] counts = deltas.computeIfAbsent(List.of(kind, value), key -> new int[2]);
+      counts[0] += delta;
+      counts[1] += todo.status ? delta : 0;
+    }
+    return deltas;
+  }
+
+  private void write(Map<List<String>, int[]> deltas) {
+    List<WriteModel<Document>> updates = new ArrayList<>();
+    deltas.forEach((key, counts) -> {
+      if (counts[0] == 0 && counts[1] == 0) {
+        return;
+      }
+      String kind = key.get(0);
+      String value = key.get(1);
+      updates.add(new UpdateOneModel<>(
+        eq("_id", counterId(kind, value)),
+        Updates.combine(
+          Updates.setOnInsert("kind", kind),
+          Updates.setOnInsert("value", value),
+          Updates.inc("total", counts[0]),
+          Updates.inc("complete", counts[1])),
+        new UpdateOptions().upsert(true)));
+    });
+    if (!updates.isEmpty()) {
+      counters.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    }
+  }
+
+  /**
+   * Look up a single counter.
+   *
+   * @return the counter, or null if there are no todos with that value
+   */
+  Map<String, Object> get(String kind, String value) {
+    Document counter = counters.find(eq("_id", counterId(kind, value))).first();
+    return counter == null || counter.getInteger("total", 0) <= 0 ? null : describe(counter);
+  }
+
+  /**
+   * List all the counters of one kind, in order of their values.
+   */
+  List<Map<String, Object>> list(String kind) {
+    List<Map<String, Object>> result = new ArrayList<>();
+    for (Document counter : counters.find(eq("kind", kind)).sort(Sorts.ascending("value"))) {
+      if (counter.getInteger("total", 0) > 0) {
+        result.add(describe(counter));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Call `action` with the value and total of every counter of one
+   * kind that has any todos.
+   */
+  void forEach(String kind, BiConsumer<String, Integer> action) {
+    for (Document counter : counters.find(and(eq("kind", kind), gt("total", 0)))) {
+      action.accept(counter.getString("value"), counter.getInteger("total"));
+    }
+  }
+
+  /**
+   * Recompute every counter from the todos themselves, fixing any
+   * drift.
+   *
+   * @return how many counters of each kind there are now
+   */
+  Map<String, Integer> rebuild() {
+    // Every counter written by this rebuild is tagged with its id, so
+    // the ones for values that no longer exist are the ones without it.
+    ObjectId rebuildId = new ObjectId();
+    Map<String, Integer> rebuilt = new LinkedHashMap<>();
+    for (String kind : KINDS) {
+      // value -> { total, complete }, summed over the collections
+      Map<String, int[]> totals = new LinkedHashMap<>();
+      for (MongoCollection<Document> collection : todoDocuments) {
+        for (Document group : collection.aggregate(List.of(
+            Aggregates.group("$" + kind,
+              Accumulators.sum("total", 1),
+              Accumulators.sum("complete", new Document("$cond", List.of("$status", 1, 0))))))) {
+          String value = decode.apply(kind, group.get("_id"));
+          if (value == null) {
+            continue;
+          }
+          int[] counts = totals.computeIfAbsent(value, v -> new int[2]);
+          counts[0] += group.getInteger("total");
+          counts[1] += group.getInteger("complete");
+        }
+      }
+
+      // Write the new values over the old ones (rather than dropping
+      // everything first) so readers never see the counters missing,
+      // then clear out counters for values that no longer exist.
+      List<ReplaceOneModel<Document>> replacements = new ArrayList<>(REBUILD_BATCH_SIZE);
+      for (Map.Entry<String, int[]> entry : totals.entrySet()) {
+        String value = entry.getKey();
+        String id = counterId(kind, value);
+        replacements.add(new ReplaceOneModel<>(
+          eq("_id", id),
+          new Document("_id", id)
+            .append("kind", kind)
+            .append("value", value)
+            .append("total", entry.getValue()[0])
+            .append("complete", entry.getValue()[1])
+            .append("rebuild", rebuildId),
+          new ReplaceOptions().upsert(true)));
+        if (replacements.size() == REBUILD_BATCH_SIZE) {
+          counters.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+          replacements.clear();
+        }
+      }
+      if (!replacements.isEmpty()) {
+        counters.bulkWrite(replacements, new BulkWriteOptions().ordered(false));
+      }
+      counters.deleteMany(and(eq("kind", kind), ne("rebuild", rebuildId)));
+      rebuilt.put(kind, totals.size());
+    }
+    return rebuilt;
+  }
+
+  private static String counterId(String kind, String value) {
+    return kind + ":" + value;
+  }
+
+  private static Map<String, Object> describe(Document counter) {
+    int total = counter.getInteger("total", 0);
+    int complete = counter.getInteger("complete", 0);
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("kind", counter.getString("kind"));
+    result.put("value", counter.getString("value"));
+    result.put("total", total);
+    result.put("complete", complete);
+    result.put("completionRate", total == 0 ? 0.0 : (double) complete / total);
+    return result;
+  }
+}
@@ -0,0 +1,299 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+/**
+ * Splits the todos across several Mongo deployments ("shards"), so no
+ * one of them has to hold (or serve) all of them.
+ *
+ * Each todo lives on the shard its owner hashes to on a consistent
+ * hash ring, so all of an owner's todos are in one place, and adding
+ * a shard only moves the owners whose part of the ring it takes over
+ * (about 1/N of them) rather than reshuffling everything. Each shard
+ * gets many points on the ring (`VIRTUAL_NODES`) to even out the load.
+ *
+ * The number of the shard each new todo is put on is also written
+ * into its id (in the last byte of the ObjectId's process-unique
+ * random value, which otherwise never changes within a process), so
+ * a todo can be found from its id alone, without asking every shard.
+ * The timestamp, the counter, and the rest of the random value are
+ * untouched, so ids still sort by creation time and don't collide
+ * with other processes'. A todo whose id doesn't lead to it (one
+ * created before sharding was turned on, or whose owner has changed
+ * or which has been rebalanced since) is still found by asking the
+ * other shards.
+ *
+ * Shards are identified by their position in the list, so new shards
+ * must only ever be added to the end of it; `RebalanceShards` then
+ * moves the todos that now belong on the new shard.
+ */
+public class TodoShards {
+
+  static final int VIRTUAL_NODES = 128;
+
+  /**
+   * The most shards there can be, since a shard's number has to fit
+   * in a byte of the ids.
+   */
+  public static final int MAX_SHARDS = 256;
+
+  private static final int REBALANCE_BATCH_SIZE = 1000;
+
+  // A ring position is the first 3 bytes of an MD5 hash.
+  private static final int POSITION_BYTES = 3;
+  // An ObjectId is a 4-byte timestamp, a 5-byte random value, and a
+  // 3-byte counter; the shard number goes in the random value's last
+  // byte.
+  private static final int SHARD_OFFSET = 8;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int BITS_PER_BYTE = 8;
+
+  private final List<MongoCollection<RawBsonDocument>> collections = new ArrayList<>();
+
+  // Ring position -> shard number
+  private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+  /**
+   * Construct the shards.
+   *
+   * @param databases the database on each shard, in shard order
+   */
+  public TodoShards(List<MongoDatabase> databases) {
+    if (databases.isEmpty()) {
+      throw new IllegalArgumentException("There has to be at least one shard");
+    }
+    if (databases.size() > MAX_SHARDS) {
+      throw new IllegalArgumentException("There can be at most " + MAX_SHARDS + " shards");
+    }
+    for (int shard = 0; shard < databases.size(); shard++) {
+      collections.add(databases.get(shard).getCollection("todos", RawBsonDocument.class));
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(position("shard-" + shard + "-" + node), shard);
+      }
+    }
+  }
+
+  /**
+   * @return the todos collection on each shard, in shard order
+   */
+  public List<MongoCollection<RawBsonDocument>> collections() {
+    return collections;
+  }
+
+  /**
+   * @return the number of the shard an owner's todos belong on
+   */
+  int shardForOwner(String owner) {
+    return shardAt(position(owner));
+  }
+
+  /**
+   * @return the number of the shard a todo with this id was put on
+   *   when it was created
+   */
+  int shardForId(ObjectId id) {
+    // An id from before sharding has a random byte here
+    return (id.toByteArray()[SHARD_OFFSET] & BYTE_MASK) % collections.size();
+  }
+
+  private int shardAt(int position) {
+    Map.Entry<Integer, Integer> next = ring.ceilingEntry(position);
+    return next == null ? ring.firstEntry().getValue() : next.getValue();
+  }
+
+  /**
+   * @return the todos collection an owner's todos belong in
+   */
+  public MongoCollection<RawBsonDocument> forOwner(String owner) {
+    return collections.get(shardForOwner(owner));
+  }
+
+  /**
+   * Make a new id for a todo, with its owner's shard in it.
+   *
+   * @param owner the todo's owner
+   * @return the id
+   */
+  ObjectId newId(String owner) {
+    byte[] bytes = new ObjectId().toByteArray();
+    bytes[SHARD_OFFSET] = (byte) shardForOwner(owner);
+    return new ObjectId(bytes);
+  }
+
+  /**
+   * Find the shard a todo is on, trying the one its id points to first.
+   *
+   * @param id the todo's id
+   * @return the shard's number, or -1 if it isn't on any of them
+   */
+  int locate(ObjectId id) {
+    int expected = shardForId(id);
+    if (collections.get(expected).countDocuments(eq("_id", id)) > 0) {
+      return expected;
+    }
+    for (int shard = 0; shard < collections.size(); shard++) {
+      if (shard != expected && collections.get(shard).countDocuments(eq("_id", id)) > 0) {
+        return shard;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Look up a todo by id, trying the shard its id points to first.
+   *
+   * @param id the todo's id
+   * @return the todo, or null if there isn't one with that id
+   */
+  RawBsonDocument find(ObjectId id) {
+    return findAll(List.of(id)).get(id);
+  }
+
+  /**
+   * Look up several todos by id. This asks each shard once for the
+   * todos whose ids point to it, and then only if some weren't found,
+   * asks every shard once more for the rest.
+   *
+   * @param ids the ids to look up
+   * @return the todos that were found, by id
+   */
+  Map<ObjectId, RawBsonDocument> findAll(Collection<ObjectId> ids) {
+    Map<Integer, List<ObjectId>> byShard = new HashMap<>();
+    for (ObjectId id : new LinkedHashSet<>(ids)) {
+      byShard.computeIfAbsent(shardForId(id), shard -> new ArrayList<>()).add(id);
+    }
+    Map<ObjectId, RawBsonDocument> found = new HashMap<>();
+    byShard.forEach((shard, shardIds) -> {
+      for (RawBsonDocument todo : collections.get(shard).find(in("_id", shardIds))) {
+        found.put(todo.getObjectId("_id").getValue(), todo);
+      }
+    });
+
+    Set<ObjectId> missing = new LinkedHashSet<>(ids);
+    missing.removeAll(found.keySet());
+    if (!missing.isEmpty()) {
+      for (MongoCollection<RawBsonDocument> collection : collections) {
+        for (RawBsonDocument todo : collection.find(in("_id", missing))) {
+          found.put(todo.getObjectId("_id").getValue(), todo);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Move every todo in `source` whose owner belongs on some other
+   * shard to that shard. Each batch is copied before it's deleted (as
+   * in `TodoArchiver`), so a todo is never missing; while it's being
+   * moved it's briefly on both shards, so it's best to rebalance while
+   * the server is stopped.
+   *
+   * @param source a todos collection: one of `collections()`, or an
+   *   unsharded `todos` collection that's being split up
+   * @param dryRun if true, just count what would be moved
+   * @return how many todos were (or would be) moved to each shard
+   */
+  public long[] rebalance(MongoCollection<RawBsonDocument> source, boolean dryRun) {
+    long[] moved = new long[collections.size()];
+    // Owners come from a cursor rather than `distinct`, whose answer
+    // has to fit in a single 16MB document.
+    for (Document group : source.aggregate(List.of(Aggregates.group("$owner")), Document.class)
+        .allowDiskUse(true)) {
+      if (!(group.get("_id") instanceof String)) {
+        continue;
+      }
+      String owner = group.getString("_id");
+      int target = shardForOwner(owner);
+      MongoCollection<RawBsonDocument> destination = collections.get(target);
+      if (destination == source) {
+        continue;
+      }
+      if (dryRun) {
+        moved[target] += source.countDocuments(eq("owner", owner));
+        continue;
+      }
+      List<RawBsonDocument> batch;
+      do {
+        batch = source.find(eq("owner", owner)).limit(REBALANCE_BATCH_SIZE).into(new ArrayList<>());
+        if (!batch.isEmpty()) {
+          moved[target] += moveBatch(batch, source, destination);
+        }
+      } while (batch.size() == REBALANCE_BATCH_SIZE);
+    }
+    return moved;
+  }
+
+  /**
+   * Move one todo from one shard to another (e.g., after its owner
+   * has changed).
+   */
+  void move(ObjectId id, int from, int to) {
+    RawBsonDocument todo = collections.get(from).find(eq("_id", id)).first();
+    if (todo != null) {
+      moveBatch(List.of(todo), collections.get(from), collections.get(to));
+    }
+  }
+
+  private static long moveBatch(List<RawBsonDocument> batch, MongoCollection<RawBsonDocument> from,
+      MongoCollection<RawBsonDocument> to) {
+    List<ObjectId> ids = new ArrayList<>(batch.size());
+    for (RawBsonDocument todo : batch) {
+      ids.add(todo.getObjectId("_id").getValue());
+    }
+    try {
+      to.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // Already copied by an earlier run that died before deleting
+      for (BulkWriteError error : e.getWriteErrors()) {
+        if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+          throw e;
+        }
+      }
+    }
+    return from.deleteMany(in("_id", ids)).getDeletedCount();
+  }
+
+  /**
+   * @return the ring position of a string: the first 3 bytes of its
+   *   MD5 hash, so positions are spread evenly whatever the owners'
+   *   names look like
+   */
+  static int position(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      int position = 0;
+      for (int i = 0; i < POSITION_BYTES; i++) {
+        position = (position << BITS_PER_BYTE) | (hash[i] & BYTE_MASK);
+      }
+      return position;
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to have MD5
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -2,21 +2,47 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
 import static com.mongodb.client.model.Filters.regex;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Sorts;
 
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
@@ -25,27 +51,213 @@ import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ByIdBatcher;
+import umm3601.ChangeFeed;
+import umm3601.CountCache;
+import umm3601.Dictionary;
+import umm3601.MultiGet;
+import umm3601.PrefixSuggester;
+import umm3601.QueryParams;
+import umm3601.ReadRouting;
+import umm3601.RequestTiming;
+import umm3601.RequestTiming.Phase;
+import umm3601.RawJsonTranscoder;
+import umm3601.RawJsonTranscoder.FieldType;
+import umm3601.SingleFlight;
+import umm3601.StreamingExport;
+import umm3601.todo.TodoController;
+import umm3601.todo.TodoShards;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController {
 
+  private static final String NAME_KEY = "name";
   private static final String AGE_KEY = "age";
+  private static final String MIN_AGE_KEY = "minAge";
+  private static final String MAX_AGE_KEY = "maxAge";
   private static final String COMPANY_KEY = "company";
   private static final String ROLE_KEY = "role";
+  private static final String SKIP_KEY = "skip";
+  private static final String LIMIT_KEY = "limit";
+  private static final String COUNT_KEY = "count";
+  private static final String EMBED_KEY = "embed";
+  private static final String IDS_KEY = "ids";
+
+  private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+  /**
+   * The indexes the list queries rely on. Each is laid out
+   * equality-sort-range: fields tested for equality (or `$in`) first,
+   * then the default sort field (`name`), then the range field (`age`),
+   * so a filtered, sorted page is read in order straight off the index
+   * without an in-memory sort.
+   */
+  public static final List<Bson> INDEXES = List.of(
+    Indexes.ascending(ROLE_KEY, NAME_KEY, AGE_KEY),
+    Indexes.ascending(NAME_KEY, AGE_KEY));
 
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // The fields here have to stay in the same order as they're
+  // declared in `User` so that the JSON we send out is identical
+  // to what Jackson would produce.
+  private static final RawJsonTranscoder USER_JSON = new RawJsonTranscoder()
+    .field("_id", FieldType.OBJECT_ID)
+    .field("name", FieldType.STRING)
+    .field("age", FieldType.INT)
+    .field("company", FieldType.STRING)
+    .field("email", FieldType.STRING)
+    .field("avatar", FieldType.STRING)
+    .field("role", FieldType.STRING);
+
+  /**
+   * The names user roles and companies are encoded under in a `Dictionary`.
+   */
+  public static final String ROLE_DICTIONARY = "users.role";
+  public static final String COMPANY_DICTIONARY = "users.company";
+
+  // The fields that are encoded, and what they're encoded under
+  private static final Map<String, String> ENCODED_FIELDS =
+    Map.of(ROLE_KEY, ROLE_DICTIONARY, COMPANY_KEY, COMPANY_DICTIONARY);
+
+  private final MongoDatabase database;
+
+  // If dictionary encoding is turned on, roles and companies are stored
+  // as codes from this dictionary. This is null when encoding is off.
+  private final Dictionary dictionary;
+
+  // Write users (and their todos) as JSON, decoding anything encoded.
+  private final RawJsonTranscoder userJson;
+  private final RawJsonTranscoder todoJson;
+
   private final JacksonMongoCollection<User> userCollection;
 
+  // The read-only endpoints skip the `User` POJOs entirely and
+  // transcode the raw BSON straight into JSON.
+  private final MongoCollection<RawBsonDocument> rawUserCollection;
+  private final MongoCollection<RawBsonDocument> rawTodoCollection;
+
+  // Identical list queries that arrive at the same time share one
+  // trip to the database and one JSON buffer.
+  private final SingleFlight<String, byte[]> listQueries = new SingleFlight<>();
+
+  private final CountCache counts;
+
+  // If batching is turned on, by-id lookups that arrive together
+  // share a single query. This is null when batching is off.
+  private ByIdBatcher byIdBatcher;
+
+  // Where list queries read from, and how writes are tracked so
+  // clients can read them back. This is null when every read goes to
+  // the primary.
+  private ReadRouting readRouting;
+
+  // Where to push adds and deletes to live clients, or null if no one
+  // is listening.
+  private ChangeFeed changeFeed;
+
+  // Which shard each user's todos are on, if the todos are sharded.
+  // This is null when they're all in `database`.
+  private TodoShards todoShards;
+
+  // Companies with how often each is used, for typeahead.
+  private final PrefixSuggester companySuggester = new PrefixSuggester();
+
   /**
    * Construct a controller for users.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
+    this(database, null);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param dictionary the dictionary to store roles and companies (and
+   *   todo categories) as codes from, or null to store them as plain
+   *   strings
+   */
+  public UserController(MongoDatabase database, Dictionary dictionary) {
+    this.database = database;
+    this.dictionary = dictionary;
+    if (dictionary == null) {
+      userJson = USER_JSON;
+      todoJson = TodoController.TODO_JSON;
+    } else {
+      userJson = USER_JSON.decodedWith(dictionary, ENCODED_FIELDS);
+      todoJson = TodoController.TODO_JSON.decodedWith(dictionary,
+        Map.of("category", TodoController.CATEGORY_DICTIONARY));
+    }
     userCollection = JacksonMongoCollection.builder().build(database, "users", User.class);
+    rawUserCollection = database.getCollection("users", RawBsonDocument.class);
+    rawTodoCollection = database.getCollection("todos", RawBsonDocument.class);
+    counts = new CountCache(rawUserCollection);
+
+    for (Bson index : INDEXES) {
+      rawUserCollection.createIndex(index);
+    }
+    for (Document company : database.getCollection("users").aggregate(List.of(
+        Aggregates.group("$" + COMPANY_KEY, Accumulators.sum("count", 1))))) {
+      String name = decodeStored(COMPANY_KEY, company.get("_id"));
+      if (name != null) {
+        companySuggester.add(name, company.getInteger("count"));
+      }
+    }
+  }
+
+  /**
+   * Push every user that's added or deleted to a live feed. This
+   * should be called before the server starts handling requests.
+   *
+   * @param feed the feed to publish to
+   */
+  public void publishChangesTo(ChangeFeed feed) {
+    changeFeed = feed;
+  }
+
+  /**
+   * Send list queries wherever `routing` says (see `ReadRouting`), and
+   * track writes so clients always see their own. This should be
+   * called before the server starts handling requests.
+   *
+   * @param routing the read router
+   */
+  public void enableReadRouting(ReadRouting routing) {
+    readRouting = routing;
+  }
+
+  /**
+   * Look for users' todos on the shards (see `TodoShards`) instead of
+   * in this database. This should be called before the server starts
+   * handling requests.
+   *
+   * @param shards the shards the todos are on
+   */
+  public void enableTodoShards(TodoShards shards) {
+    todoShards = shards;
+  }
+
+  /**
+   * Turn on batching of by-id lookups (see `ByIdBatcher`). This should
+   * be called before the server starts handling requests.
+   *
+   * @param window how long to wait for more lookups to join a batch
+   * @param maxBatchSize the most ids to put in a single query
+   */
+  public void enableByIdBatching(Duration window, int maxBatchSize) {
+    byIdBatcher = new ByIdBatcher(rawUserCollection, window.toNanos(), maxBatchSize);
+  }
+
+  /**
+   * @return statistics on by-id batching, including batch sizes
+   */
+  public Map<String, Object> byIdBatchStats() {
+    return byIdBatcher == null ? Map.of("enabled", false) : byIdBatcher.stats();
   }
 
   /**
@@ -54,19 +266,132 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void getUser(Context ctx) {
-    String id = ctx.pathParam("id");
-    User user;
+    ObjectId id = parseUserId(ctx.pathParam("id"));
 
-    try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
-    } catch (IllegalArgumentException e) {
-      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    // With `embed=todos`, include the user's todos in the same response
+    if ("todos".equals(ctx.queryParam(EMBED_KEY))) {
+      RawBsonDocument userWithTodos = RequestTiming.of(ctx).time(Phase.DB, () -> findUserWithTodos(ctx, id));
+      if (userWithTodos == null) {
+        throw new NotFoundResponse("The requested user was not found");
+      }
+      ctx.contentType("application/json").result(writeJson(generator -> {
+        generator.writeStartObject();
+        userJson.writeFields(userWithTodos, generator);
+        generator.writeFieldName("todos");
+        writeTodos(userWithTodos, generator);
+        generator.writeEndObject();
+      }));
+      return;
     }
+
+    RequestTiming timing = RequestTiming.of(ctx);
+    RawBsonDocument user = timing.time(Phase.DB, () -> byIdBatcher == null
+      ? rawUserCollection.find(eq("_id", id)).first()
+      : byIdBatcher.load(id));
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
     } else {
-      ctx.json(user);
+      ctx.contentType("application/json").result(timing.time(Phase.JSON, () -> userJson.toJson(user)));
+    }
+  }
+
+  /**
+   * Get a JSON response with the todos owned by the user specified by
+   * the `id` parameter in the request. This supports the same `status`
+   * and `category` filters as listing todos, plus `skip` and `limit`
+   * for paging.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserTodos(Context ctx) {
+    RawBsonDocument userWithTodos = findUserWithTodos(ctx, parseUserId(ctx.pathParam("id")));
+    if (userWithTodos == null) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+    ctx.contentType("application/json").result(writeJson(generator -> writeTodos(userWithTodos, generator)));
+  }
+
+  /**
+   * Fetch a user along with (a page of) their todos: the user first,
+   * then their todos by the (indexed) `owner` field. That's two round
+   * trips rather than one `$lookup`, but a `$lookup` that can filter
+   * and page the todos needs a pipeline matching on `$expr`, which
+   * only uses the index on MongoDB 5.0 and later. It's also the only
+   * way when the todos are sharded, since they can't be joined
+   * against.
+   *
+   * A user without a name has no todos.
+   *
+   * @return the user, with their todos in a `todos` array, or null
+   *   if there's no user with that id
+   */
+  private RawBsonDocument findUserWithTodos(Context ctx, ObjectId id) {
+    int skip = ctx.queryParamAsClass(SKIP_KEY, Integer.class)
+      .check(n -> n >= 0, "skip must be non-negative")
+      .getOrDefault(0);
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(n -> n >= 0, "limit must be non-negative")
+      .getOrDefault(0);
+    List<Bson> categoryAndStatus = TodoController.categoryAndStatusFilters(ctx, dictionary);
+
+    RawBsonDocument user = rawUserCollection.find(eq("_id", id)).first();
+    if (user == null) {
+      return null;
+    }
+    List<RawBsonDocument> todos = new ArrayList<>();
+    BsonValue name = user.get(NAME_KEY);
+    if (name != null && name.isString()) {
+      String owner = name.asString().getValue();
+      List<Bson> todoFilters = new ArrayList<>();
+      todoFilters.add(eq("owner", owner));
+      todoFilters.addAll(categoryAndStatus);
+      MongoCollection<RawBsonDocument> todoCollection = todoShards == null
+        ? rawTodoCollection
+        : todoShards.forOwner(owner);
+      todoCollection.find(and(todoFilters))
+        // Sort by id (i.e., creation order) so paging is stable
+        .sort(Sorts.ascending("_id"))
+        .skip(skip)
+        .limit(limit)
+        .into(todos);
+    }
+
+    BsonDocument userWithTodos = new BsonDocument();
+    userWithTodos.putAll(user);
+    userWithTodos.put("todos", new BsonArray(todos));
+    return new RawBsonDocument(userWithTodos, new BsonDocumentCodec());
+  }
+
+  /**
+   * Write the `todos` array from `findUserWithTodos` as JSON, in
+   * exactly the form the todo endpoints use.
+   */
+  private void writeTodos(RawBsonDocument userWithTodos, JsonGenerator generator) throws IOException {
+    generator.writeStartArray();
+    for (BsonValue todo : userWithTodos.getArray("todos")) {
+      RawBsonDocument rawTodo = todo instanceof RawBsonDocument
+        ? (RawBsonDocument) todo
+        : new RawBsonDocument(todo.asDocument(), new BsonDocumentCodec());
+      todoJson.writeDocument(rawTodo, generator);
+    }
+    generator.writeEndArray();
+  }
+
+  /**
+   * Something that writes JSON on a generator.
+   */
+  private interface JsonWriter {
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  private static byte[] writeJson(JsonWriter writer) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = RawJsonTranscoder.createGenerator(out)) {
+      writer.write(generator);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    return out.toByteArray();
   }
 
   /**
@@ -76,7 +401,60 @@ public class UserController {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    Bson byId = eq("_id", new ObjectId(id));
+    RawBsonDocument deletedUser = write(ctx, session -> session == null
+      ? rawUserCollection.findOneAndDelete(byId)
+      : rawUserCollection.findOneAndDelete(session, byId));
+    if (deletedUser != null) {
+      userRemoved(userFrom(deletedUser));
+    }
+  }
+
+  /**
+   * Turn the id of a user from a request into an `ObjectId`, responding
+   * with a 400 if it isn't a legal one.
+   */
+  private static ObjectId parseUserId(String id) {
+    try {
+      return new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+  }
+
+  /**
+   * Get several users at once, with the ids given as a JSON array in
+   * the `ids` field of the request body.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersById(Context ctx) {
+    ObjectNode body = ctx.bodyValidator(ObjectNode.class)
+      .check(b -> b.has(IDS_KEY) && b.get(IDS_KEY).isArray(), "The request must have an array of user ids")
+      .get();
+    List<String> ids = new ArrayList<>();
+    for (JsonNode id : body.get(IDS_KEY)) {
+      if (!id.isTextual()) {
+        throw new BadRequestResponse("User ids must be strings");
+      }
+      ids.add(id.asText());
+    }
+    sendUsersById(ctx, ids);
+  }
+
+  /**
+   * Respond with the users with the given ids, in the same order,
+   * noting which ones weren't found.
+   */
+  private void sendUsersById(Context ctx, List<String> ids) {
+    if (ids.size() > MultiGet.MAX_IDS) {
+      throw new BadRequestResponse("At most " + MultiGet.MAX_IDS + " users can be requested at once");
+    }
+    List<ObjectId> objectIds = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      objectIds.add(parseUserId(id));
+    }
+    ctx.contentType("application/json").result(MultiGet.fetch(rawUserCollection, userJson, "user", objectIds));
   }
 
   /**
@@ -85,7 +463,118 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
+    // If specific ids were asked for, look up exactly those.
+    if (ctx.queryParamMap().containsKey(IDS_KEY)) {
+      sendUsersById(ctx, List.of(ctx.queryParam(IDS_KEY).split(",")));
+      return;
+    }
+
+    List<Bson> filters = listFilters(ctx);
+
+    // Sort the results. Use the `sortby` query param (default "name",
+    // or "_id" when paging with `after`) as the field to sort by, and
+    // the query param `sortorder` (default "asc") to specify the sort
+    // order.
+    String sortBy = QueryParams.sortBy(ctx, "name");
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    boolean descending = sortOrder.equals("desc");
+
+    Bson filter = filters.isEmpty() ? new Document() : and(filters);
+    Bson sort = descending ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+
+    // Paging: skip the first `skip` users and return at most `limit`
+    // of them. A `limit` of 0 (the default) means no limit.
+    int skip = ctx.queryParamAsClass(SKIP_KEY, Integer.class)
+      .check(n -> n >= 0, "skip must be non-negative")
+      .getOrDefault(0);
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(n -> n >= 0, "limit must be non-negative")
+      .getOrDefault(0);
+
+    // Tell the client how many users match in total, so it can page
+    // through them. By default this comes from a cache (or the
+    // collection metadata), so it's usually free.
+    String filterKey = canonical(filter);
+    RequestTiming timing = RequestTiming.of(ctx);
+    Long totalCount = timing.time(Phase.DB, () -> counts.count(
+      CountCache.Mode.fromParam(ctx.queryParam(COUNT_KEY)), filterKey, filter, filters.isEmpty()));
+    if (totalCount != null) {
+      ctx.header(TOTAL_COUNT_HEADER, totalCount.toString());
+    }
+
+    // A client that's just written something can't share a query that
+    // might have started before its write.
+    String queryKey = filterKey + " " + canonical(sort) + " " + skip + " " + limit
+      + " " + Objects.toString(ReadRouting.readAfter(ctx), "");
+    ctx.contentType("application/json").result(listQueries.run(queryKey,
+      () -> listRead(ctx, (users, session) ->
+        timing.toJsonArray(userJson, sorted(users, session, filter, sortBy, descending, skip, limit)))));
+  }
+
+  /**
+   * Query the users for a page of a sorted list. Encoded roles and
+   * companies are sorted by their values (see `Dictionary.sortByValue`),
+   * which takes an aggregation.
+   */
+  private Iterable<RawBsonDocument> sorted(MongoCollection<RawBsonDocument> users, ClientSession session,
+      Bson filter, String sortBy, boolean descending, int skip, int limit) {
+    if (dictionary == null || !ENCODED_FIELDS.containsKey(sortBy)) {
+      Bson sort = descending ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+      return ReadRouting.find(users, session, filter).sort(sort).skip(skip).limit(limit);
+    }
+    List<Bson> pipeline = new ArrayList<>();
+    pipeline.add(Aggregates.match(filter));
+    pipeline.addAll(dictionary.sortByValue(sortBy, ENCODED_FIELDS.get(sortBy), descending));
+    if (skip > 0) {
+      pipeline.add(Aggregates.skip(skip));
+    }
+    if (limit > 0) {
+      pipeline.add(Aggregates.limit(limit));
+    }
+    return (session == null ? users.aggregate(pipeline) : users.aggregate(session, pipeline)).allowDiskUse(true);
+  }
+
+  /**
+   * Run a list query against the users, through the read router if
+   * there is one.
+   */
+  private <T> T listRead(Context ctx, ReadRouting.Query<RawBsonDocument, T> query) {
+    return readRouting == null ? query.run(rawUserCollection, null) : readRouting.read(ctx, rawUserCollection, query);
+  }
+
+  /**
+   * Run a write, in a causally consistent session if there's a read
+   * router, so the client will be able to read it back from wherever
+   * its reads are sent.
+   */
+  private <T> T write(Context ctx, Function<ClientSession, T> operation) {
+    return readRouting == null ? operation.apply(null) : readRouting.write(ctx, operation);
+  }
+
+  /**
+   * Stream every user that matches the same filters as `getUsers` to
+   * the client as NDJSON (the default) or CSV, for bulk exports.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if writing the response fails
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    List<Bson> filters = listFilters(ctx);
+    Bson filter = filters.isEmpty() ? new Document() : and(filters);
+    // Export in `_id` order, which Mongo can walk from an index
+    // without having to sort the whole collection in memory.
+    StreamingExport.send(ctx, "users", userJson,
+      rawUserCollection.find(filter).sort(Sorts.ascending("_id")));
+  }
 
+  /**
+   * Build the filters for the query parameters of `getUsers`. Besides
+   * an exact `age`, users can be filtered to an age range with `minAge`
+   * and/or `maxAge` (both inclusive), and to several roles at once with
+   * `role=admin,editor`. See `QueryParams.createdFilters` for the
+   * creation time and paging filters.
+   */
+  List<Bson> listFilters(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with a blank document
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
@@ -93,23 +582,59 @@ public class UserController {
         filters.add(eq(AGE_KEY, targetAge));
     }
 
+    int minAge = Integer.MIN_VALUE;
+    if (ctx.queryParamMap().containsKey(MIN_AGE_KEY)) {
+      minAge = ctx.queryParamAsClass(MIN_AGE_KEY, Integer.class).get();
+      filters.add(gte(AGE_KEY, minAge));
+    }
+    if (ctx.queryParamMap().containsKey(MAX_AGE_KEY)) {
+      int maxAge = ctx.queryParamAsClass(MAX_AGE_KEY, Integer.class).get();
+      if (maxAge < minAge) {
+        throw new BadRequestResponse("minAge can't be more than maxAge");
+      }
+      filters.add(lte(AGE_KEY, maxAge));
+    }
+
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      filters.add(regex(COMPANY_KEY,  Pattern.quote(ctx.queryParam(COMPANY_KEY)), "i"));
+      Bson companyFilter = regex(COMPANY_KEY,  Pattern.quote(ctx.queryParam(COMPANY_KEY)), "i");
+      if (dictionary != null) {
+        // Mongo can't match a pattern against codes, so we match it
+        // against the dictionary and ask for the codes that fit.
+        Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
+        companyFilter = or(companyFilter,
+          in(COMPANY_KEY, dictionary.codesMatching(COMPANY_DICTIONARY, company -> pattern.matcher(company).find())));
+      }
+      filters.add(companyFilter);
     }
 
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
-      filters.add(eq(ROLE_KEY, ctx.queryParam(ROLE_KEY)));
+      if (dictionary == null) {
+        filters.add(QueryParams.anyOf(ctx, ROLE_KEY));
+      } else {
+        filters.add(dictionary.anyOf(ROLE_KEY, ROLE_DICTIONARY, QueryParams.values(ctx, ROLE_KEY)));
+      }
     }
 
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    filters.addAll(QueryParams.createdFilters(ctx));
+
+    return filters;
+  }
+
+  /**
+   * Turn a filter or sort into a string that's the same for any two
+   * requests that would run the same query, no matter how their query
+   * parameters were written.
+   */
+  private static String canonical(Bson bson) {
+    CodecRegistry registry = MongoClientSettings.getDefaultCodecRegistry();
+    return bson.toBsonDocument(BsonDocument.class, registry).toJson();
+  }
 
-    ctx.json(userCollection.find(filters.isEmpty() ? new Document() : and(filters))
-      .sort(sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-      .into(new ArrayList<>()));
+  /**
+   * @return statistics on how often concurrent list queries were shared
+   */
+  public Map<String, Object> listQueryStats() {
+    return listQueries.stats();
   }
 
   /**
@@ -118,7 +643,8 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void addNewUser(Context ctx) {
-    User newUser = ctx.bodyValidator(User.class)
+    RequestTiming timing = RequestTiming.of(ctx);
+    User newUser = timing.time(Phase.DECODE, () -> ctx.bodyValidator(User.class)
        // Verify that the user has a name that is not blank
       .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
        // Verify that the provided email is a valid email
@@ -129,7 +655,7 @@ public class UserController {
       .check(usr -> usr.role.matches("^(admin|editor|viewer)$"), "User must have a legal user role")
        // Verify that the user has a company that is not blank
       .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
-      .get();
+      .get());
 
     // Generate user avatar (you won't need this part for todos)
     try {
@@ -140,11 +666,114 @@ public class UserController {
       newUser.avatar = "https://gravatar.com/avatar/?d=mp";
     }
 
-    userCollection.insertOne(newUser);
+    timing.time(Phase.DB, () -> write(ctx, session -> insertUser(newUser, session)));
+    userAdded(newUser);
     ctx.status(HttpCode.OK);
     ctx.json(Map.of("id", newUser._id));
   }
 
+  private User insertUser(User newUser, ClientSession session) {
+    if (dictionary == null) {
+      if (session == null) {
+        userCollection.insertOne(newUser);
+      } else {
+        userCollection.insertOne(session, newUser);
+      }
+      return newUser;
+    }
+    ObjectId id = new ObjectId();
+    Document document = new Document("_id", id)
+      .append(NAME_KEY, newUser.name)
+      .append(AGE_KEY, newUser.age)
+      .append(COMPANY_KEY, dictionary.encode(COMPANY_DICTIONARY, newUser.company))
+      .append("email", newUser.email)
+      .append("avatar", newUser.avatar)
+      .append(ROLE_KEY, dictionary.encode(ROLE_DICTIONARY, newUser.role));
+    if (session == null) {
+      database.getCollection("users").insertOne(document);
+    } else {
+      database.getCollection("users").insertOne(session, document);
+    }
+    newUser._id = id.toHexString();
+    return newUser;
+  }
+
+  /**
+   * Turn a field's value as it's stored in Mongo into a string,
+   * decoding roles and companies if they're encoded.
+   *
+   * @return the string, or null if the value isn't one
+   */
+  private String decodeStored(String field, Object stored) {
+    if (dictionary != null && field.equals(ROLE_KEY)) {
+      return dictionary.decodeStored(ROLE_DICTIONARY, stored);
+    }
+    if (dictionary != null && field.equals(COMPANY_KEY)) {
+      return dictionary.decodeStored(COMPANY_DICTIONARY, stored);
+    }
+    return stored instanceof String ? (String) stored : null;
+  }
+
+  /**
+   * Build a `User` from a raw document, decoding its role and company.
+   */
+  private User userFrom(RawBsonDocument document) {
+    User user = new User();
+    user._id = document.getObjectId("_id").getValue().toHexString();
+    user.name = decodeStored(NAME_KEY, Dictionary.unwrap(document.get(NAME_KEY)));
+    Object age = Dictionary.unwrap(document.get(AGE_KEY));
+    user.age = age instanceof Integer ? (Integer) age : 0;
+    user.company = decodeStored(COMPANY_KEY, Dictionary.unwrap(document.get(COMPANY_KEY)));
+    user.email = decodeStored("email", Dictionary.unwrap(document.get("email")));
+    user.avatar = decodeStored("avatar", Dictionary.unwrap(document.get("avatar")));
+    user.role = decodeStored(ROLE_KEY, Dictionary.unwrap(document.get(ROLE_KEY)));
+    return user;
+  }
+
+  /**
+   * Bring all our in-memory views of the users up to date after a
+   * user has been added.
+   */
+  private void userAdded(User user) {
+    counts.invalidate();
+    companySuggester.add(user.company);
+    publishChange("insert", user);
+  }
+
+  /**
+   * Bring all our in-memory views of the users up to date after a
+   * user has been removed.
+   */
+  private void userRemoved(User user) {
+    counts.invalidate();
+    companySuggester.remove(user.company);
+    publishChange("delete", user);
+  }
+
+  private void publishChange(String op, User user) {
+    if (changeFeed == null) {
+      return;
+    }
+    // A user's name is what their todos use as the owner, so
+    // following an owner gets you their user changes as well.
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("collection", "users");
+    attributes.put("owner", user.name);
+    Map<String, Object> payload = new LinkedHashMap<>();
+    payload.put("collection", "users");
+    payload.put("op", op);
+    payload.put("id", user._id);
+    payload.put("user", user);
+    changeFeed.publish(op, attributes, payload);
+  }
+
+  /**
+   * @return typeahead suggestions for user companies
+   */
+  public PrefixSuggester getCompanySuggester() {
+    return companySuggester;
+  }
+
   /**
    * Utility function to generate the md5 hash for a given string
    *
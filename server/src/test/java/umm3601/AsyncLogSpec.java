@@ -0,0 +1,178 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that AsyncLog writes every entry from many threads, formats
+ * errors, drops rather than blocks when it's full, and rotates.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AsyncLogSpec {
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  private Path directory;
+
+  @BeforeEach
+  public void setUpEach() throws IOException {
+    directory = Files.createTempDirectory("logs");
+  }
+
+  @AfterEach
+  public void tearDownEach() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static List<JsonNode> read(Path file) throws IOException {
+    List<JsonNode> entries = new ArrayList<>();
+    for (String line : Files.readAllLines(file)) {
+      entries.add(JSON.readTree(line));
+    }
+    return entries;
+  }
+
+  @Test
+  public void writesEveryEntryFromEveryThread() throws Exception {
+    Path file = directory.resolve("access.log");
+    AsyncLog log = new AsyncLog(file, 1 << 16, Long.MAX_VALUE, 1);
+    int threads = 8;
+    int perThread = 1000;
+    CountDownLatch start = new CountDownLatch(1);
+    RequestTiming timing = new RequestTiming();
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String path = "/api/todos/" + t;
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < perThread; i++) {
+          assertTrue(log.access("GET", path, null, "/api/todos/{id}", 200, "127.0.0.1", timing));
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    log.close();
+
+    List<JsonNode> entries = read(file);
+    assertEquals(threads * perThread, entries.size());
+    assertEquals(0L, log.stats().get("dropped"));
+    JsonNode first = entries.get(0);
+    assertEquals("GET", first.get("method").asText());
+    assertEquals(200, first.get("status").asInt());
+    assertTrue(first.get("ms").asDouble() >= first.get("dbMs").asDouble());
+    assertFalse(first.has("query"));
+  }
+
+  @Test
+  public void writesStackTracesOfErrors() throws IOException {
+    Path file = directory.resolve("error.log");
+    AsyncLog log = new AsyncLog(file, 16, Long.MAX_VALUE, 1);
+    log.error("POST", "/api/todos", new IllegalStateException("outer", new IOException("inner")));
+    log.close();
+
+    JsonNode entry = read(file).get(0);
+    assertEquals("java.lang.IllegalStateException", entry.get("error").asText());
+    assertEquals("outer", entry.get("message").asText());
+    boolean sawCause = false;
+    for (JsonNode frame : entry.get("stack")) {
+      sawCause |= frame.asText().startsWith("Caused by: java.io.IOException: inner");
+    }
+    assertTrue(sawCause);
+  }
+
+  @Test
+  public void dropsEntriesWhenFullInsteadOfBlocking() throws IOException {
+    Path file = directory.resolve("access.log");
+    AsyncLog log = new AsyncLog(file, 4, Long.MAX_VALUE, 1);
+    int accepted = 0;
+    // Far faster than the writer wakes up to empty the ring
+    for (int i = 0; i < 10_000; i++) {
+      if (log.access("GET", "/api/users", null, "/api/users", 200, "127.0.0.1", new RequestTiming())) {
+        accepted++;
+      }
+    }
+    log.close();
+
+    long dropped = (Long) log.stats().get("dropped");
+    assertTrue(dropped > 0);
+    assertEquals(10_000, accepted + dropped);
+    // Every accepted entry is there, plus notes of how many were dropped
+    long droppedNoted = 0;
+    int entries = 0;
+    for (JsonNode entry : read(file)) {
+      if (entry.has("dropped")) {
+        droppedNoted += entry.get("dropped").asLong();
+      } else {
+        entries++;
+      }
+    }
+    assertEquals(accepted, entries);
+    assertEquals(dropped, droppedNoted);
+  }
+
+  @Test
+  public void rotatesBigFiles() throws IOException {
+    Path file = directory.resolve("access.log");
+    AsyncLog log = new AsyncLog(file, 16, 1000, 2);
+    for (int i = 0; i < 200; i++) {
+      while (!log.access("GET", "/api/todos", "owner=" + i, "/api/todos", 200, "127.0.0.1", new RequestTiming())) {
+        Thread.onSpinWait();
+      }
+    }
+    log.close();
+
+    assertTrue((Long) log.stats().get("rotations") > 2);
+    assertTrue(Files.exists(directory.resolve("access.log.1")));
+    assertTrue(Files.exists(directory.resolve("access.log.2")));
+    // Only `keep` old files are kept
+    assertFalse(Files.exists(directory.resolve("access.log.3")));
+  }
+
+  @Test
+  public void countsEntriesThatCouldntBeWrittenAsDropped() {
+    // A directory can't be opened to append to
+    AsyncLog log = new AsyncLog(directory, 16, Long.MAX_VALUE, 1);
+    int accepted = 0;
+    for (int i = 0; i < 5; i++) {
+      if (log.access("GET", "/api/todos", null, "/api/todos", 200, "127.0.0.1", new RequestTiming())) {
+        accepted++;
+      }
+    }
+    log.close();
+
+    assertEquals(5, accepted);
+    assertEquals(0L, log.stats().get("written"));
+    assertEquals(5L, log.stats().get("dropped"));
+    assertTrue((Long) log.stats().get("writeFailures") > 0);
+  }
+}
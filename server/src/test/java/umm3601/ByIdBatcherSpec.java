@@ -0,0 +1,133 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that ByIdBatcher answers concurrent lookups correctly, and
+ * with fewer queries than lookups.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ByIdBatcherSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private List<ObjectId> ids;
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+    MongoClientSettings.builder()
+    .applyToClusterSettings(builder ->
+    builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+    .build());
+
+    db = mongoClient.getDatabase("test");
+  }
+
+  @BeforeEach
+  public void setUpEach() {
+    MongoCollection<Document> things = db.getCollection("batchedThings");
+    things.drop();
+    ids = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ObjectId id = new ObjectId();
+      ids.add(id);
+      things.insertOne(new Document("_id", id).append("n", i));
+    }
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @Test
+  public void answersConcurrentLookupsWithFewerQueries() throws Exception {
+    ByIdBatcher batcher = new ByIdBatcher(
+      db.getCollection("batchedThings", RawBsonDocument.class), TimeUnit.MILLISECONDS.toNanos(20), 100);
+
+    // One thread per lookup, so they really are all waiting at once
+    ExecutorService executor = Executors.newFixedThreadPool(ids.size());
+    try {
+      List<CompletableFuture<RawBsonDocument>> results = new ArrayList<>();
+      for (ObjectId id : ids) {
+        results.add(CompletableFuture.supplyAsync(() -> batcher.load(id), executor));
+      }
+      for (int i = 0; i < ids.size(); i++) {
+        assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS).getInt32("n").getValue());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Map<String, Object> stats = batcher.stats();
+    assertEquals(20L, stats.get("lookups"));
+    assertEquals(true, (Long) stats.get("batches") < 20L);
+  }
+
+  @Test
+  public void returnsNullForMissingIds() {
+    ByIdBatcher batcher = new ByIdBatcher(db.getCollection("batchedThings", RawBsonDocument.class), 0, 100);
+
+    assertNull(batcher.load(new ObjectId()));
+  }
+
+  @Test
+  public void failsEveryLookupInABatchWhenTheQueryThrowsAnError() throws Exception {
+    Error failure = new Error("query blew up");
+    @SuppressWarnings("unchecked")
+    MongoCollection<RawBsonDocument> broken = (MongoCollection<RawBsonDocument>) Proxy.newProxyInstance(
+      getClass().getClassLoader(), new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+        throw failure;
+      });
+    ByIdBatcher batcher = new ByIdBatcher(broken, TimeUnit.MILLISECONDS.toNanos(20), 100);
+
+    ExecutorService executor = Executors.newFixedThreadPool(ids.size());
+    try {
+      List<CompletableFuture<RawBsonDocument>> results = new ArrayList<>();
+      for (ObjectId id : ids) {
+        results.add(CompletableFuture.supplyAsync(() -> batcher.load(id), executor));
+      }
+      // Nobody is left waiting, and everybody sees the original Error
+      for (CompletableFuture<RawBsonDocument> result : results) {
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertSame(failure, thrown.getCause());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+
+/**
+ * Tests fan-out, filtering, and slow-consumer eviction in ChangeFeed.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ChangeFeedSpec {
+
+  private static final int QUEUE_CAPACITY = 4;
+  private static final long TIMEOUT_SECONDS = 5;
+
+  private ChangeFeed feed;
+
+  /**
+   * A sink that just remembers what it was sent.
+   */
+  private static class RecordingSink implements ChangeFeed.Sink {
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public boolean ready(Runnable onReady) {
+      return true;
+    }
+
+    @Override
+    public boolean send(String event, String data) {
+      received.add(event + " " + data);
+      return true;
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+
+    String next() throws InterruptedException {
+      return received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * A sink whose network is jammed: after the first event it's never
+   * ready again (and, like a real connection, never blocks).
+   */
+  private static class StuckSink extends RecordingSink {
+    private final AtomicInteger sent = new AtomicInteger();
+
+    @Override
+    public boolean ready(Runnable onReady) {
+      return sent.get() == 0;
+    }
+
+    @Override
+    public boolean send(String event, String data) {
+      sent.incrementAndGet();
+      return true;
+    }
+  }
+
+  @BeforeEach
+  public void setUpEach() {
+    feed = new ChangeFeed(2, QUEUE_CAPACITY);
+  }
+
+  @AfterEach
+  public void tearDownEach() {
+    feed.close();
+  }
+
+  @Test
+  public void sendsMatchingEventsToEverySubscriber() throws InterruptedException {
+    RecordingSink everything = new RecordingSink();
+    RecordingSink samsTodos = new RecordingSink();
+    feed.subscribe(Map.of(), everything);
+    feed.subscribe(Map.of("collection", "todos", "owner", "Sam"), samsTodos);
+
+    feed.publish("insert", Map.of("collection", "todos", "owner", "Pat"), Map.of("n", 1));
+    feed.publish("insert", Map.of("collection", "todos", "owner", "Sam"), Map.of("n", 2));
+    feed.publish("delete", Map.of("collection", "users", "owner", "Sam"), Map.of("n", 3));
+
+    assertEquals("insert {\"n\":1}", everything.next());
+    assertEquals("insert {\"n\":2}", everything.next());
+    assertEquals("delete {\"n\":3}", everything.next());
+
+    assertEquals("insert {\"n\":2}", samsTodos.next());
+    assertEquals(null, samsTodos.received.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void evictsSlowSubscribers() throws InterruptedException {
+    RecordingSink stuck = new StuckSink();
+    RecordingSink healthy = new RecordingSink();
+    feed.subscribe(Map.of(), stuck);
+    feed.subscribe(Map.of(), healthy);
+
+    // The stuck subscriber's queue fills up, but the healthy one
+    // keeps getting every event.
+    for (int i = 0; i < QUEUE_CAPACITY + 2; i++) {
+      feed.publish("insert", Map.of(), List.of(i));
+      assertEquals("insert [" + i + "]", healthy.next());
+    }
+
+    assertTrue(stuck.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, feed.size());
+    assertEquals(1L, feed.stats().get("evicted"));
+  }
+
+  @Test
+  public void moreStuckSubscribersThanWritersDontHoldUpTheRest() throws InterruptedException {
+    // Twice as many stuck subscribers as there are writer threads
+    List<RecordingSink> stuck = List.of(new StuckSink(), new StuckSink(), new StuckSink(), new StuckSink());
+    stuck.forEach(sink -> feed.subscribe(Map.of(), sink));
+    RecordingSink healthy = new RecordingSink();
+    feed.subscribe(Map.of(), healthy);
+
+    for (int i = 0; i < QUEUE_CAPACITY * 3; i++) {
+      feed.publish("insert", Map.of(), List.of(i));
+      assertEquals("insert [" + i + "]", healthy.next());
+    }
+
+    for (RecordingSink sink : stuck) {
+      assertTrue(sink.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    assertEquals(1, feed.size());
+    assertEquals((long) stuck.size(), feed.stats().get("evicted"));
+    assertEquals(1L, healthy.closed.getCount());
+  }
+
+  @Test
+  public void carriesOnWhenASinkIsReadyAgain() throws InterruptedException {
+    AtomicReference<Runnable> waiting = new AtomicReference<>();
+    AtomicBoolean busy = new AtomicBoolean(true);
+    RecordingSink slow = new RecordingSink() {
+      @Override
+      public boolean ready(Runnable onReady) {
+        if (busy.get()) {
+          waiting.set(onReady);
+          return false;
+        }
+        return true;
+      }
+    };
+    feed.subscribe(Map.of(), slow);
+
+    for (int i = 0; i < QUEUE_CAPACITY; i++) {
+      feed.publish("insert", Map.of(), List.of(i));
+    }
+    assertEquals(null, slow.received.poll(100, TimeUnit.MILLISECONDS));
+
+    busy.set(false);
+    waiting.get().run();
+    for (int i = 0; i < QUEUE_CAPACITY; i++) {
+      assertEquals("insert [" + i + "]", slow.next());
+    }
+    assertEquals(1, feed.size());
+  }
+
+  @Test
+  public void sseClientsThatStopReadingAreDisconnected() throws Exception {
+    Javalin app = Javalin.create().start(0);
+    try (Socket stuck = new Socket("localhost", app.port())) {
+      app.sse("/changes", feed::subscribe);
+      stuck.getOutputStream().write(("GET /changes HTTP/1.1\r\nHost: localhost\r\n"
+        + "Accept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      HttpResponse<Stream<String>> response = HttpClient.newHttpClient().send(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + "/changes"))
+          .header("Accept", "text/event-stream")
+          .build(),
+        HttpResponse.BodyHandlers.ofLines());
+      Iterator<String> lines = response.body().iterator();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      while (feed.size() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+
+      // Big enough events that the stuck client's socket soon fills
+      String big = "x".repeat(100_000);
+      for (int i = 0; i < 500 && feed.size() > 1; i++) {
+        feed.publish("insert", Map.of(), List.of(i, big));
+        assertEquals("event: insert", lines.next());
+        assertTrue(lines.next().startsWith("data: [" + i + ","));
+        assertEquals("", lines.next());
+      }
+      assertEquals(1, feed.size());
+      assertEquals(1L, feed.stats().get("evicted"));
+      response.body().close();
+    } finally {
+      app.stop();
+    }
+  }
+
+  @Test
+  public void streamsEventsToSseClients() throws Exception {
+    Javalin app = Javalin.create().start(0);
+    try {
+      app.sse("/changes", feed::subscribe);
+      HttpResponse<Stream<String>> response = HttpClient.newHttpClient().send(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + "/changes?owner=Sam"))
+          .header("Accept", "text/event-stream")
+          .build(),
+        HttpResponse.BodyHandlers.ofLines());
+      Iterator<String> lines = response.body().iterator();
+
+      // The subscription is made once the response has started
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      while (feed.size() == 0 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      feed.publish("insert", Map.of("owner", "Pat"), Map.of("n", 1));
+      feed.publish("insert", Map.of("owner", "Sam"), Map.of("n", 2));
+
+      assertEquals("event: insert", lines.next());
+      assertEquals("data: {\"n\":2}", lines.next());
+      assertEquals("", lines.next());
+
+      response.body().close();
+    } finally {
+      app.stop();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.util.ContextUtil;
+
+/**
+ * Tests the AIMD logic in ConcurrencyLimiter.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ConcurrencyLimiterSpec {
+
+  private static final long FAST_RTT = 1_000_000L;
+  private static final long SLOW_RTT = 50_000_000L;
+
+  private static final String LIST = "GET /api/todos";
+  private static final String BY_ID = "GET /api/todos/{id}";
+
+  @Test
+  public void rejectsRequestsOverTheLimit() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10);
+
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertEquals(1, limiter.getRejectedCount());
+
+    // Releasing a slot makes room for another request
+    limiter.release(LIST, FAST_RTT, false);
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  public void backsOffWhenTheDatabaseIsOverloaded() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 20);
+
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, FAST_RTT, true);
+
+    assertEquals(9, limiter.getLimit());
+  }
+
+  @Test
+  public void backsOffWhenRoundTripsGetSlow() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 20);
+
+    // Establish a fast baseline
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, FAST_RTT, false);
+    int limitBefore = limiter.getLimit();
+
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, SLOW_RTT, false);
+
+    assertTrue(limiter.getLimit() < limitBefore);
+  }
+
+  @Test
+  public void neverDropsBelowTheMinimum() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 3, 3, 20);
+
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, FAST_RTT, true);
+
+    assertEquals(3, limiter.getLimit());
+  }
+
+  @Test
+  public void growsWhenBusyAndFast() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 20);
+
+    for (int round = 0; round < 20; round++) {
+      // Fill the limiter up, then let everything finish quickly
+      int acquired = 0;
+      while (limiter.tryAcquire()) {
+        acquired++;
+      }
+      for (int i = 0; i < acquired; i++) {
+        limiter.release(LIST, FAST_RTT, false);
+      }
+    }
+
+    assertTrue(limiter.getLimit() > 4);
+  }
+
+  @Test
+  public void comparesRoundTripsWithTheSameOperation() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 20);
+
+    // Fast by-id lookups don't make every list query look queued
+    assertTrue(limiter.tryAcquire());
+    limiter.release(BY_ID, FAST_RTT, false);
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, SLOW_RTT, false);
+    assertTrue(limiter.tryAcquire());
+    limiter.release(LIST, SLOW_RTT, false);
+
+    assertEquals(10, limiter.getLimit());
+  }
+
+  @Test
+  public void clientErrorsDontCount() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 20);
+
+    // A quick 404 would otherwise set a baseline that the next,
+    // real, lookup is much slower than.
+    assertThrows(NotFoundResponse.class, () -> limiter.limit(ctx -> {
+      throw new NotFoundResponse("nope");
+    }).handle(mockContext()));
+    assertTrue(((Map<?, ?>) limiter.stats().get("baselineRttMillis")).isEmpty());
+    assertEquals(0, limiter.stats().get("inFlight"));
+
+    limiter.limit(ctx -> Thread.sleep(20)).handle(mockContext());
+    assertEquals(1, ((Map<?, ?>) limiter.stats().get("baselineRttMillis")).size());
+    assertEquals(10, limiter.getLimit());
+  }
+
+  @Test
+  public void handlerFailuresDontCount() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 20);
+
+    // The response status is still 200 when the handler throws, but
+    // that's not a successful round trip.
+    assertThrows(IllegalStateException.class, () -> limiter.limit(ctx -> {
+      throw new IllegalStateException("bug");
+    }).handle(mockContext()));
+    assertTrue(((Map<?, ?>) limiter.stats().get("baselineRttMillis")).isEmpty());
+    assertEquals(0, limiter.stats().get("inFlight"));
+    assertEquals(10, limiter.getLimit());
+  }
+
+  private static Context mockContext() {
+    return ContextUtil.init(
+      new MockHttpServletRequest(), new MockHttpServletResponse(),
+      "api/todos/{id}", Map.of(), HandlerType.GET, Map.of());
+  }
+}
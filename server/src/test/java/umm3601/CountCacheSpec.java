@@ -0,0 +1,83 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import umm3601.CountCache.Mode;
+
+/**
+ * Tests which counts CountCache keeps, using a stand-in collection
+ * that counts how often it's asked.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class CountCacheSpec {
+
+  private final AtomicLong countQueries = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  private MongoCollection<Document> countingCollection() {
+    return (MongoCollection<Document>) Proxy.newProxyInstance(
+      getClass().getClassLoader(),
+      new Class<?>[] {MongoCollection.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "countDocuments":
+          case "estimatedDocumentCount":
+            return countQueries.incrementAndGet();
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+  private Long count(CountCache cache, String owner) {
+    return cache.count(Mode.ESTIMATED, "owner=" + owner, eq("owner", owner), false);
+  }
+
+  @Test
+  public void reusesCachedCounts() {
+    CountCache cache = new CountCache(List.of(countingCollection()));
+
+    assertEquals(1L, count(cache, "Blanche"));
+    assertEquals(1L, count(cache, "Blanche"));
+    assertEquals(1, countQueries.get());
+
+    cache.invalidate();
+    assertEquals(2L, count(cache, "Blanche"));
+  }
+
+  @Test
+  public void keepsOnlyTheMostRecentlyUsedCounts() {
+    CountCache cache = new CountCache(List.of(countingCollection()), 3);
+
+    for (int i = 0; i < 100; i++) {
+      count(cache, "owner" + i);
+    }
+    assertEquals(3, cache.size());
+
+    // The most recent ones are still cached...
+    count(cache, "owner99");
+    assertEquals(100, countQueries.get());
+    // ...but the oldest were dropped
+    count(cache, "owner0");
+    assertEquals(101, countQueries.get());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void exactCountsAreNeverCached() {
+    CountCache cache = new CountCache(List.of(countingCollection()));
+
+    cache.count(Mode.EXACT, "owner=Fry", eq("owner", "Fry"), false);
+    assertEquals(0, cache.size());
+  }
+}
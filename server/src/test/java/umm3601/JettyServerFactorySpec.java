@@ -0,0 +1,132 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+
+/**
+ * Starts a real server from JettyServerFactory and talks to it over
+ * HTTP/1.1 and cleartext HTTP/2.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class JettyServerFactorySpec {
+
+  // The connection preface an HTTP/2 client with "prior knowledge"
+  // opens with, followed by an empty SETTINGS frame.
+  private static final byte[] H2_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] EMPTY_SETTINGS_FRAME = {0, 0, 0, 0x4, 0, 0, 0, 0, 0};
+  private static final int SETTINGS_FRAME_TYPE = 0x4;
+
+  private static final int CONCURRENT_REQUESTS = 200;
+
+  private Javalin app;
+
+  @AfterEach
+  public void stopServer() {
+    if (app != null) {
+      app.stop();
+    }
+  }
+
+  private int startServer(Map<String, String> env) {
+    app = Javalin.create(config -> config.server(new JettyServerFactory(env, 0)));
+    app.get("/hello", ctx -> ctx.result("hello over " + ctx.req.getProtocol()));
+    app.start(0);
+    return ((ServerConnector) app.jettyServer().server().getConnectors()[0]).getLocalPort();
+  }
+
+  @Test
+  public void usesTheTunedThreadPool() {
+    startServer(Map.of("HTTP_MAX_THREADS", "50", "HTTP_MIN_THREADS", "4"));
+
+    Server server = app.jettyServer().server();
+    QueuedThreadPool threadPool = (QueuedThreadPool) server.getThreadPool();
+    assertEquals(50, threadPool.getMaxThreads());
+    assertEquals(4, threadPool.getMinThreads());
+    assertEquals(1, server.getConnectors().length);
+  }
+
+  @Test
+  public void answersHttp2WithPriorKnowledge() throws IOException {
+    int port = startServer(Map.of());
+
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(5000);
+      OutputStream out = socket.getOutputStream();
+      out.write(H2_PREFACE);
+      out.write(EMPTY_SETTINGS_FRAME);
+      out.flush();
+
+      // An HTTP/2 server answers the preface with its own SETTINGS
+      // frame; an HTTP/1.1-only one would answer with a 400.
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      byte[] frameHeader = new byte[9];
+      in.readFully(frameHeader);
+      assertEquals(SETTINGS_FRAME_TYPE, frameHeader[3]);
+    }
+  }
+
+  @Test
+  public void servesManyConcurrentRequestsOverHttp2() {
+    int port = startServer(Map.of());
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+    URI uri = URI.create("http://localhost:" + port + "/hello");
+
+    // The first request upgrades the connection to h2c, and the rest
+    // are multiplexed over it.
+    List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+    for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+      responses.add(client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString()));
+    }
+
+    for (CompletableFuture<HttpResponse<String>> future : responses) {
+      HttpResponse<String> response = future.join();
+      assertEquals(200, response.statusCode());
+      assertTrue(response.body().startsWith("hello over"));
+    }
+    assertEquals(HttpClient.Version.HTTP_2, responses.get(responses.size() - 1).join().version());
+  }
+
+  @Test
+  public void stillServesHttp11WhenH2cIsOff() throws Exception {
+    int port = startServer(Map.of("HTTP2C_ENABLED", "false"));
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+    HttpResponse<String> response = client.send(
+      HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/hello")).build(),
+      HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+    assertFalse(response.body().contains("HTTP/2"));
+  }
+
+  @Test
+  public void rejectsSettingsThatArentNumbers() {
+    JettyServerFactory factory = new JettyServerFactory(Map.of("HTTP_MAX_THREADS", "lots"), 0);
+    assertThrows(IllegalArgumentException.class, factory::get);
+  }
+}
@@ -0,0 +1,92 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests prefix lookups and ranking in PrefixSuggester.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class PrefixSuggesterSpec {
+
+  private PrefixSuggester suggester;
+
+  @BeforeEach
+  public void setUpEach() {
+    suggester = new PrefixSuggester();
+    suggester.add("Homework", 5);
+    suggester.add("Home Improvement", 2);
+    suggester.add("Groceries", 7);
+    suggester.add("hobbies", 2);
+  }
+
+  private static List<String> values(List<PrefixSuggester.Suggestion> suggestions) {
+    return suggestions.stream().map(PrefixSuggester.Suggestion::getValue).collect(Collectors.toList());
+  }
+
+  @Test
+  public void suggestsMostUsedValuesFirst() {
+    assertEquals(List.of("Homework", "hobbies", "Home Improvement"), values(suggester.suggest("HO", 10)));
+  }
+
+  @Test
+  public void respectsTheLimit() {
+    assertEquals(List.of("Homework"), values(suggester.suggest("ho", 1)));
+  }
+
+  @Test
+  public void emptyPrefixMatchesEverything() {
+    assertEquals(4, suggester.suggest("", 10).size());
+  }
+
+  @Test
+  public void forgetsValuesNoLongerUsed() {
+    suggester.remove("hobbies");
+    assertEquals(1, suggester.suggest("hob", 10).get(0).getCount());
+
+    suggester.remove("hobbies");
+    assertEquals(List.of(), suggester.suggest("hob", 10));
+  }
+
+  @Test
+  public void findsTheMostUsedValuesAmongVeryManyMatches() {
+    for (int i = 0; i < 20_000; i++) {
+      suggester.add(String.format("h%05d", i));
+    }
+    suggester.add("hzzz", 3);
+
+    // The busiest values sort last, but still come first
+    assertEquals(List.of("Homework", "hzzz", "hobbies"), values(suggester.suggest("h", 3)));
+  }
+
+  @Test
+  public void promotesValuesWhenOthersAreUsedLess() {
+    for (int i = 0; i < PrefixSuggester.MAX_SUGGESTIONS; i++) {
+      suggester.add("Item " + i, 10);
+    }
+    suggester.add("Item Last", 9);
+    assertEquals(-1, values(suggester.suggest("item", PrefixSuggester.MAX_SUGGESTIONS)).indexOf("Item Last"));
+
+    // Once one of the others drops below it, it makes the list
+    for (int i = 0; i < 2; i++) {
+      suggester.remove("Item 0");
+    }
+    List<String> items = values(suggester.suggest("item", PrefixSuggester.MAX_SUGGESTIONS));
+    assertEquals("Item Last", items.get(items.size() - 1));
+    assertEquals(-1, items.indexOf("Item 0"));
+  }
+
+  @Test
+  public void keepsValuesThatDifferOnlyInCase() {
+    suggester.add("UMM", 3);
+    suggester.add("umm", 1);
+
+    assertEquals(List.of("UMM", "umm"), values(suggester.suggest("um", 10)));
+    assertEquals(6, suggester.size());
+  }
+}
@@ -0,0 +1,176 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that ReadRouting hedges slow list queries and reads back the
+ * tokens it hands out. Against a standalone server every read goes to
+ * the same place, so these can't tell which member answered; they use
+ * the read preference each attempt was given instead.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ReadRoutingSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> things;
+  private ReadRouting routing;
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+    MongoClientSettings.builder()
+    .applyToClusterSettings(builder ->
+    builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+    .build());
+
+    db = mongoClient.getDatabase("test");
+  }
+
+  @BeforeEach
+  public void setUpEach() {
+    things = db.getCollection("routedThings");
+    things.drop();
+    for (int i = 0; i < 10; i++) {
+      things.insertOne(new Document("n", i));
+    }
+    routing = new ReadRouting(mongoClient, ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS), 20);
+  }
+
+  @AfterEach
+  public void tearDownEach() {
+    routing.close();
+  }
+
+  @AfterAll
+  public static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @Test
+  public void fastReadsAreNotHedged() {
+    List<Document> found = routing.read((BsonTimestamp) null, things,
+      (collection, session) -> ReadRouting.find(collection, session, new Document()).into(new ArrayList<>()));
+    assertEquals(10, found.size());
+    assertEquals(1L, routing.stats().get("reads"));
+    assertEquals(0L, routing.stats().get("hedges"));
+  }
+
+  @Test
+  public void slowReadsAreHedgedToThePrimary() {
+    String answeredBy = routing.read((BsonTimestamp) null, things, (collection, session) -> {
+      if (!collection.getReadPreference().equals(ReadPreference.primary())) {
+        // A secondary that's having a bad day
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return "secondary";
+      }
+      return "primary";
+    });
+    assertEquals("primary", answeredBy);
+    assertEquals(1L, routing.stats().get("hedges"));
+    assertEquals(1L, routing.stats().get("hedgeWins"));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void aSlowReadFailingDoesntFailTheHedge() {
+    String answeredBy = routing.read((BsonTimestamp) null, things, (collection, session) -> {
+      if (!collection.getReadPreference().equals(ReadPreference.primary())) {
+        // The secondary gives up after the hedge has started, but
+        // before the primary has answered
+        sleep(100);
+        throw new IllegalStateException("Secondary went away");
+      }
+      sleep(300);
+      return "primary";
+    });
+    assertEquals("primary", answeredBy);
+    assertEquals(1L, routing.stats().get("hedgeWins"));
+  }
+
+  @Test
+  public void failsIfBothAttemptsFail() {
+    IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+      routing.read((BsonTimestamp) null, things, (collection, session) -> {
+        boolean primary = collection.getReadPreference().equals(ReadPreference.primary());
+        sleep(primary ? 10 : 100);
+        throw new IllegalStateException(primary ? "Primary went away" : "Secondary went away");
+      }));
+    assertEquals("Secondary went away", e.getMessage());
+  }
+
+  @Test
+  public void readsArentHedgedWhenThePoolIsBusy() throws InterruptedException {
+    routing.close();
+    routing = new ReadRouting(mongoClient, ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS), 20, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread busy = new Thread(() -> routing.read((BsonTimestamp) null, things, (collection, session) -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    }));
+    busy.start();
+    while (routing.stats().get("hedges").equals(0L) && routing.stats().get("unhedged").equals(0L)) {
+      Thread.sleep(10);
+    }
+
+    // The one thread is taken by the stuck read, whose hedge couldn't
+    // start, so this one runs on the caller's thread
+    String answeredBy = routing.read((BsonTimestamp) null, things, (collection, session) -> "caller");
+    assertEquals("caller", answeredBy);
+    assertEquals(2L, routing.stats().get("unhedged"));
+
+    release.countDown();
+    busy.join();
+  }
+
+  @Test
+  public void readsBackTokens() {
+    assertEquals(new BsonTimestamp(1650000000, 3), ReadRouting.parseToken("1650000000.3"));
+    assertNull(ReadRouting.parseToken(null));
+    assertNull(ReadRouting.parseToken("yesterday"));
+    assertNull(ReadRouting.parseToken("1650000000.x"));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.RequestTiming.Phase;
+
+/**
+ * Tests that RequestTiming attributes time to the right phase, and
+ * builds its header from the phases that ran.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RequestTimingSpec {
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void nestedPhasesAreNotCountedTwice() {
+    RequestTiming timing = new RequestTiming();
+    timing.time(Phase.JSON, () -> {
+      sleep(20);
+      return timing.time(Phase.DB, () -> {
+        sleep(50);
+        return null;
+      });
+    });
+
+    long db = TimeUnit.NANOSECONDS.toMillis(timing.busyNanos(Phase.DB));
+    long json = TimeUnit.NANOSECONDS.toMillis(timing.busyNanos(Phase.JSON));
+    assertTrue(db >= 50, "db took " + db + "ms");
+    assertTrue(json >= 20 && json < 50, "json took " + json + "ms");
+    assertEquals(0, timing.busyNanos(Phase.DECODE));
+    assertTrue(timing.firstStartNanos(Phase.JSON) <= timing.firstStartNanos(Phase.DB));
+    assertTrue(timing.lastEndNanos(Phase.DB) <= timing.lastEndNanos(Phase.JSON));
+  }
+
+  @Test
+  public void workOnOtherThreadsIsntTakenOutOfThisOne() throws Exception {
+    RequestTiming timing = new RequestTiming();
+    Thread other = new Thread(() -> timing.time(Phase.DB, () -> {
+      sleep(30);
+      return null;
+    }));
+    timing.time(Phase.JSON, () -> {
+      other.start();
+      sleep(100);
+      return null;
+    });
+    other.join();
+
+    long db = TimeUnit.NANOSECONDS.toMillis(timing.busyNanos(Phase.DB));
+    long json = TimeUnit.NANOSECONDS.toMillis(timing.busyNanos(Phase.JSON));
+    assertTrue(db >= 30, "db took " + db + "ms");
+    assertTrue(json >= 100, "json took " + json + "ms");
+  }
+
+  @Test
+  public void fetchingCountsTowardsTheDatabase() {
+    RequestTiming timing = new RequestTiming();
+    Iterable<Integer> slow = () -> new Iterator<Integer>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < 3;
+      }
+
+      @Override
+      public Integer next() {
+        sleep(10);
+        return next++;
+      }
+    };
+    List<Integer> seen = new ArrayList<>();
+    timing.fetching(slow).forEach(seen::add);
+
+    assertEquals(List.of(0, 1, 2), seen);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(timing.busyNanos(Phase.DB)) >= 30);
+  }
+
+  @Test
+  public void headerListsThePhasesThatRan() {
+    RequestTiming timing = new RequestTiming();
+    assertTrue(timing.serverTiming().matches("total;dur=\\d+\\.\\d\\d"), timing.serverTiming());
+
+    timing.time(Phase.DECODE, () -> null);
+    String header = timing.serverTiming();
+    assertTrue(header.matches("decode;dur=\\d+\\.\\d\\d, total;dur=\\d+\\.\\d\\d"), header);
+  }
+}
@@ -0,0 +1,87 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that SingleFlight shares overlapping work, and only
+ * overlapping work.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SingleFlightSpec {
+
+  @Test
+  public void sharesWorkBetweenOverlappingCalls() throws Exception {
+    SingleFlight<String, byte[]> singleFlight = new SingleFlight<>();
+    AtomicInteger workDone = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+
+    CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> singleFlight.run("key", () -> {
+      workDone.incrementAndGet();
+      started.countDown();
+      try {
+        finish.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new byte[] {1, 2, 3};
+    }));
+    started.await(5, TimeUnit.SECONDS);
+
+    CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> singleFlight.run("key", () -> {
+      workDone.incrementAndGet();
+      return new byte[0];
+    }));
+    // Wait for the second call to attach itself to the first one's work
+    while (singleFlight.getCoalescedCount() == 0) {
+      Thread.sleep(1);
+    }
+    finish.countDown();
+
+    assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, workDone.get());
+    assertEquals(1, singleFlight.getExecutionCount());
+  }
+
+  @Test
+  public void doesNotShareWorkThatHasFinished() {
+    SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+    AtomicInteger workDone = new AtomicInteger();
+
+    singleFlight.run("key", workDone::incrementAndGet);
+    singleFlight.run("key", workDone::incrementAndGet);
+
+    assertEquals(2, workDone.get());
+    assertEquals(0, singleFlight.getCoalescedCount());
+  }
+
+  @Test
+  public void doesNotShareWorkBetweenDifferentKeys() {
+    SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+
+    assertEquals(1, singleFlight.run("one", () -> 1));
+    assertEquals(2, singleFlight.run("two", () -> 2));
+    assertEquals(2, singleFlight.getExecutionCount());
+  }
+
+  @Test
+  public void failuresAreNotRemembered() {
+    SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+
+    assertThrows(IllegalStateException.class, () -> {
+      singleFlight.run("key", () -> {
+        throw new IllegalStateException("Mongo went away");
+      });
+    });
+    assertEquals(3, singleFlight.run("key", () -> 3));
+  }
+}
@@ -0,0 +1,81 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that SortedMerge merges sorted sources in order, and closes
+ * the ones it doesn't read to the end.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SortedMergeSpec {
+
+  // A source whose iterators remember whether they've been closed,
+  // like a Mongo cursor
+  private static final class Source implements Iterable<Integer> {
+    private final List<Integer> values;
+    private boolean closed;
+
+    Source(Integer... values) {
+      this.values = List.of(values);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+      Iterator<Integer> iterator = values.iterator();
+      class Cursor implements Iterator<Integer>, Closeable {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public Integer next() {
+          return iterator.next();
+        }
+
+        @Override
+        public void close() {
+          closed = true;
+        }
+      }
+      return new Cursor();
+    }
+  }
+
+  @Test
+  public void mergesInOrder() {
+    List<Integer> merged = SortedMerge.merge(
+      List.of(new Source(1, 4, 7), new Source(2, 5), new Source(3, 6, 8, 9)), Comparator.naturalOrder(), 2, 5);
+    assertEquals(List.of(3, 4, 5, 6, 7), merged);
+  }
+
+  @Test
+  public void closesSourcesThatArentReadToTheEnd() {
+    Source first = new Source(1, 2, 3);
+    Source second = new Source(4, 5, 6);
+    assertEquals(List.of(1, 2), SortedMerge.merge(List.of(first, second), Comparator.naturalOrder(), 0, 2));
+    assertTrue(first.closed);
+    assertTrue(second.closed);
+  }
+
+  @Test
+  public void closingAStreamedMergeClosesItsSources() {
+    Source first = new Source(1, 3);
+    Source second = new Source(2, 4);
+    SortedMerge.Merged<Integer> merged = SortedMerge.merged(List.of(first, second), Comparator.naturalOrder());
+    assertEquals(1, merged.next());
+    assertFalse(first.closed);
+    merged.close();
+    assertTrue(first.closed);
+    assertTrue(second.closed);
+  }
+}
@@ -0,0 +1,98 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the synthetic data generator.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SyntheticDataSpec {
+
+  private static final int USERS = 100;
+  private static final int CATEGORIES = 10;
+  private static final int TODOS = 10_000;
+
+  private static List<Document> take(Iterator<Document> documents) {
+    List<Document> result = new ArrayList<>();
+    documents.forEachRemaining(result::add);
+    return result;
+  }
+
+  @Test
+  public void sameSeedGivesSameData() {
+    List<Document> first = take(new SyntheticData(42, USERS, CATEGORIES, 1.0, 0.5).todos(TODOS));
+    List<Document> second = take(new SyntheticData(42, USERS, CATEGORIES, 1.0, 0.5).todos(TODOS));
+    assertEquals(first, second);
+
+    List<Document> other = take(new SyntheticData(43, USERS, CATEGORIES, 1.0, 0.5).todos(TODOS));
+    assertNotEquals(first, other);
+  }
+
+  @Test
+  public void ownersAreUserNames() {
+    SyntheticData data = new SyntheticData(1, USERS, CATEGORIES, 1.0, 0.5);
+    Set<String> names = new HashSet<>();
+    for (Document user : take(data.users())) {
+      names.add(user.getString("name"));
+    }
+    // Every name is different
+    assertEquals(USERS, names.size());
+
+    for (Document todo : take(data.todos(TODOS))) {
+      assertTrue(names.contains(todo.getString("owner")));
+    }
+  }
+
+  @Test
+  public void ownersAreSkewed() {
+    Map<String, Integer> counts = new HashMap<>();
+    for (Document todo : take(new SyntheticData(1, USERS, CATEGORIES, 1.0, 0.5).todos(TODOS))) {
+      counts.merge(todo.getString("owner"), 1, Integer::sum);
+    }
+    // With a Zipf exponent of 1 over 100 users, the top user should get
+    // about 1 / H(100), or roughly 19%, of the todos.
+    int top = counts.get(SyntheticData.userName(0));
+    assertTrue(top > TODOS / 7 && top < TODOS / 4, "Top owner had " + top);
+    assertTrue(counts.get(SyntheticData.userName(USERS - 1)) < TODOS / USERS);
+  }
+
+  @Test
+  public void honorsCategoryCountAndCompleteRatio() {
+    Set<String> categories = new HashSet<>();
+    int complete = 0;
+    for (Document todo : take(new SyntheticData(1, USERS, CATEGORIES, 1.0, 0.25).todos(TODOS))) {
+      categories.add(todo.getString("category"));
+      if (todo.getBoolean("status")) {
+        complete++;
+      }
+    }
+    assertEquals(CATEGORIES, categories.size());
+    assertTrue(Math.abs(complete - TODOS / 4) < TODOS / 50, complete + " were complete");
+  }
+
+  @Test
+  public void todoIdsAreInOrder() {
+    ObjectId previous = null;
+    for (Document todo : take(new SyntheticData(1, USERS, CATEGORIES, 1.0, 0.5).todos(TODOS))) {
+      ObjectId id = todo.getObjectId("_id");
+      if (previous != null) {
+        assertTrue(previous.compareTo(id) < 0);
+      }
+      previous = id;
+    }
+  }
+}
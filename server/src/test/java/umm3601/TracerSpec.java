@@ -0,0 +1,100 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.RequestTiming.Phase;
+
+/**
+ * Tests that Tracer always keeps slow and failed requests, samples
+ * the rest, and writes what it keeps as OTLP JSON.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TracerSpec {
+
+  @Test
+  public void keepsSlowAndFailedRequestsAndSamplesTheRest() throws IOException {
+    Path file = Files.createTempFile("traces", ".jsonl");
+    Tracer tracer = new Tracer(20, 0.0, Tracer.fileExporter(file));
+
+    RequestTiming fast = new RequestTiming();
+    assertFalse(tracer.finish("GET /api/todos", 200, fast));
+    assertTrue(tracer.finish("GET /api/todos", 500, fast));
+
+    RequestTiming slow = new RequestTiming();
+    slow.time(Phase.DB, () -> {
+      try {
+        Thread.sleep(30);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    });
+    assertTrue(tracer.finish("GET /api/todos/{id}", 200, slow));
+    tracer.close();
+
+    assertEquals(3L, tracer.stats().get("requests"));
+    assertEquals(1L, tracer.stats().get("keptSlow"));
+    assertEquals(1L, tracer.stats().get("keptError"));
+    assertEquals(0L, tracer.stats().get("keptSampled"));
+    assertEquals(2L, tracer.stats().get("exported"));
+
+    // Each kept request is a server span, plus a span for each phase
+    // that ran
+    int spans = 0;
+    int dbSpans = 0;
+    List<String> lines = Files.readAllLines(file);
+    for (String line : lines) {
+      JsonNode request = new ObjectMapper().readTree(line);
+      for (JsonNode span : request.at("/resourceSpans/0/scopeSpans/0/spans")) {
+        spans++;
+        if ("db".equals(span.get("name").asText())) {
+          dbSpans++;
+          assertTrue(span.has("parentSpanId"));
+        }
+      }
+    }
+    assertEquals(3, spans);
+    assertEquals(1, dbSpans);
+    Files.delete(file);
+  }
+
+  @Test
+  public void samplesAtTheGivenRate() {
+    Tracer tracer = new Tracer(60_000, 1.0, request -> { });
+    assertTrue(tracer.finish("GET /api/users", 200, new RequestTiming()));
+    tracer.close();
+    assertEquals(1L, tracer.stats().get("keptSampled"));
+  }
+
+  @Test
+  public void keepsExportingAfterTheExporterThrows() throws InterruptedException {
+    AtomicInteger calls = new AtomicInteger();
+    Tracer tracer = new Tracer(60_000, 1.0, request -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new IllegalStateException("Bad response");
+      }
+    });
+    tracer.finish("GET /api/users", 200, new RequestTiming());
+    while (calls.get() == 0) {
+      Thread.sleep(10);
+    }
+    tracer.finish("GET /api/users", 200, new RequestTiming());
+    tracer.close();
+
+    assertEquals(1L, tracer.stats().get("exportFailures"));
+    assertEquals(1L, tracer.stats().get("exported"));
+  }
+}
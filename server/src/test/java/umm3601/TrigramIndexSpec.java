@@ -0,0 +1,55 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests substring search in TrigramIndex.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TrigramIndexSpec {
+
+  private TrigramIndex index;
+
+  @BeforeEach
+  public void setUpEach() {
+    index = new TrigramIndex();
+    index.add("Blanche", 2);
+    index.add("Fry");
+    index.add("Barry");
+    index.add("Roberta");
+  }
+
+  @Test
+  public void findsSubstringsIgnoringCase() {
+    assertEquals(Set.of("Blanche"), index.search("LANC"));
+    assertEquals(Set.of("Barry"), index.search("bAr"));
+  }
+
+  @Test
+  public void findsShortSubstrings() {
+    assertEquals(Set.of("Fry", "Barry"), index.search("ry"));
+  }
+
+  @Test
+  public void checksTrigramOrder() {
+    // "abc" and "bcd" are both trigrams of "xabcxbcd", but
+    // "abcd" isn't in it.
+    index.add("xabcxbcd");
+    assertEquals(Set.of(), index.search("abcd"));
+  }
+
+  @Test
+  public void keepsValuesUntilTheLastDocumentIsRemoved() {
+    index.remove("Blanche");
+    assertEquals(Set.of("Blanche"), index.search("blanche"));
+
+    index.remove("Blanche");
+    assertEquals(Set.of(), index.search("blanche"));
+    assertEquals(3, index.size());
+  }
+}
@@ -142,6 +142,7 @@ public class MongoSpec {
 
     todoDocuments = db.getCollection("todos");
     todoDocuments.drop();
+    db.getCollection("todoCounters").drop();
     List<Document> testTodos = new ArrayList<>();
     testTodos.add(
       new Document()
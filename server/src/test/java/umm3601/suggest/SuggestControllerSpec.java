@@ -0,0 +1,106 @@
+package umm3601.suggest;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.validation.ValidationException;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.PrefixSuggester;
+
+/**
+ * Tests the logic of the SuggestController.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SuggestControllerSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private SuggestController suggestController;
+
+  @BeforeEach
+  public void setUpEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+
+    PrefixSuggester owners = new PrefixSuggester();
+    owners.add("Blanche", 43);
+    owners.add("Barry", 51);
+    owners.add("Fry", 61);
+    PrefixSuggester categories = new PrefixSuggester();
+    categories.add("homework", 79);
+    suggestController = new SuggestController(Map.of("owner", owners, "category", categories));
+  }
+
+  private Context mockContext() {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        "api/suggest",
+        Map.of(),
+        HandlerType.INVALID,
+        Map.of(JSON_MAPPER_KEY, new JavalinJackson()));
+  }
+
+  private JsonNode suggestions(String query) throws Exception {
+    mockReq.setQueryString(query);
+    Context ctx = mockContext();
+    suggestController.getSuggestions(ctx);
+    return new ObjectMapper().readTree(ctx.resultString());
+  }
+
+  @Test
+  public void suggestsMostUsedValuesWithThePrefix() throws Exception {
+    JsonNode result = suggestions("field=owner&prefix=b");
+
+    assertEquals(2, result.size());
+    assertEquals("Barry", result.get(0).get("value").asText());
+    assertEquals(51, result.get(0).get("count").asInt());
+    assertEquals("Blanche", result.get(1).get("value").asText());
+  }
+
+  @Test
+  public void noPrefixSuggestsAnything() throws Exception {
+    JsonNode result = suggestions("field=owner&limit=1");
+
+    assertEquals(1, result.size());
+    assertEquals("Fry", result.get(0).get("value").asText());
+  }
+
+  @Test
+  public void usesTheSuggesterForTheField() throws Exception {
+    assertEquals("homework", suggestions("field=category&prefix=HOME").get(0).get("value").asText());
+    assertEquals(0, suggestions("field=category&prefix=b").size());
+  }
+
+  @Test
+  public void rejectsUnknownFields() {
+    mockReq.setQueryString("field=body&prefix=a");
+    Context ctx = mockContext();
+
+    BadRequestResponse e = assertThrows(BadRequestResponse.class, () -> suggestController.getSuggestions(ctx));
+    assertEquals("The field to suggest must be one of category, owner", e.getMessage());
+  }
+
+  @Test
+  public void rejectsIllegalLimits() {
+    mockReq.setQueryString("field=owner&limit=" + (PrefixSuggester.MAX_SUGGESTIONS + 1));
+    Context ctx = mockContext();
+
+    assertThrows(ValidationException.class, () -> suggestController.getSuggestions(ctx));
+  }
+}
@@ -1,18 +1,26 @@
 package umm3601.todo;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
@@ -23,13 +31,20 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mongojack.JacksonMongoCollection;
 
 import io.javalin.core.JavalinConfig;
 import io.javalin.core.validation.ValidationException;
@@ -40,6 +55,8 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.Dictionary;
+import umm3601.SortedMerge;
 
 /**
  * Tests the logic of the TodoController
@@ -92,6 +109,9 @@ public class TodoControllerSpec {
     // Setup database
     MongoCollection<Document> todoDocuments = db.getCollection("todos");
     todoDocuments.drop();
+    db.getCollection("todos_archive").drop();
+    db.getCollection("dictionary").drop();
+    db.getCollection("todoCounters").drop();
     List<Document> testTodos = new ArrayList<>();
     testTodos.add(
       new Document()
@@ -441,4 +461,941 @@ public class TodoControllerSpec {
     assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  public void passthroughJsonMatchesJacksonOutput() throws IOException {
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    // The raw BSON passthrough has to produce exactly the same bytes
+    // that Jackson would have produced from the POJOs.
+    List<Todo> expectedTodos = JacksonMongoCollection.builder()
+      .build(db, "todos", Todo.class)
+      .find()
+      .sort(SortedMerge.sort("owner", false))
+      .into(new ArrayList<>());
+    assertEquals(javalinJackson.toJsonString(expectedTodos), ctx.resultString());
+  }
+
+  @Test
+  public void passthroughJsonFillsInMissingFields() throws IOException {
+    ObjectId partialId = new ObjectId();
+    db.getCollection("todos").insertOne(
+      new Document()
+        .append("_id", partialId)
+        .append("extra", "not part of a Todo")
+        .append("owner", "Partial"));
+
+    Context ctx = mockContext("api/todos", Map.of("id", partialId.toHexString()));
+    todoController.getTodo(ctx);
+
+    Todo expectedTodo = new Todo();
+    expectedTodo._id = partialId.toHexString();
+    expectedTodo.owner = "Partial";
+    assertEquals(javalinJackson.toJsonString(expectedTodo), ctx.resultString());
+  }
+
+  @Test
+  public void canGetTotalCountOfFilteredTodos() throws IOException {
+    mockReq.setQueryString("category=Homework&limit=1");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    // Only one todo comes back, but the header says how many there are
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("2", mockRes.getHeader("X-Total-Count"));
+  }
+
+  @Test
+  public void canPageThroughTodos() throws IOException {
+    mockReq.setQueryString("sortby=owner&skip=1&limit=2");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    // Sorted by owner: Chris, Fernando, Lucy, Sam
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    assertEquals("Fernando", resultTodos[0].owner);
+    assertEquals("Lucy", resultTodos[1].owner);
+    assertEquals("4", mockRes.getHeader("X-Total-Count"));
+  }
+
+  @Test
+  public void totalCountIsRefreshedAfterAddingATodo() throws IOException {
+    mockReq.setQueryString("category=Homework");
+    todoController.getTodos(mockContext("api/todos"));
+    assertEquals("2", mockRes.getHeader("X-Total-Count"));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setBodyContent("{"
+      + "\"owner\": \"Test Todo\","
+      + "\"status\": true,"
+      + "\"body\": \"test body\","
+      + "\"category\": \"Homework\""
+      + "}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("category=Homework");
+    todoController.getTodos(mockContext("api/todos"));
+    assertEquals("3", mockRes.getHeader("X-Total-Count"));
+  }
+
+  @Test
+  public void canSkipCountingTodos() throws IOException {
+    mockReq.setQueryString("count=none");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertNull(mockRes.getHeader("X-Total-Count"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalCountMode() throws IOException {
+    mockReq.setQueryString("count=lots");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canGetTodosWithOwnerSubstring() throws IOException {
+    mockReq.setQueryString("owner=UC");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("Lucy", resultTodos[0].owner);
+  }
+
+  @Test
+  public void ownerSearchForgetsDeletedOwners() throws IOException {
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", samsId.toHexString())));
+
+    mockReq.setQueryString("owner=sam");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(0, javalinJackson.fromJsonString(ctx.resultString(), Todo[].class).length);
+  }
+
+  @Test
+  public void categorySuggestionsFollowNewTodos() throws IOException {
+    assertEquals(2, todoController.getCategorySuggester().suggest("home", 10).get(0).getCount());
+
+    mockReq.setBodyContent("{"
+      + "\"owner\": \"Test Todo\","
+      + "\"status\": true,"
+      + "\"body\": \"test body\","
+      + "\"category\": \"Homework\""
+      + "}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+
+    assertEquals(3, todoController.getCategorySuggester().suggest("home", 10).get(0).getCount());
+  }
+
+  @Test
+  public void canGetCounterForOneCategory() throws IOException {
+    mockReq.setQueryString("by=category&value=Homework");
+    Context ctx = mockContext("api/todos/counters");
+    todoController.getCounters(ctx);
+
+    ObjectNode counter = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, counter.get("total").asInt());
+    assertEquals(1, counter.get("complete").asInt());
+    assertEquals(0.5, counter.get("completionRate").asDouble());
+  }
+
+  @Test
+  public void countersFollowAddsAndDeletes() throws IOException {
+    mockReq.setBodyContent("{"
+      + "\"owner\": \"Sam\","
+      + "\"status\": false,"
+      + "\"body\": \"test body\","
+      + "\"category\": \"Homework\""
+      + "}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", samsId.toHexString())));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("by=owner&value=Sam");
+    Context ctx = mockContext("api/todos/counters");
+    todoController.getCounters(ctx);
+
+    ObjectNode counter = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(1, counter.get("total").asInt());
+    assertEquals(0, counter.get("complete").asInt());
+  }
+
+  @Test
+  public void rebuildingCountersFixesDrift() throws IOException {
+    db.getCollection("todoCounters").updateOne(
+      eq("_id", "owner:Lucy"), new Document("$inc", new Document("total", 10)));
+
+    TodoController.rebuildCounters(db, null, null);
+
+    mockReq.setQueryString("by=owner&value=Lucy");
+    Context ctx = mockContext("api/todos/counters");
+    todoController.getCounters(ctx);
+
+    assertEquals(1, javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("total").asInt());
+  }
+
+  @Test
+  public void countersAreOnlyRebuiltWhenAsked() throws IOException {
+    db.getCollection("todoCounters").updateOne(
+      eq("_id", "owner:Lucy"), new Document("$inc", new Document("total", 10)));
+
+    // Starting up again leaves the counters (and the owners loaded
+    // from them) alone
+    TodoController restarted = new TodoController(db);
+    assertEquals(11, restarted.getOwnerSuggester().suggest("lucy", 1).get(0).getCount());
+
+    assertEquals(Map.of("owner", 4, "category", 2), TodoController.rebuildCounters(db, null, null));
+    mockReq.setQueryString("by=owner&value=Lucy");
+    Context ctx = mockContext("api/todos/counters");
+    restarted.getCounters(ctx);
+    assertEquals(1, javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("total").asInt());
+  }
+
+  @Test
+  public void rebuildingCountersRemovesOnesForValuesNoLongerUsed() {
+    db.getCollection("todoCounters").insertOne(new Document("_id", "owner:Nobody")
+      .append("kind", "owner").append("value", "Nobody").append("total", 3).append("complete", 0));
+
+    TodoController.rebuildCounters(db, null, null);
+
+    assertEquals(0, db.getCollection("todoCounters").countDocuments(eq("_id", "owner:Nobody")));
+    assertEquals(6, db.getCollection("todoCounters").countDocuments());
+  }
+
+  @Test
+  public void respondsAppropriatelyToCountersForUnknownOwner() throws IOException {
+    mockReq.setQueryString("by=owner&value=Nobody");
+    Context ctx = mockContext("api/todos/counters");
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getCounters(ctx);
+    });
+  }
+
+  @Test
+  public void canGetSeveralTodosById() throws IOException {
+    String missingId = "58af3a600343927e48e87335";
+    mockReq.setQueryString("ids=" + missingId + "," + samsId.toHexString());
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    // The results come back in the order the ids were asked for
+    ObjectNode[] results = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(2, results.length);
+    assertEquals(missingId, results[0].get("id").asText());
+    assertEquals(false, results[0].get("found").asBoolean());
+    assertEquals(samsId.toHexString(), results[1].get("id").asText());
+    assertEquals(true, results[1].get("found").asBoolean());
+    assertEquals("Sam", results[1].get("todo").get("owner").asText());
+  }
+
+  @Test
+  public void canGetSeveralTodosByIdInTheBody() throws IOException {
+    mockReq.setBodyContent("{\"ids\": [\"" + samsId.toHexString() + "\"]}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos/_mget");
+    todoController.getTodosById(ctx);
+
+    ObjectNode[] results = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(1, results.length);
+    assertEquals("Sam", results[0].get("todo").get("owner").asText());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalIdInBatch() throws IOException {
+    mockReq.setQueryString("ids=" + samsId.toHexString() + ",bad");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canExportFilteredTodosAsNdjson() throws IOException {
+    mockReq.setQueryString("category=Homework");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    assertEquals("application/x-ndjson", mockRes.getContentType());
+    String[] lines = mockRes.getOutputStreamContent().split("\n");
+    assertEquals(2, lines.length);
+    for (String line : lines) {
+      Todo todo = javalinJackson.fromJsonString(line, Todo.class);
+      assertEquals("Homework", todo.category);
+    }
+  }
+
+  @Test
+  public void canExportTodosAsCsv() throws IOException {
+    mockReq.setQueryString("format=csv&owner=sam");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    String[] lines = mockRes.getOutputStreamContent().split("\r\n");
+    assertEquals(2, lines.length);
+    assertEquals("_id,owner,status,body,category", lines[0]);
+    assertEquals(samsId.toHexString() + ",Sam,true,Sam has an id,Software Design", lines[1]);
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalExportFormat() throws IOException {
+    mockReq.setQueryString("format=xml");
+    Context ctx = mockContext("api/todos/export");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.exportTodos(ctx);
+    });
+  }
+
+  private String currentChangesToken() throws IOException {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    Context ctx = mockContext("api/todos/changes");
+    todoController.getChanges(ctx);
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("token").asText();
+  }
+
+  private String addTodo(String owner) throws IOException {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setBodyContent("{\"owner\": \"" + owner + "\", \"status\": false, "
+      + "\"body\": \"Change me\", \"category\": \"changes\"}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos");
+    todoController.addNewTodo(ctx);
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+  }
+
+  @Test
+  public void canGetChangesSinceToken() throws IOException {
+    String token = currentChangesToken();
+
+    String newId = addTodo("Changer");
+    mockReq.resetAll();
+    mockRes.resetAll();
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", samsId.toHexString())));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("since=" + token);
+    Context ctx = mockContext("api/todos/changes");
+    todoController.getChanges(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(Long.parseLong(token) + 2, result.get("token").asLong());
+    assertEquals(false, result.get("more").asBoolean());
+    assertEquals(2, result.get("changes").size());
+    assertEquals("insert", result.get("changes").get(0).get("op").asText());
+    assertEquals(newId, result.get("changes").get(0).get("id").asText());
+    assertEquals("Changer", result.get("changes").get(0).get("todo").get("owner").asText());
+    assertEquals("delete", result.get("changes").get(1).get("op").asText());
+    assertEquals(samsId.toHexString(), result.get("changes").get(1).get("id").asText());
+
+    // Nothing has changed since the new token
+    String newToken = result.get("token").asText();
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("since=" + newToken);
+    ctx = mockContext("api/todos/changes");
+    todoController.getChanges(ctx);
+    result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(newToken, result.get("token").asText());
+    assertEquals(0, result.get("changes").size());
+  }
+
+  @Test
+  public void addedThenDeletedTodosAreLeftOutOfChanges() throws IOException {
+    String token = currentChangesToken();
+
+    String newId = addTodo("Fleeting");
+    mockReq.resetAll();
+    mockRes.resetAll();
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", newId)));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("since=" + token);
+    Context ctx = mockContext("api/todos/changes");
+    todoController.getChanges(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(0, result.get("changes").size());
+  }
+
+  @Test
+  public void respondsAppropriatelyToFutureChangesToken() throws IOException {
+    long future = Long.parseLong(currentChangesToken()) + 1000;
+    mockReq.setQueryString("since=" + future);
+    Context ctx = mockContext("api/todos/changes");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getChanges(ctx);
+    });
+  }
+
+  private ObjectNode changesSince(String token) throws IOException {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("since=" + token);
+    Context ctx = mockContext("api/todos/changes");
+    todoController.getChanges(ctx);
+    return javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+  }
+
+  @Test
+  public void changesWaitForNumbersThatArentWrittenYet() throws IOException {
+    String token = currentChangesToken();
+    long reserved = Long.parseLong(token) + 1;
+    // Another server has numbered a change but not yet written it
+    db.getCollection("sequences").updateOne(eq("_id", "todoChanges"), Updates.inc("value", 1L),
+      new UpdateOptions().upsert(true));
+
+    addTodo("Behind");
+    ObjectNode result = changesSince(token);
+    assertEquals(token, result.get("token").asText());
+    assertEquals(0, result.get("changes").size());
+
+    // Once it's written, both are sent in order
+    db.getCollection("todoChanges").insertOne(new Document("_id", reserved)
+      .append("op", "delete").append("todoId", samsId).append("at", new Date()));
+    result = changesSince(token);
+    assertEquals(reserved + 1, result.get("token").asLong());
+    assertEquals(2, result.get("changes").size());
+    assertEquals(samsId.toHexString(), result.get("changes").get(0).get("id").asText());
+  }
+
+  @Test
+  public void changesSkipGapsThatAreNeverFilled() throws IOException {
+    String token = currentChangesToken();
+    db.getCollection("sequences").updateOne(eq("_id", "todoChanges"), Updates.inc("value", 1L),
+      new UpdateOptions().upsert(true));
+    addTodo("Behind");
+    // Pretend the change after the gap was written long ago
+    long written = Long.parseLong(token) + 2;
+    db.getCollection("todoChanges").updateOne(eq("_id", written),
+      Updates.set("at", new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5))));
+
+    ObjectNode result = changesSince(token);
+    assertEquals(written, result.get("token").asLong());
+    assertEquals(1, result.get("changes").size());
+  }
+
+  @Test
+  public void canUpdateTodoFields() throws IOException {
+    mockReq.setBodyContent("{\"status\": false, \"category\": \"Homework\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/{id}", Map.of("id", samsId.toHexString()));
+    todoController.updateTodo(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(1, result.get("matched").asInt());
+    assertEquals(1, result.get("modified").asInt());
+
+    // Only the given fields changed, and the id is the same
+    Document updated = db.getCollection("todos").find(eq("_id", samsId)).first();
+    assertEquals(false, updated.getBoolean("status"));
+    assertEquals("Homework", updated.getString("category"));
+    assertEquals("Sam", updated.getString("owner"));
+    assertEquals("Sam has an id", updated.getString("body"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalTodoUpdates() throws IOException {
+    for (String body : List.of("{}", "{\"owner\": \"\"}", "{\"status\": \"done\"}", "{\"_id\": \"x\"}")) {
+      mockReq.setBodyContent(body);
+      mockReq.setMethod("PATCH");
+      Context ctx = mockContext("api/todos/{id}", Map.of("id", samsId.toHexString()));
+
+      assertThrows(BadRequestResponse.class, () -> {
+        todoController.updateTodo(ctx);
+      }, body);
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToUpdatingNonexistentTodo() throws IOException {
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/{id}", Map.of("id", "588935f57546a2daea44de7c"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+  }
+
+  @Test
+  public void canUpdateStatusOfTodosInCategory() throws IOException {
+    mockReq.setQueryString("category=Homework");
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos");
+    todoController.updateTodos(ctx);
+
+    // Two todos are homework, but only one of them wasn't done yet
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, result.get("matched").asInt());
+    assertEquals(1, result.get("modified").asInt());
+    Document fernandos = db.getCollection("todos").find(eq("owner", "Fernando")).first();
+    assertEquals(true, fernandos.getBoolean("status"));
+  }
+
+  @Test
+  public void bulkStatusUpdatesKeepCountersAndChangesUpToDate() throws IOException {
+    String token = currentChangesToken();
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("category=Homework");
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    todoController.updateTodos(mockContext("api/todos"));
+
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mockReq.setQueryString("by=category&value=Homework");
+    Context ctx = mockContext("api/todos/counters");
+    todoController.getCounters(ctx);
+    ObjectNode counter = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, counter.get("total").asInt());
+    assertEquals(2, counter.get("complete").asInt());
+
+    // Only the todo that changed is in the change log, and the tag
+    // used to find it is gone
+    ObjectNode changes = changesSince(token);
+    assertEquals(1, changes.get("changes").size());
+    assertEquals("Fernando", changes.get("changes").get(0).get("todo").get("owner").asText());
+    assertEquals(0, db.getCollection("todos").countDocuments(exists("bulkUpdate")));
+  }
+
+  @Test
+  public void respondsAppropriatelyToUnfilteredBulkUpdate() throws IOException {
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canGetTodosInAnyOfSeveralCategories() throws IOException {
+    mockReq.setQueryString("category=Homework,Groceries&status=true");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length); // Only Chris's homework is done
+    assertEquals("Homework", resultTodos[0].category);
+
+    mockReq.setQueryString("category=Homework&category=Software%20Design");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    assertEquals(4, javalinJackson.fromJsonString(ctx.resultString(), Todo[].class).length);
+  }
+
+  /**
+   * Ask Mongo how it would run a query, and return the plan it picked.
+   */
+  private Document winningPlan(String collection, List<Bson> filters, Bson sort) {
+    Document find = new Document("find", collection)
+      .append("filter", and(filters).toBsonDocument(BsonDocument.class, db.getCodecRegistry()))
+      .append("sort", sort.toBsonDocument(BsonDocument.class, db.getCodecRegistry()));
+    Document explanation = db.runCommand(new Document("explain", find));
+    return explanation.get("queryPlanner", Document.class).get("winningPlan", Document.class);
+  }
+
+  private void assertIndexedWithoutSort(Document plan) {
+    String json = plan.toJson();
+    assertTrue(json.contains("\"IXSCAN\""), json);
+    assertFalse(json.contains("\"COLLSCAN\""), json);
+    // The index hands back documents already in order
+    assertFalse(json.contains("\"SORT\""), json);
+  }
+
+  @Test
+  public void categoryAndStatusQueriesUseAnIndex() {
+    mockReq.setQueryString("category=Homework&status=false");
+    List<Bson> filters = todoController.listFilters(mockContext("api/todos"));
+    assertIndexedWithoutSort(winningPlan("todos", filters, SortedMerge.sort("owner", false)));
+
+    mockReq.setQueryString("category=Homework,Groceries");
+    filters = todoController.listFilters(mockContext("api/todos"));
+    assertIndexedWithoutSort(winningPlan("todos", filters, SortedMerge.sort("owner", false)));
+  }
+
+  @Test
+  public void canGetTodosCreatedInATimeWindow() throws IOException {
+    // A todo whose id says it was created at the start of 2020
+    ObjectId oldId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", false)
+      .append("body", "An old todo"));
+
+    mockReq.setQueryString("createdBefore=2021-01-01T00:00:00Z");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals(oldId.toHexString(), resultTodos[0]._id);
+
+    // The window can be combined with the other filters
+    mockReq.setQueryString("createdAfter=2021-01-01T00:00:00Z&category=Homework");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    for (Todo todo : resultTodos) {
+      assertNotEquals(oldId.toHexString(), todo._id);
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalCreatedTime() {
+    mockReq.setQueryString("createdAfter=yesterday");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canPageThroughTodosInCreationOrder() throws IOException {
+    List<String> ids = new ArrayList<>();
+    String after = null;
+    do {
+      mockReq.setQueryString("limit=3" + (after == null ? "" : "&after=" + after));
+      Context ctx = mockContext("api/todos");
+      todoController.getTodos(ctx);
+      Todo[] page = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+      for (Todo todo : page) {
+        ids.add(todo._id);
+      }
+      after = page.length == 0 ? null : page[page.length - 1]._id;
+    } while (after != null);
+
+    // Every todo, each once, in id order
+    List<String> expected = new ArrayList<>();
+    for (Document todo : db.getCollection("todos").find().sort(Sorts.ascending("_id"))) {
+      expected.add(todo.getObjectId("_id").toHexString());
+    }
+    assertEquals(expected, ids);
+  }
+
+  @Test
+  public void respondsAppropriatelyToPagingInOtherOrders() {
+    mockReq.setQueryString("after=" + samsId.toHexString() + "&sortby=owner");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canArchiveOldCompletedTodos() throws IOException {
+    // Two todos from the start of 2020, one of them done
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    ObjectId oldNotDoneId = new ObjectId("5e0be1000000000000000001");
+    db.getCollection("todos").insertMany(List.of(
+      new Document("_id", oldDoneId)
+        .append("owner", "Blanche")
+        .append("category", "Homework")
+        .append("status", true)
+        .append("body", "Done long ago"),
+      new Document("_id", oldNotDoneId)
+        .append("owner", "Blanche")
+        .append("category", "Homework")
+        .append("status", false)
+        .append("body", "Still not done")));
+
+    todoController.enableArchiving(Duration.ofDays(1), Duration.ofDays(1));
+    // Only the old, completed todo goes; recent ones are left alone.
+    assertEquals(1, todoController.archiveNow());
+    assertEquals(1, db.getCollection("todos_archive").countDocuments());
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", oldDoneId)));
+
+    mockReq.setQueryString("category=Homework");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    assertEquals(3, javalinJackson.fromJsonString(ctx.resultString(), Todo[].class).length);
+
+    // With includeArchived, the archived todo is merged back in order
+    mockReq.setQueryString("category=Homework&includeArchived=true&count=exact");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(4, resultTodos.length);
+    assertEquals("4", mockRes.getHeader("X-Total-Count"));
+    assertEquals(oldDoneId.toHexString(), resultTodos[0]._id);
+    assertEquals(oldNotDoneId.toHexString(), resultTodos[1]._id);
+    assertEquals("Chris", resultTodos[2].owner);
+    assertEquals("Fernando", resultTodos[3].owner);
+
+    mockReq.setQueryString("category=Homework&includeArchived=true&skip=1&limit=2");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    assertEquals(oldNotDoneId.toHexString(), resultTodos[0]._id);
+    assertEquals("Chris", resultTodos[1].owner);
+  }
+
+  @Test
+  public void canGetAndDeleteArchivedTodo() throws IOException {
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldDoneId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", true)
+      .append("body", "Done long ago"));
+    todoController.enableArchiving(Duration.ofDays(1), Duration.ofDays(1));
+    todoController.archiveNow();
+
+    Context ctx = mockContext("api/todos/{id}", Map.of("id", oldDoneId.toHexString()));
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(ctx);
+    });
+
+    mockReq.setQueryString("includeArchived=true");
+    Context archivedCtx = mockContext("api/todos/{id}", Map.of("id", oldDoneId.toHexString()));
+    todoController.getTodo(archivedCtx);
+    Todo resultTodo = javalinJackson.fromJsonString(archivedCtx.resultString(), Todo.class);
+    assertEquals("Done long ago", resultTodo.body);
+
+    todoController.deleteTodo(mockContext("api/todos/{id}", Map.of("id", oldDoneId.toHexString())));
+    assertEquals(0, db.getCollection("todos_archive").countDocuments());
+  }
+
+  @Test
+  public void changesMadeWhileArchivingArentLost() {
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldDoneId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", true)
+      .append("body", "Done long ago"));
+    TodoArchiver archiver = new TodoArchiver(db, Duration.ofDays(1), moved -> { });
+    List<RawBsonDocument> batch = db.getCollection("todos", RawBsonDocument.class)
+      .find(eq("_id", oldDoneId)).into(new ArrayList<>());
+
+    // Someone changes the body after it's read, but it's still complete
+    db.getCollection("todos").updateOne(eq("_id", oldDoneId), Updates.set("body", "Done, with notes"));
+
+    assertEquals(0, archiver.moveBatch(batch));
+    assertEquals("Done, with notes", db.getCollection("todos").find(eq("_id", oldDoneId)).first().getString("body"));
+    assertEquals(0, db.getCollection("todos_archive").countDocuments());
+  }
+
+  @Test
+  public void todosDeletedWhileArchivingStayDeleted() {
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldDoneId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", true)
+      .append("body", "Done long ago"));
+    TodoArchiver archiver = new TodoArchiver(db, Duration.ofDays(1), moved -> { });
+    List<RawBsonDocument> batch = db.getCollection("todos", RawBsonDocument.class)
+      .find(eq("_id", oldDoneId)).into(new ArrayList<>());
+
+    // Someone deletes it after it's copied, but before it's deleted
+    archiver.copy(batch);
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", oldDoneId.toHexString())));
+
+    assertEquals(0, archiver.deleteCopied(batch));
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", oldDoneId)));
+    assertEquals(0, db.getCollection("todos_archive").countDocuments(eq("_id", oldDoneId)));
+  }
+
+  @Test
+  public void deletingATodoThatsAlsoArchivedDeletesBoth() {
+    Document todo = db.getCollection("todos").find(eq("_id", samsId)).first();
+    db.getCollection("todos_archive").insertOne(todo);
+
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", samsId.toHexString())));
+
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", samsId)));
+    assertEquals(0, db.getCollection("todos_archive").countDocuments(eq("_id", samsId)));
+  }
+
+  @Test
+  public void archivedTodosShowUpAsDeletedChanges() throws IOException {
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldDoneId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", true)
+      .append("body", "Done long ago"));
+    String token = currentChangesToken();
+    todoController.enableArchiving(Duration.ofDays(1), Duration.ofDays(1));
+    assertEquals(1, todoController.archiveNow());
+
+    ObjectNode changes = changesSince(token);
+    assertEquals(1, changes.get("changes").size());
+    assertEquals("delete", changes.get("changes").get(0).get("op").asText());
+    assertEquals(oldDoneId.toHexString(), changes.get("changes").get(0).get("id").asText());
+  }
+
+  @Test
+  public void changingAnArchivedTodoMovesItBack() throws IOException {
+    ObjectId oldDoneId = new ObjectId("5e0be1000000000000000000");
+    db.getCollection("todos").insertOne(new Document("_id", oldDoneId)
+      .append("owner", "Blanche")
+      .append("category", "Homework")
+      .append("status", true)
+      .append("body", "Done long ago"));
+    todoController.enableArchiving(Duration.ofDays(1), Duration.ofDays(1));
+    todoController.archiveNow();
+
+    mockReq.setBodyContent("{\"status\": false}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/{id}", Map.of("id", oldDoneId.toHexString()));
+    todoController.updateTodo(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(1, result.get("modified").asInt());
+    assertEquals(0, db.getCollection("todos_archive").countDocuments());
+    Document hot = db.getCollection("todos").find(eq("_id", oldDoneId)).first();
+    assertEquals(false, hot.getBoolean("status"));
+    assertEquals("Done long ago", hot.getString("body"));
+
+    // It's not due for archiving any more
+    assertEquals(0, todoController.archiveNow());
+  }
+
+  @Test
+  public void canStoreCategoriesAsDictionaryCodes() throws IOException {
+    TodoController encodingController = new TodoController(db, new Dictionary(db));
+
+    mockReq.setBodyContent("{\"owner\": \"Test Todo\", \"status\": false, "
+      + "\"body\": \"test body\", \"category\": \"Homework\"}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos");
+    encodingController.addNewTodo(ctx);
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+
+    // It's stored as a code, but comes back as the category
+    Document stored = db.getCollection("todos").find(eq("_id", new ObjectId(id))).first();
+    assertTrue(stored.get("category") instanceof Integer);
+    mockReq.resetAll();
+    Context getCtx = mockContext("api/todos/{id}", Map.of("id", id));
+    encodingController.getTodo(getCtx);
+    assertEquals("Homework", javalinJackson.fromJsonString(getCtx.resultString(), Todo.class).category);
+
+    // Filtering finds it along with the todos stored before encoding was on
+    mockReq.setQueryString("category=Homework");
+    Context listCtx = mockContext("api/todos");
+    encodingController.getTodos(listCtx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(listCtx.resultString(), Todo[].class);
+    assertEquals(3, resultTodos.length);
+    for (Todo todo : resultTodos) {
+      assertEquals("Homework", todo.category);
+    }
+
+    encodingController.deleteTodo(mockContext("api/todos/{id}", Map.of("id", id)));
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", new ObjectId(id))));
+  }
+
+  @Test
+  public void sortsEncodedCategoriesByValue() throws IOException {
+    TodoController encodingController = new TodoController(db, new Dictionary(db));
+    // Zebras get the first code, so they'd sort first by code
+    for (String category : List.of("Zebras", "Apples")) {
+      mockReq.resetAll();
+      mockReq.setBodyContent("{\"owner\": \"Sorter\", \"status\": false, "
+        + "\"body\": \"test body\", \"category\": \"" + category + "\"}");
+      mockReq.setMethod("POST");
+      encodingController.addNewTodo(mockContext("api/todos"));
+    }
+
+    mockReq.resetAll();
+    mockReq.setQueryString("sortby=category");
+    Context ctx = mockContext("api/todos");
+    encodingController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    List<String> categories = new ArrayList<>();
+    for (Todo todo : resultTodos) {
+      categories.add(todo.category);
+    }
+    assertEquals(List.of("Apples", "Homework", "Homework", "Software Design", "Software Design", "Zebras"),
+      categories);
+
+    mockReq.setQueryString("sortby=category&sortorder=desc&skip=1&limit=2");
+    ctx = mockContext("api/todos");
+    encodingController.getTodos(ctx);
+    resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    assertEquals("Software Design", resultTodos[0].category);
+    assertEquals("Software Design", resultTodos[1].category);
+  }
+
+  @Test
+  public void canShardTodosByOwner() throws IOException {
+    List<MongoDatabase> shardDatabases = List.of(
+      mongoClient.getDatabase("test_shard0"), mongoClient.getDatabase("test_shard1"));
+    shardDatabases.forEach(MongoDatabase::drop);
+    TodoShards shards = new TodoShards(shardDatabases);
+    TodoController shardedController = new TodoController(db, null, shards);
+
+    List<String> ids = new ArrayList<>();
+    for (String owner : List.of("Ann", "Bob", "Cat", "Dan", "Eve", "Fay")) {
+      mockReq.resetAll();
+      mockReq.setBodyContent("{\"owner\": \"" + owner + "\", \"status\": false, "
+        + "\"body\": \"test body\", \"category\": \"Homework\"}");
+      mockReq.setMethod("POST");
+      Context ctx = mockContext("api/todos");
+      shardedController.addNewTodo(ctx);
+      String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+      ids.add(id);
+
+      // It's on its owner's shard, and its id says so
+      int shard = shards.shardForOwner(owner);
+      assertEquals(shard, shards.shardForId(new ObjectId(id)));
+      assertEquals(1, shards.collections().get(shard).countDocuments(eq("_id", new ObjectId(id))));
+    }
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("owner", "Ann")));
+
+    mockReq.resetAll();
+    Context getCtx = mockContext("api/todos/{id}", Map.of("id", ids.get(0)));
+    shardedController.getTodo(getCtx);
+    assertEquals("Ann", javalinJackson.fromJsonString(getCtx.resultString(), Todo.class).owner);
+
+    // Listing merges every shard, in order
+    mockReq.setQueryString("sortby=owner&sortorder=asc");
+    Context listCtx = mockContext("api/todos");
+    shardedController.getTodos(listCtx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(listCtx.resultString(), Todo[].class);
+    assertEquals(6, resultTodos.length);
+    for (int i = 1; i < resultTodos.length; i++) {
+      assertTrue(resultTodos[i - 1].owner.compareTo(resultTodos[i].owner) <= 0);
+    }
+
+    mockReq.resetAll();
+    shardedController.deleteTodo(mockContext("api/todos/{id}", Map.of("id", ids.get(0))));
+    assertNull(shards.find(new ObjectId(ids.get(0))));
+    assertThrows(IllegalStateException.class, () ->
+      shardedController.enableArchiving(Duration.ofDays(1), Duration.ofMinutes(1)));
+
+    shardDatabases.forEach(MongoDatabase::drop);
+  }
 }
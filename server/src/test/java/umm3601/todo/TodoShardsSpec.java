@@ -0,0 +1,175 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that TodoShards puts todos on their owner's shard, finds them
+ * again, and moves the right ones when a shard is added. Separate
+ * databases on the test server stand in for separate deployments.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoShardsSpec {
+
+  private static MongoClient mongoClient;
+  private static List<MongoDatabase> databases;
+
+  @BeforeAll
+  public static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+    MongoClientSettings.builder()
+    .applyToClusterSettings(builder ->
+    builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+    .build());
+
+    databases = List.of(
+      mongoClient.getDatabase("test_shard0"),
+      mongoClient.getDatabase("test_shard1"),
+      mongoClient.getDatabase("test_shard2"));
+  }
+
+  @BeforeEach
+  public void setUpEach() {
+    databases.forEach(MongoDatabase::drop);
+  }
+
+  @AfterAll
+  public static void teardown() {
+    databases.forEach(MongoDatabase::drop);
+    mongoClient.close();
+  }
+
+  private static RawBsonDocument todo(ObjectId id, String owner) {
+    BsonDocument document = new BsonDocument("_id", new BsonObjectId(id))
+      .append("owner", new BsonString(owner))
+      .append("body", new BsonString("test body"));
+    return new RawBsonDocument(document, new BsonDocumentCodec());
+  }
+
+  @Test
+  public void newIdsPointToTheirOwnersShard() {
+    TodoShards shards = new TodoShards(databases);
+    for (int i = 0; i < 100; i++) {
+      String owner = "owner" + i;
+      ObjectId id = shards.newId(owner);
+      assertEquals(shards.shardForOwner(owner), shards.shardForId(id));
+    }
+  }
+
+  @Test
+  public void newIdsKeepTheirTimestamps() {
+    TodoShards shards = new TodoShards(databases);
+    ObjectId before = new ObjectId();
+    ObjectId id = shards.newId("Sam");
+    assertTrue(id.getTimestamp() >= before.getTimestamp());
+    assertTrue(id.getTimestamp() - before.getTimestamp() <= 1);
+  }
+
+  @Test
+  public void newIdsKeepMostOfTheirRandomValue() {
+    TodoShards shards = new TodoShards(databases);
+    // The random value is the same for every id made by this process
+    byte[] plain = new ObjectId().toByteArray();
+    for (int i = 0; i < 100; i++) {
+      byte[] sharded = shards.newId("owner" + i).toByteArray();
+      assertArrayEquals(Arrays.copyOfRange(plain, 4, 8), Arrays.copyOfRange(sharded, 4, 8));
+    }
+  }
+
+  @Test
+  public void spreadsOwnersOverEveryShard() {
+    TodoShards shards = new TodoShards(databases);
+    int[] owners = new int[databases.size()];
+    for (int i = 0; i < 3000; i++) {
+      owners[shards.shardForOwner("owner" + i)]++;
+    }
+    for (int count : owners) {
+      assertTrue(count > 600, "Each shard should get a fair share of owners, but got " + Arrays.toString(owners));
+    }
+  }
+
+  @Test
+  public void findsTodosWhoseIdsPointElsewhere() {
+    TodoShards shards = new TodoShards(databases);
+    ObjectId placed = shards.newId("Sam");
+    shards.forOwner("Sam").insertOne(todo(placed, "Sam"));
+
+    // A todo from before sharding, which could have been put anywhere
+    ObjectId stray = new ObjectId();
+    int strayShard = (shards.shardForId(stray) + 1) % databases.size();
+    shards.collections().get(strayShard).insertOne(todo(stray, "Pat"));
+
+    assertEquals(shards.shardForOwner("Sam"), shards.locate(placed));
+    assertEquals(strayShard, shards.locate(stray));
+    assertEquals(-1, shards.locate(new ObjectId()));
+    assertNotNull(shards.find(stray));
+    assertNull(shards.find(new ObjectId()));
+    assertEquals(2, shards.findAll(List.of(placed, stray, new ObjectId())).size());
+  }
+
+  @Test
+  public void addingAShardOnlyMovesTheOwnersItTakesOver() {
+    TodoShards twoShards = new TodoShards(databases.subList(0, 2));
+    List<String> owners = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      String owner = "owner" + i;
+      owners.add(owner);
+      twoShards.forOwner(owner).insertOne(todo(twoShards.newId(owner), owner));
+      twoShards.forOwner(owner).insertOne(todo(twoShards.newId(owner), owner));
+    }
+
+    TodoShards threeShards = new TodoShards(databases);
+    long before = threeShards.collections().get(0).countDocuments();
+    long[] dryRun = threeShards.rebalance(threeShards.collections().get(0), true);
+    assertEquals(before, threeShards.collections().get(0).countDocuments());
+
+    long total = 0;
+    for (MongoCollection<RawBsonDocument> source : threeShards.collections().subList(0, 2)) {
+      long[] moved = threeShards.rebalance(source, false);
+      // Everything that moves goes to the new shard
+      assertEquals(0, moved[0]);
+      assertEquals(0, moved[1]);
+      total += moved[2];
+    }
+    assertTrue(dryRun[2] <= total);
+    assertEquals(total, threeShards.collections().get(2).countDocuments());
+    // About a third should have moved
+    assertTrue(total > 100 && total < 300, "Moved " + total + " of 600 todos");
+
+    for (String owner : owners) {
+      int shard = threeShards.shardForOwner(owner);
+      assertEquals(2, threeShards.collections().get(shard).countDocuments(eq("owner", owner)));
+      if (shard != 2) {
+        assertEquals(twoShards.shardForOwner(owner), shard);
+      }
+    }
+  }
+}
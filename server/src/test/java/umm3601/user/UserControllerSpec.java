@@ -1,9 +1,11 @@
 package umm3601.user;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -24,13 +26,18 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mongojack.JacksonMongoCollection;
 
 import io.javalin.core.JavalinConfig;
 import io.javalin.core.validation.ValidationException;
@@ -41,6 +48,7 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.Dictionary;
 
 /**
 * Tests the logic of the UserController
@@ -92,6 +100,7 @@ public class UserControllerSpec {
     // Setup database
     MongoCollection<Document> userDocuments = db.getCollection("users");
     userDocuments.drop();
+    db.getCollection("dictionary").drop();
     List<Document> testUsers = new ArrayList<>();
     testUsers.add(
       new Document()
@@ -529,4 +538,299 @@ public class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  public void passthroughJsonMatchesJacksonOutput() throws IOException {
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    // The raw BSON passthrough has to produce exactly the same bytes
+    // that Jackson would have produced from the POJOs.
+    List<User> expectedUsers = JacksonMongoCollection.builder()
+      .build(db, "users", User.class)
+      .find()
+      .sort(Sorts.ascending("name"))
+      .into(new ArrayList<>());
+    assertEquals(javalinJackson.toJsonString(expectedUsers), ctx.resultString());
+  }
+
+  @Test
+  public void canGetTotalCountOfFilteredUsers() throws IOException {
+    mockReq.setQueryString("age=37&count=exact&limit=1");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(1, resultUsers.length);
+    assertEquals("2", mockRes.getHeader("X-Total-Count"));
+  }
+
+  @Test
+  public void canGetSeveralUsersById() throws IOException {
+    mockReq.setQueryString("ids=" + samsId.toHexString() + "," + samsId.toHexString());
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    // Asking for the same id twice gets it twice
+    ObjectNode[] results = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(2, results.length);
+    assertEquals("Sam", results[0].get("user").get("name").asText());
+    assertEquals("Sam", results[1].get("user").get("name").asText());
+  }
+
+  private void addTodosForSam() {
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    todoDocuments.drop();
+    todoDocuments.insertMany(List.of(
+      new Document()
+        .append("owner", "Sam")
+        .append("status", true)
+        .append("body", "Feed the frogs")
+        .append("category", "homework"),
+      new Document()
+        .append("owner", "Sam")
+        .append("status", false)
+        .append("body", "Count the frogs")
+        .append("category", "groceries"),
+      new Document()
+        .append("owner", "Sam")
+        .append("status", false)
+        .append("body", "Name the frogs")
+        .append("category", "homework"),
+      new Document()
+        .append("owner", "Pat")
+        .append("status", false)
+        .append("body", "Not one of Sam's")
+        .append("category", "homework")));
+  }
+
+  @Test
+  public void canGetTodosOfUser() throws IOException {
+    addTodosForSam();
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+    userController.getUserTodos(ctx);
+
+    ObjectNode[] todos = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(3, todos.length);
+    for (ObjectNode todo : todos) {
+      assertEquals("Sam", todo.get("owner").asText());
+    }
+    // They come back in the order they were added
+    assertEquals("Feed the frogs", todos[0].get("body").asText());
+  }
+
+  @Test
+  public void canFilterAndPageTodosOfUser() throws IOException {
+    addTodosForSam();
+    mockReq.setQueryString("category=homework&status=false&limit=1");
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+    userController.getUserTodos(ctx);
+
+    ObjectNode[] todos = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class);
+    assertEquals(1, todos.length);
+    assertEquals("Name the frogs", todos[0].get("body").asText());
+  }
+
+  @Test
+  public void aUserWithoutANameHasNoTodos() throws IOException {
+    addTodosForSam();
+    db.getCollection("users").updateOne(eq("_id", samsId), Updates.unset("name"));
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+    userController.getUserTodos(ctx);
+
+    assertEquals(0, javalinJackson.fromJsonString(ctx.resultString(), ObjectNode[].class).length);
+  }
+
+  @Test
+  public void respondsAppropriatelyToTodosOfNonexistentUser() throws IOException {
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", "588935f57546a2daea44de7c"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getUserTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canEmbedTodosInUser() throws IOException {
+    addTodosForSam();
+    mockReq.setQueryString("embed=todos&status=true");
+    Context ctx = mockContext("api/users/{id}", Map.of("id", samsId.toHexString()));
+    userController.getUser(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(samsId.toHexString(), result.get("_id").asText());
+    assertEquals("Sam", result.get("name").asText());
+    assertEquals(1, result.get("todos").size());
+    assertEquals("Feed the frogs", result.get("todos").get(0).get("body").asText());
+  }
+
+  @Test
+  public void canExportFilteredUsersAsNdjson() throws IOException {
+    mockReq.setQueryString("age=37");
+    Context ctx = mockContext("api/users/export");
+    userController.exportUsers(ctx);
+
+    String[] lines = mockRes.getOutputStreamContent().split("\n");
+    assertEquals(2, lines.length);
+    for (String line : lines) {
+      User user = javalinJackson.fromJsonString(line, User.class);
+      assertEquals(37, user.age);
+    }
+  }
+
+  @Test
+  public void canExportUsersAsCsv() throws IOException {
+    mockReq.setQueryString("format=csv");
+    Context ctx = mockContext("api/users/export");
+    userController.exportUsers(ctx);
+
+    String[] lines = mockRes.getOutputStreamContent().split("\r\n");
+    // A header row, then one row per user
+    assertEquals(5, lines.length);
+    assertEquals("_id,name,age,company,email,avatar,role", lines[0]);
+  }
+
+  @Test
+  public void canGetUsersInAgeRange() throws IOException {
+    mockReq.setQueryString("minAge=30&maxAge=40");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, resultUsers.length); // Pat and Jamie
+    for (User user : resultUsers) {
+      assertTrue(user.age >= 30 && user.age <= 40);
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToBackwardsAgeRange() {
+    mockReq.setQueryString("minAge=40&maxAge=30");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
+  @Test
+  public void canGetUsersWithAnyOfSeveralRoles() throws IOException {
+    mockReq.setQueryString("role=admin,editor");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, resultUsers.length); // Chris and Pat
+    for (User user : resultUsers) {
+      assertTrue(user.role.equals("admin") || user.role.equals("editor"));
+    }
+  }
+
+  /**
+   * Ask Mongo how it would run a query, and return the plan it picked.
+   */
+  private Document winningPlan(String collection, List<Bson> filters, Bson sort) {
+    Document find = new Document("find", collection)
+      .append("filter", and(filters).toBsonDocument(BsonDocument.class, db.getCodecRegistry()))
+      .append("sort", sort.toBsonDocument(BsonDocument.class, db.getCodecRegistry()));
+    Document explanation = db.runCommand(new Document("explain", find));
+    return explanation.get("queryPlanner", Document.class).get("winningPlan", Document.class);
+  }
+
+  private void assertIndexedWithoutSort(Document plan) {
+    String json = plan.toJson();
+    assertTrue(json.contains("\"IXSCAN\""), json);
+    assertFalse(json.contains("\"COLLSCAN\""), json);
+    // The index hands back documents already in order
+    assertFalse(json.contains("\"SORT\""), json);
+  }
+
+  @Test
+  public void roleAndAgeRangeQueriesUseAnIndex() {
+    mockReq.setQueryString("role=viewer&minAge=40");
+    List<Bson> filters = userController.listFilters(mockContext("api/users"));
+    assertIndexedWithoutSort(winningPlan("users", filters, Sorts.ascending("name")));
+
+    mockReq.setQueryString("role=admin,editor&maxAge=40");
+    filters = userController.listFilters(mockContext("api/users"));
+    assertIndexedWithoutSort(winningPlan("users", filters, Sorts.ascending("name")));
+
+    mockReq.setQueryString("minAge=30&maxAge=40");
+    filters = userController.listFilters(mockContext("api/users"));
+    assertIndexedWithoutSort(winningPlan("users", filters, Sorts.ascending("name")));
+  }
+
+  @Test
+  public void canGetUsersCreatedInATimeWindow() throws IOException {
+    // Nothing was added after an id made just now
+    mockReq.setQueryString("createdAfter=2021-01-01T00:00:00Z&role=viewer&after=" + new ObjectId().toHexString());
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    assertEquals(0, javalinJackson.fromJsonString(ctx.resultString(), User[].class).length);
+
+    mockReq.setQueryString("createdAfter=2021-01-01T00:00:00Z&role=viewer");
+    ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    assertEquals(2, javalinJackson.fromJsonString(ctx.resultString(), User[].class).length);
+
+    mockReq.setQueryString("createdBefore=2021-01-01T00:00:00Z");
+    ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    assertEquals(0, javalinJackson.fromJsonString(ctx.resultString(), User[].class).length);
+  }
+
+  @Test
+  public void canStoreRolesAndCompaniesAsDictionaryCodes() throws IOException {
+    UserController encodingController = new UserController(db, new Dictionary(db));
+
+    mockReq.setBodyContent("{\"name\": \"Test User\", \"age\": 25, \"company\": \"OHMNET\", "
+      + "\"email\": \"test@example.com\", \"role\": \"viewer\"}");
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/users");
+    encodingController.addNewUser(ctx);
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+
+    Document stored = db.getCollection("users").find(eq("_id", new ObjectId(id))).first();
+    assertTrue(stored.get("role") instanceof Integer);
+    assertTrue(stored.get("company") instanceof Integer);
+
+    // Both filters find the new user along with Jamie and Sam, who
+    // were stored before encoding was on
+    mockReq.resetAll();
+    mockReq.setQueryString("role=viewer&company=ohm");
+    Context listCtx = mockContext("api/users");
+    encodingController.getUsers(listCtx);
+    User[] resultUsers = javalinJackson.fromJsonString(listCtx.resultString(), User[].class);
+    assertEquals(3, resultUsers.length);
+    for (User user : resultUsers) {
+      assertEquals("viewer", user.role);
+      assertEquals("OHMNET", user.company);
+    }
+
+    encodingController.deleteUser(mockContext("api/users/{id}", Map.of("id", id)));
+    assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(id))));
+  }
+
+  @Test
+  public void sortsEncodedCompaniesByValue() throws IOException {
+    UserController encodingController = new UserController(db, new Dictionary(db));
+    // Zoo gets the first code, so it'd sort first by code
+    for (String company : List.of("Zoo", "Acme")) {
+      mockReq.resetAll();
+      mockReq.setBodyContent("{\"name\": \"Test User\", \"age\": 25, \"company\": \"" + company + "\", "
+        + "\"email\": \"test@example.com\", \"role\": \"viewer\"}");
+      mockReq.setMethod("POST");
+      encodingController.addNewUser(mockContext("api/users"));
+    }
+
+    mockReq.resetAll();
+    mockReq.setQueryString("sortby=company");
+    Context ctx = mockContext("api/users");
+    encodingController.getUsers(ctx);
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    List<String> companies = new ArrayList<>();
+    for (User user : resultUsers) {
+      companies.add(user.company);
+    }
+    assertEquals(List.of("Acme", "IBM", "OHMNET", "OHMNET", "UMM", "Zoo"), companies);
+  }
 }